@@ -0,0 +1,143 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 一条待发送的审计记录,创建后不可修改
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AccountingRecord {
+
+    final TACACS_PLUS.ACCT.FLAG flag;
+    final String user;
+    final String port;
+    final String remAddr;
+    final byte privLvl;
+    final TACACS_PLUS.AUTHEN.METH authenMethod;
+    final TACACS_PLUS.AUTHEN.TYPE authenType;
+    final TACACS_PLUS.AUTHEN.SVC authenService;
+    final Argument[] arguments;
+
+    /**
+     * 使用TACACS+认证的LOGIN服务、USER权限级别的审计记录
+     * @param flag START、STOP或WATCHDOG
+     * @param user
+     * @param port
+     * @param remAddr
+     * @param arguments 审计参数,如task_id、start_time、stop_time、cmd
+     */
+    public AccountingRecord(TACACS_PLUS.ACCT.FLAG flag, String user, String port, String remAddr, Argument[] arguments) {
+        this(flag, user, port, remAddr, TACACS_PLUS.PRIV_LVL.USER.code(), TACACS_PLUS.AUTHEN.METH.TACACSPLUS,
+                TACACS_PLUS.AUTHEN.TYPE.ASCII, TACACS_PLUS.AUTHEN.SVC.LOGIN, arguments);
+    }
+
+    public AccountingRecord(TACACS_PLUS.ACCT.FLAG flag, String user, String port, String remAddr, byte privLvl,
+                            TACACS_PLUS.AUTHEN.METH authenMethod, TACACS_PLUS.AUTHEN.TYPE authenType,
+                            TACACS_PLUS.AUTHEN.SVC authenService, Argument[] arguments) {
+        this.flag = flag;
+        this.user = user;
+        this.port = port;
+        this.remAddr = remAddr;
+        this.privLvl = privLvl;
+        this.authenMethod = authenMethod;
+        this.authenType = authenType;
+        this.authenService = authenService;
+        this.arguments = arguments == null ? new Argument[0] : arguments.clone();
+    }
+
+    public TACACS_PLUS.ACCT.FLAG getFlag() {
+        return flag;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * 序列化为审计缓存文件中的记录:5个枚举代码,3个字符串,参数个数和"attribute=value"形式的参数.
+     * 字符串以2字节长度开头,-1表示null
+     * @return
+     */
+    byte[] encode() {
+        byte[][] strings = new byte[3 + arguments.length][];
+        strings[0] = utf8(user);
+        strings[1] = utf8(port);
+        strings[2] = utf8(remAddr);
+        for (int i = 0; i < arguments.length; i++) {
+            strings[3 + i] = utf8(arguments[i].toString());
+        }
+        int length = 5 + 2;
+        for (byte[] string : strings) {
+            length += 2 + (string == null ? 0 : string.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.put(flag.code()).put(privLvl).put(authenMethod.code()).put(authenType.code()).put(authenService.code());
+        writeUtf8(buf, strings[0]);
+        writeUtf8(buf, strings[1]);
+        writeUtf8(buf, strings[2]);
+        buf.putShort((short) arguments.length);
+        for (int i = 0; i < arguments.length; i++) {
+            writeUtf8(buf, strings[3 + i]);
+        }
+        return buf.array();
+    }
+
+    /**
+     * 从审计缓存文件中读取一条记录
+     * @param buf position位于记录开头,读取后位于记录末尾
+     * @return
+     */
+    static AccountingRecord decode(ByteBuffer buf) {
+        TACACS_PLUS.ACCT.FLAG flag = TACACS_PLUS.ACCT.FLAG.forCode(buf.get());
+        byte privLvl = buf.get();
+        TACACS_PLUS.AUTHEN.METH method = TACACS_PLUS.AUTHEN.METH.forCode(buf.get());
+        TACACS_PLUS.AUTHEN.TYPE type = TACACS_PLUS.AUTHEN.TYPE.forCode(buf.get());
+        TACACS_PLUS.AUTHEN.SVC service = TACACS_PLUS.AUTHEN.SVC.forCode(buf.get());
+        String user = readUtf8(buf);
+        String port = readUtf8(buf);
+        String remAddr = readUtf8(buf);
+        Argument[] arguments = new Argument[buf.getShort() & 0xFFFF];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = new Argument(readUtf8(buf));
+        }
+        return new AccountingRecord(flag, user, port, remAddr, privLvl, method, type, service, arguments);
+    }
+
+    /** 报文中每个字段不超过255字节,这里只保证长度能放入2字节 **/
+    private static byte[] utf8(String s) {
+        if (s == null) {
+            return null;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > Short.MAX_VALUE ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+    }
+
+    private static void writeUtf8(ByteBuffer buf, byte[] string) {
+        buf.putShort((short) (string == null ? -1 : string.length));
+        if (string != null) {
+            buf.put(string);
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buf) {
+        int length = buf.getShort();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountingRecord[" + flag + " user:" + user + " port:" + port + " rem_addr:" + remAddr
+                + " arguments:" + Arrays.toString(arguments) + "]";
+    }
+}
@@ -0,0 +1,453 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.ClientSession;
+import com.venustech.tacacs.protocol.entity.AcctReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * 异步审计发送器.
+ * send只把记录放入有界队列,从不等待服务器响应,队列满时立即返回false;
+ * 后台线程批量取出记录,每条记录使用一个新会话发送,最多maxOutstanding条同时等待响应,
+ * 在单连接模式下这些请求分布在连接池的各个连接上,同一轮写入的请求合并flush.
+ * 会话只使用已经建立的连接:服务器不支持单连接时使用连接池中预先建立的备用连接,连接由时间轮线程补充,
+ * 后台线程从不解析域名或等待TCP握手;没有可用连接时每批记录最多等待一次客户端超时时间,
+ * 之后这一批中剩余的记录不再等待,直接按发送失败处理.
+ * 服务器拒绝单连接时协议要求每个会话结束后关闭连接,每条记录都占用一个备用连接,连接数仍受连接池大小限制.
+ * 发送失败或服务器返回非SUCCESS的记录交给failureListener.
+ * 设置了AccountingSpool时,队列已满和发送失败的记录写入缓存而不是丢弃;缓存中有记录时新记录也写入缓存,
+ * 由另一个后台线程按顺序每次重发一批,整批被服务器接收后才在缓存中确认,因此服务器可能收到重复的记录
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AccountingSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountingSender.class);
+
+    /** 队列为空时后台线程每次等待的时间,用于检查是否已关闭 **/
+    private static final long POLL_MILLIS = 100;
+    /** 重发失败后的等待时间,每次失败加倍 **/
+    private static final long REPLAY_RETRY_MILLIS = 1000;
+    private static final long REPLAY_RETRY_MAX_MILLIS = 30000;
+    /** 缓存写入磁盘的间隔 **/
+    private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+    private final TacacsClient client;
+    private final BlockingQueue<AccountingRecord> queue;
+    private final int maxOutstanding;
+    /** 等待响应的记录数的额度 **/
+    private final Semaphore outstanding;
+    private final Thread dispatcher;
+    /** 服务器不可用或发送过慢时的缓存,可以为null **/
+    private final AccountingSpool spool;
+    private final Thread replayer;
+    /** 在EventLoop中发送失败的记录由这个线程写入缓存,没有缓存时为null **/
+    private final ExecutorService spoolExecutor;
+    private volatile boolean running = true;
+    private volatile BiConsumer<AccountingRecord, Throwable> failureListener = (record, cause) ->
+            logger.warn("TACACS+ accounting record lost: " + record + ": " + cause);
+
+    private final LongAdder acceptedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder spooledCount = new LongAdder();
+    private final LongAdder replayedCount = new LongAdder();
+
+    /**
+     * @param client 已启动的客户端
+     * @param queueCapacity 等待发送的记录数上限
+     * @param maxOutstanding 同时等待响应的记录数上限
+     */
+    public AccountingSender(TacacsClient client, int queueCapacity, int maxOutstanding) {
+        this(client, queueCapacity, maxOutstanding, null);
+    }
+
+    /**
+     * @param client 已启动的客户端
+     * @param queueCapacity 等待发送的记录数上限
+     * @param maxOutstanding 同时等待响应的记录数上限,也是每批重发的记录数
+     * @param spool 保存无法立即发送的记录,由调用方在shutdown之后关闭
+     */
+    public AccountingSender(TacacsClient client, int queueCapacity, int maxOutstanding, AccountingSpool spool) {
+        if (queueCapacity < 1) { throw new IllegalArgumentException("queueCapacity must be at least 1: " + queueCapacity); }
+        if (maxOutstanding < 1) { throw new IllegalArgumentException("maxOutstanding must be at least 1: " + maxOutstanding); }
+        this.client = client;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxOutstanding = maxOutstanding;
+        this.outstanding = new Semaphore(maxOutstanding);
+        this.dispatcher = new DefaultThreadFactory("tacacs-accounting", true).newThread(this::dispatch);
+        this.spool = spool;
+        this.replayer = spool == null ? null : new DefaultThreadFactory("tacacs-accounting-replay", true).newThread(this::replay);
+        this.spoolExecutor = spool == null ? null : Executors.newSingleThreadExecutor(new DefaultThreadFactory("tacacs-accounting-spool", true));
+        this.dispatcher.start();
+        if (replayer != null) {
+            replayer.start();
+        }
+    }
+
+    /**
+     * 设置发送失败时的处理,默认只记录日志;在后台线程或EventLoop中调用,不能阻塞
+     * @param failureListener 参数为失败的记录和原因
+     */
+    public void setFailureListener(BiConsumer<AccountingRecord, Throwable> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * 提交一条审计记录,不阻塞
+     * @param record
+     * @return 队列已满或已关闭时返回false,记录没有被接收
+     */
+    public boolean send(AccountingRecord record) {
+        if (running) {
+            // 缓存中还有记录时新记录排在它们之后
+            if (spool != null && spool.hasPending()) {
+                return spool(record);
+            }
+            if (queue.offer(record)) {
+                acceptedCount.increment();
+                return true;
+            }
+            if (spool != null) {
+                return spool(record);
+            }
+        }
+        droppedCount.increment();
+        return false;
+    }
+
+    /**
+     * 与send相同,但不在调用线程上写入缓存:需要写入缓存的记录交给缓存线程.
+     * 用于时间轮线程和EventLoop等不能执行磁盘I/O的线程
+     * @param record
+     * @return 队列已满并且没有缓存,或已关闭时返回false;缓存已满的记录计入getDroppedCount
+     */
+    boolean offer(final AccountingRecord record) {
+        if (spool == null) {
+            return send(record);
+        }
+        if (running) {
+            if (!spool.hasPending() && queue.offer(record)) {
+                acceptedCount.increment();
+                return true;
+            }
+            try {
+                spoolExecutor.execute(() -> spool(record));
+                return true;
+            } catch (RejectedExecutionException e) {
+                // 已关闭
+            }
+        }
+        droppedCount.increment();
+        return false;
+    }
+
+    private boolean spool(AccountingRecord record) {
+        if (spool.append(record)) {
+            acceptedCount.increment();
+            spooledCount.increment();
+            return true;
+        }
+        droppedCount.increment();
+        return false;
+    }
+
+    public boolean send(TACACS_PLUS.ACCT.FLAG flag, String user, String port, String remAddr, Argument[] arguments) {
+        return send(new AccountingRecord(flag, user, port, remAddr, arguments));
+    }
+
+    /** 当前等待发送的记录数 **/
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /** 已发送但尚未收到响应的记录数 **/
+    public int getOutstanding() {
+        return maxOutstanding - outstanding.availablePermits();
+    }
+
+    /** 累计接收的记录数,包括直接写入缓存的记录 **/
+    public long getAcceptedCount() {
+        return acceptedCount.sum();
+    }
+
+    /** 累计因队列满(没有缓存或缓存已满)或已关闭而没有接收的记录数 **/
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /** 累计服务器返回SUCCESS的记录数,不包括从缓存重发的记录 **/
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /** 累计发送失败并且没有写入缓存的记录数 **/
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /** 累计写入缓存的记录数 **/
+    public long getSpooledCount() {
+        return spooledCount.sum();
+    }
+
+    /** 累计从缓存重发成功的记录数 **/
+    public long getReplayedCount() {
+        return replayedCount.sum();
+    }
+
+    /**
+     * 停止接收新记录,在timeoutMillis内发送完队列中的记录并等待响应;超时后剩余的记录写入缓存或交给failureListener.
+     * 缓存中的记录留到下次启动后重发
+     * @param timeoutMillis
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        running = false;
+        dispatcher.join(Math.max(1, timeoutMillis));
+        dispatcher.interrupt();
+        dispatcher.join();
+        if (replayer != null) {
+            replayer.interrupt();
+            replayer.join();
+        }
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        if (outstanding.tryAcquire(maxOutstanding, remaining, TimeUnit.MILLISECONDS)) {
+            outstanding.release(maxOutstanding);
+        }
+        if (spoolExecutor != null) {
+            spoolExecutor.shutdown();
+            spoolExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        if (spool != null) {
+            try {
+                spool.force();
+            } catch (IOException e) {
+                logger.warn("TACACS+ accounting spool force failed", e);
+            }
+        }
+    }
+
+    private void dispatch() {
+        List<AccountingRecord> batch = new ArrayList<>();
+        try {
+            while (running || !queue.isEmpty()) {
+                AccountingRecord first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxOutstanding - 1);
+                // 每批只等待一次连接,等待超时后剩余的记录直接按失败处理
+                long deadline = System.currentTimeMillis() + client.getTimeoutMillis();
+                boolean connected = true;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (connected) {
+                        outstanding.acquire();
+                        connected = transmit(batch.get(i), deadline);
+                    } else {
+                        fail(batch.get(i), new IOException("No TACACS+ connection available for accounting"));
+                    }
+                    batch.set(i, null);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // 关闭超时,未发送的记录按失败处理
+            IOException cause = new IOException("Accounting sender shut down before the record was sent");
+            for (AccountingRecord record : batch) {
+                if (record != null) {
+                    fail(record, cause);
+                }
+            }
+            AccountingRecord record;
+            while ((record = queue.poll()) != null) {
+                fail(record, cause);
+            }
+        }
+    }
+
+    /**
+     * @param deadline 等待连接的截止时间
+     * @return 截止时间之前没有可用连接时返回false,记录已按失败处理
+     */
+    private boolean transmit(final AccountingRecord record, long deadline) throws InterruptedException {
+        final ClientSession session;
+        try {
+            session = awaitSession(record, deadline);
+        } catch (InterruptedException e) {
+            outstanding.release();
+            throw e;
+        }
+        if (session == null) {
+            outstanding.release();
+            fail(record, new IOException("No TACACS+ connection available for accounting"));
+            return false;
+        }
+        session.accountAsync(record.flag, record.user, record.authenMethod, record.authenType, record.authenService, record.arguments)
+                .whenComplete((AcctReply reply, Throwable cause) -> {
+                    session.close();
+                    if (cause != null && spoolExecutor != null) {
+                        // 在EventLoop中完成,写入缓存可能创建和映射文件,交给缓存线程
+                        spoolLater(record, cause);
+                        return;
+                    }
+                    try {
+                        if (cause != null) {
+                            fail(record, cause);
+                        } else if (!reply.isOK()) {
+                            // 服务器拒绝的记录不写入缓存
+                            failedCount.increment();
+                            notifyFailure(record, new IOException("TACACS+ accounting status " + reply.status + ": " + reply.getServerMsg()));
+                        } else {
+                            sentCount.increment();
+                        }
+                    } finally {
+                        // 计数之后才释放额度,shutdown返回时计数已经完整
+                        outstanding.release();
+                    }
+                });
+        return true;
+    }
+
+    /** 在缓存线程上写入失败的记录,写入之后才释放额度 **/
+    private void spoolLater(final AccountingRecord record, final Throwable cause) {
+        try {
+            spoolExecutor.execute(() -> {
+                try {
+                    fail(record, cause);
+                } finally {
+                    outstanding.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutdown等待超时后缓存线程已经停止
+            failedCount.increment();
+            notifyFailure(record, cause);
+            outstanding.release();
+        }
+    }
+
+    /**
+     * 等待其他线程建立的连接,本线程不发起连接;截止时间已过时只检查一次
+     * @return 截止时间之前没有可用连接时返回null
+     */
+    private ClientSession awaitSession(AccountingRecord record, long deadline) throws InterruptedException {
+        while (true) {
+            ClientSession session = client.pollSession(record.authenService, record.port, record.remAddr, record.privLvl);
+            long remaining = deadline - System.currentTimeMillis();
+            if (session != null || remaining <= 0) {
+                return session;
+            }
+            Thread.sleep(Math.min(remaining, POLL_MILLIS));
+        }
+    }
+
+    private void fail(AccountingRecord record, Throwable cause) {
+        if (spool != null && spool.append(record)) {
+            spooledCount.increment();
+            return;
+        }
+        failedCount.increment();
+        notifyFailure(record, cause);
+    }
+
+    private void notifyFailure(AccountingRecord record, Throwable cause) {
+        try {
+            failureListener.accept(record, cause);
+        } catch (RuntimeException e) {
+            logger.warn("TACACS+ accounting failure listener threw", e);
+        }
+    }
+
+    /** 服务器恢复后按顺序重发缓存中的记录 **/
+    private void replay() {
+        long retryMillis = REPLAY_RETRY_MILLIS;
+        long lastForce = System.currentTimeMillis();
+        while (running) {
+            try {
+                if (System.currentTimeMillis() - lastForce >= FORCE_INTERVAL_MILLIS) {
+                    spool.force();
+                    lastForce = System.currentTimeMillis();
+                }
+                AccountingSpool.Batch batch = spool.peek(maxOutstanding);
+                if (batch == null) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                if (replayBatch(batch)) {
+                    spool.ack(batch);
+                    replayedCount.add(batch.records.size());
+                    retryMillis = REPLAY_RETRY_MILLIS;
+                } else {
+                    Thread.sleep(retryMillis);
+                    retryMillis = Math.min(retryMillis * 2, REPLAY_RETRY_MAX_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("TACACS+ accounting spool replay failed", e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 发送一批记录并等待全部响应
+     * @return 是否全部收到响应
+     */
+    private boolean replayBatch(AccountingSpool.Batch batch) throws InterruptedException {
+        List<AccountingRecord> records = batch.records;
+        CompletableFuture<?>[] replies = new CompletableFuture<?>[records.size()];
+        for (int i = 0; i < replies.length; i++) {
+            AccountingRecord record = records.get(i);
+            ClientSession session = client.pollSession(record.authenService, record.port, record.remAddr, record.privLvl);
+            if (session == null) {
+                logger.debug("TACACS+ accounting replay deferred: no connection available");
+                return false;
+            }
+            replies[i] = session.accountAsync(record.flag, record.user, record.authenMethod, record.authenType, record.authenService, record.arguments)
+                    .whenComplete((reply, cause) -> session.close())
+                    .toCompletableFuture();
+        }
+        try {
+            CompletableFuture.allOf(replies).get();
+        } catch (ExecutionException e) {
+            logger.debug("TACACS+ accounting replay deferred: " + e.getCause());
+            return false;
+        }
+        // 服务器拒绝的记录重发也不会成功,交给failureListener,不阻塞之后的记录
+        for (int i = 0; i < replies.length; i++) {
+            AcctReply reply = (AcctReply) replies[i].join();
+            if (!reply.isOK()) {
+                failedCount.increment();
+                notifyFailure(records.get(i), new IOException("TACACS+ accounting status " + reply.status + ": " + reply.getServerMsg()));
+            }
+        }
+        return true;
+    }
+}
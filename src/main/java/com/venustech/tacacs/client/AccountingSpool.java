@@ -0,0 +1,362 @@
+package com.venustech.tacacs.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 审计记录的本地缓存,服务器不可用或发送过慢时保存审计记录,服务器恢复后由AccountingSender按顺序重发.
+ * 缓存由目录中多个固定大小的内存映射文件组成,只在末尾追加.每个文件开头是16字节的文件头:
+ * 魔数和已确认位置(之前的记录都已被服务器接收);之后每条记录是4字节长度、4字节CRC32和记录内容,长度为0表示文件结束.
+ * 追加时先写CRC和内容,最后写长度;重新打开时从头校验,进程崩溃时写了一半的记录被丢弃.
+ * 记录全部确认的文件被删除,文件个数达到maxSegments时不再接收新记录
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AccountingSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountingSpool.class);
+
+    /** "TASP" **/
+    private static final int MAGIC = 0x54415350;
+    private static final int HEADER_LENGTH = 16;
+    private static final int ACK_OFFSET = 4;
+    private static final int RECORD_OVERHEAD = 8;
+    private static final String PREFIX = "acct-";
+    private static final String SUFFIX = ".spool";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    /** 从旧到新,最后一个是正在追加的文件 **/
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSequence;
+    /** 在锁内修改,hasPending不加锁读取 **/
+    private volatile int pending;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * 打开目录中已有的缓存文件并恢复未确认的记录,目录不存在时创建
+     * @param directory 缓存目录,只能由一个AccountingSpool使用
+     * @param segmentSize 每个文件的字节数
+     * @param maxSegments 文件个数上限,磁盘占用不超过segmentSize * maxSegments
+     * @throws IOException
+     */
+    public AccountingSpool(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_LENGTH + RECORD_OVERHEAD + 1) { throw new IllegalArgumentException("segmentSize too small: " + segmentSize); }
+        if (maxSegments < 1) { throw new IllegalArgumentException("maxSegments must be at least 1: " + maxSegments); }
+        if (!directory.isDirectory() && !directory.mkdirs()) { throw new IOException("Can't create accounting spool directory " + directory); }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) { throw new IOException("Can't list accounting spool directory " + directory); }
+        Arrays.sort(files);
+        for (File file : files) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            Segment segment = Segment.open(file);
+            if (segment == null) {
+                logger.warn("TACACS+ accounting spool file " + file + " is not a spool segment, skipped");
+                continue;
+            }
+            int records = segment.scan(crc);
+            if (records == 0 && segment.ackOffset() >= segment.writeOffset) {
+                segment.delete();
+                continue;
+            }
+            pending += records;
+            segments.add(segment);
+        }
+        if (pending > 0) {
+            logger.info("TACACS+ accounting spool " + directory + " recovered " + pending + " unsent record(s) in " + segments.size() + " file(s)");
+        }
+    }
+
+    /**
+     * 追加一条记录
+     * @param record
+     * @return 缓存已满或已关闭时返回false
+     */
+    public synchronized boolean append(AccountingRecord record) {
+        if (closed) {
+            return false;
+        }
+        byte[] bytes = record.encode();
+        int length = RECORD_OVERHEAD + bytes.length;
+        if (length > segmentSize - HEADER_LENGTH) {
+            logger.warn("TACACS+ accounting record of " + bytes.length + " bytes does not fit a spool segment: " + record);
+            return false;
+        }
+        Segment active = segments.peekLast();
+        if (active == null || active.writeOffset + length > active.map.capacity()) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            try {
+                active = Segment.create(new File(directory, String.format("%s%016d%s", PREFIX, nextSequence, SUFFIX)), segmentSize);
+            } catch (IOException e) {
+                logger.warn("TACACS+ accounting spool can't create a segment in " + directory, e);
+                return false;
+            }
+            nextSequence++;
+            segments.add(active);
+        }
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        MappedByteBuffer map = active.map;
+        int offset = active.writeOffset;
+        map.putInt(offset + 4, (int) crc.getValue());
+        map.position(offset + RECORD_OVERHEAD);
+        map.put(bytes);
+        // 长度最后写入,长度非0的记录内容一定完整
+        map.putInt(offset, bytes.length);
+        active.writeOffset += length;
+        pending++;
+        dirty = true;
+        return true;
+    }
+
+    /** 是否有尚未确认的记录 **/
+    public boolean hasPending() {
+        return pending > 0;
+    }
+
+    /** 尚未确认的记录数 **/
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * 读取最早的未确认记录,不改变已确认位置;一次最多读取一个文件中的记录
+     * @param max 最多读取的记录数
+     * @return 没有未确认的记录时返回null
+     */
+    synchronized Batch peek(int max) {
+        Segment head = segments.peekFirst();
+        if (closed || head == null) {
+            return null;
+        }
+        List<AccountingRecord> records = new ArrayList<>();
+        int offset = head.ackOffset();
+        while (records.size() < max && offset < head.writeOffset) {
+            int length = head.map.getInt(offset);
+            byte[] bytes = new byte[length];
+            head.map.position(offset + RECORD_OVERHEAD);
+            head.map.get(bytes);
+            records.add(AccountingRecord.decode(ByteBuffer.wrap(bytes)));
+            offset += RECORD_OVERHEAD + length;
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
+        return new Batch(head, offset, Collections.unmodifiableList(records));
+    }
+
+    /**
+     * 确认一批记录已被服务器接收;文件中的记录全部确认后删除该文件
+     * @param batch peek返回的一批记录,必须按顺序确认
+     */
+    synchronized void ack(Batch batch) {
+        Segment head = segments.peekFirst();
+        if (closed || head != batch.segment || head.ackOffset() >= batch.endOffset) {
+            return;
+        }
+        int acked = batch.records.size();
+        head.map.putInt(ACK_OFFSET, batch.endOffset);
+        pending -= acked;
+        dirty = true;
+        if (batch.endOffset >= head.writeOffset) {
+            // 正在追加的文件全部确认后也删除,下一条记录创建新文件
+            segments.pollFirst();
+            head.delete();
+        }
+    }
+
+    /**
+     * 把修改写入磁盘.进程崩溃时已追加的记录仍在操作系统的页缓存中,只有掉电时会丢失最近一次force之后的记录
+     * @throws IOException
+     */
+    public synchronized void force() throws IOException {
+        if (!dirty || closed) {
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.map.force();
+        }
+        dirty = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        for (Segment segment : segments) {
+            segment.channel.close();
+            unmap(segment.map);
+        }
+        segments.clear();
+    }
+
+    /**
+     * 立即释放内存映射,之后不能再访问map.
+     * Java 9及以上通过sun.misc.Unsafe.invokeCleaner,Java 8通过DirectBuffer.cleaner();都不可用时留给GC回收
+     */
+    static void unmap(MappedByteBuffer map) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = map.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(map);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), map);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Can't unmap accounting spool file, leaving it to GC", e);
+        }
+    }
+
+    /** 从一个文件中读出的连续记录 **/
+    static final class Batch {
+        final List<AccountingRecord> records;
+        private final Segment segment;
+        private final int endOffset;
+
+        Batch(Segment segment, int endOffset, List<AccountingRecord> records) {
+            this.segment = segment;
+            this.endOffset = endOffset;
+            this.records = records;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int writeOffset = HEADER_LENGTH;
+
+        private Segment(File file, FileChannel channel, MappedByteBuffer map) {
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(0, MAGIC);
+            map.putInt(ACK_OFFSET, HEADER_LENGTH);
+            return new Segment(file, channel, map);
+        }
+
+        /** 文件不是缓存文件时返回null **/
+        static Segment open(File file) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                channel.close();
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (map.getInt(0) != MAGIC) {
+                channel.close();
+                unmap(map);
+                return null;
+            }
+            return new Segment(file, channel, map);
+        }
+
+        int ackOffset() {
+            return map.getInt(ACK_OFFSET);
+        }
+
+        /**
+         * 校验所有记录,确定追加位置;CRC不一致的记录及其之后的内容被视为没有写完
+         * @return 已确认位置之后的记录数
+         */
+        int scan(CRC32 crc) {
+            int capacity = map.capacity();
+            int ack = ackOffset();
+            int offset = HEADER_LENGTH;
+            int records = 0;
+            while (offset + RECORD_OVERHEAD <= capacity) {
+                int length = map.getInt(offset);
+                if (length <= 0 || offset + RECORD_OVERHEAD + length > capacity) {
+                    break;
+                }
+                ByteBuffer content = map.duplicate();
+                content.position(offset + RECORD_OVERHEAD).limit(offset + RECORD_OVERHEAD + length);
+                crc.reset();
+                crc.update(content);
+                if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                    break;
+                }
+                if (offset >= ack) {
+                    records++;
+                }
+                offset += RECORD_OVERHEAD + length;
+            }
+            // 丢弃写了一半的记录,之后从这里继续追加
+            for (int i = offset; i < Math.min(capacity, offset + RECORD_OVERHEAD); i++) {
+                map.put(i, (byte) 0);
+            }
+            writeOffset = offset;
+            if (ack < HEADER_LENGTH || ack > offset) {
+                map.putInt(ACK_OFFSET, Math.min(Math.max(ack, HEADER_LENGTH), offset));
+            }
+            return records;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Closing accounting spool file " + file, e);
+            }
+            // 不等待GC回收映射,否则已删除文件的磁盘空间和虚拟地址空间一直被占用;Windows上映射中的文件也不能删除
+            unmap(map);
+            if (!file.delete()) {
+                logger.warn("Can't delete accounting spool file " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 长时间在线会话的周期性WATCHDOG(中间)审计.
+ * 一个审计周期被分成若干个槽,每个会话开始时随机分到一个槽,之后每个周期在该槽到期时发送一条WATCHDOG记录,
+ * 使中间记录均匀分布在整个周期内,不会在同一时刻集中发给服务器.
+ * 所有会话共享客户端的时间轮上的一个定时任务,每个槽到期时把槽中所有会话的记录一起交给AccountingSender,
+ * 由AccountingSender批量发送,同一轮写入同一连接的请求合并flush
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AccountingWatchdog {
+
+    private final AccountingSender sender;
+    private final Timer timer;
+    private final long intervalMillis;
+    /** 槽的长度,向上取整;槽的到期时间按slotDeadline计算,不累积取整误差 **/
+    private final long slotMillis;
+    /** 每个槽中的会话 **/
+    private final List<Set<Task>> slots;
+    private final long startMillis;
+    private final AtomicLong tick = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Timeout timeout;
+
+    private final LongAdder watchdogCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * @param client 使用客户端的时间轮
+     * @param sender 发送审计记录
+     * @param intervalMillis 同一会话两条WATCHDOG记录的间隔
+     * @param slots 周期被分成的槽数,越多记录分布越均匀
+     */
+    public AccountingWatchdog(TacacsClient client, AccountingSender sender, long intervalMillis, int slots) {
+        if (slots < 1) { throw new IllegalArgumentException("slots must be at least 1: " + slots); }
+        if (intervalMillis < slots) { throw new IllegalArgumentException("intervalMillis must be at least the number of slots: " + intervalMillis); }
+        this.sender = sender;
+        this.timer = client.getTimer();
+        this.intervalMillis = intervalMillis;
+        this.slotMillis = (intervalMillis + slots - 1) / slots;
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(ConcurrentHashMap.newKeySet());
+        }
+        this.startMillis = System.currentTimeMillis();
+        this.timeout = timer.newTimeout(this::run, Math.max(0, slotDeadline(1) - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /** 正在跟踪的会话数 **/
+    public int getTaskCount() {
+        int count = 0;
+        for (Set<Task> slot : slots) {
+            count += slot.size();
+        }
+        return count;
+    }
+
+    /** 累计交给AccountingSender的WATCHDOG记录数 **/
+    public long getWatchdogCount() {
+        return watchdogCount.sum();
+    }
+
+    /** 累计因AccountingSender队列满而没有发送的记录数 **/
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 发送START记录并开始周期性发送WATCHDOG记录
+     * @param taskId 会话的task_id,START、WATCHDOG和STOP记录中相同
+     * @param user
+     * @param port
+     * @param remAddr
+     * @param arguments 每条记录都带的其他参数,如service、protocol
+     * @return 用于更新流量计数和结束会话
+     */
+    public Task start(String taskId, String user, String port, String remAddr, Argument... arguments) {
+        Task task = new Task(taskId, user, port, remAddr, arguments, ThreadLocalRandom.current().nextInt(slots.size()));
+        submit(task.record(TACACS_PLUS.ACCT.FLAG.START, System.currentTimeMillis()));
+        if (!closed.get()) {
+            slots.get(task.slot).add(task);
+        }
+        return task;
+    }
+
+    /**
+     * 停止定时任务;已跟踪的会话不再发送WATCHDOG记录,调用Task.stop仍然发送STOP记录
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            timeout.cancel();
+            for (Set<Task> slot : slots) {
+                slot.clear();
+            }
+        }
+    }
+
+    /** 时间轮到期:处理当前槽并按开始时间安排下一个槽,避免误差累积 **/
+    private void run(Timeout expired) {
+        if (closed.get()) {
+            return;
+        }
+        long current = tick.getAndIncrement();
+        long now = System.currentTimeMillis();
+        for (Task task : slots.get((int) (current % slots.size()))) {
+            // 开始不满一个周期的会话等到下一个周期
+            if (!task.stopped.get() && now - task.startMillis >= intervalMillis - slotMillis) {
+                submit(task.record(TACACS_PLUS.ACCT.FLAG.WATCHDOG, now));
+                watchdogCount.increment();
+            }
+        }
+        long next = slotDeadline(current + 2);
+        timeout = timer.newTimeout(this::run, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (closed.get()) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 第tick个槽的到期时间;余数分散到各个槽中,slots个槽正好是一个周期
+     */
+    long slotDeadline(long tick) {
+        return startMillis + tick * intervalMillis / slots.size();
+    }
+
+    /** 在时间轮线程上调用,AccountingSender.offer不在调用线程上写缓存 **/
+    private void submit(AccountingRecord record) {
+        if (!sender.offer(record)) {
+            droppedCount.increment();
+        }
+    }
+
+    /** 一个被跟踪的会话 **/
+    public final class Task {
+
+        private final String taskId;
+        private final String user;
+        private final String port;
+        private final String remAddr;
+        private final Argument[] arguments;
+        private final int slot;
+        private final long startMillis = System.currentTimeMillis();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+
+        private Task(String taskId, String user, String port, String remAddr, Argument[] arguments, int slot) {
+            this.taskId = taskId;
+            this.user = user;
+            this.port = port;
+            this.remAddr = remAddr;
+            this.arguments = arguments == null ? new Argument[0] : arguments.clone();
+            this.slot = slot;
+        }
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        /** 累加流量计数 **/
+        public void addBytes(long in, long out) {
+            bytesIn.addAndGet(in);
+            bytesOut.addAndGet(out);
+        }
+
+        /**
+         * 停止发送WATCHDOG记录并发送STOP记录,只有第一次调用有效
+         */
+        public void stop() {
+            if (stopped.compareAndSet(false, true)) {
+                slots.get(slot).remove(this);
+                submit(record(TACACS_PLUS.ACCT.FLAG.STOP, System.currentTimeMillis()));
+            }
+        }
+
+        private AccountingRecord record(TACACS_PLUS.ACCT.FLAG flag, long now) {
+            boolean start = flag == TACACS_PLUS.ACCT.FLAG.START;
+            boolean stop = flag == TACACS_PLUS.ACCT.FLAG.STOP;
+            Argument[] args = new Argument[arguments.length + (start ? 2 : stop ? 6 : 5)];
+            int i = 0;
+            args[i++] = new Argument("task_id", taskId, false);
+            args[i++] = new Argument("start_time", Long.toString(startMillis / 1000), false);
+            if (!start) {
+                if (stop) {
+                    args[i++] = new Argument("stop_time", Long.toString(now / 1000), false);
+                }
+                args[i++] = new Argument("elapsed_time", Long.toString((now - startMillis) / 1000), false);
+                args[i++] = new Argument("bytes_in", Long.toString(bytesIn.get()), false);
+                args[i++] = new Argument("bytes_out", Long.toString(bytesOut.get()), false);
+            }
+            System.arraycopy(arguments, 0, args, i, arguments.length);
+            return new AccountingRecord(flag, user, port, remAddr, args);
+        }
+    }
+}
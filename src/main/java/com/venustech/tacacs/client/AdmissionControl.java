@@ -0,0 +1,209 @@
+package com.venustech.tacacs.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端的请求准入控制.
+ * 整个客户端待响应的请求数不超过maxInFlight,每个连接不超过maxInFlightPerConnection,
+ * 并且只向可写(出站缓冲区低于高水位)的连接发送;超出的请求进入有界的等待队列,队列满时以TacacsOverloadException立即失败.
+ * 每个连接有各自的等待队列,一个连接没有余量时不影响其他连接上等待的请求;同一连接上的请求按顺序发送,
+ * 整个客户端的额度不足时各连接轮流发送.在队列中超时的请求立即移出队列,不会发送
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AdmissionControl {
+
+    private volatile int maxInFlight = Integer.MAX_VALUE;
+    private volatile int maxInFlightPerConnection = Integer.MAX_VALUE;
+    private volatile int maxQueued = 65536;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    /** 等待队列不为空的连接,按轮转顺序排列 **/
+    private final Queue<TacacsMessageHandler> backlogged = new ConcurrentLinkedQueue<>();
+    /** 同一时间只有一个线程从队列中取出请求,其他线程只增加计数,由正在处理的线程再处理一轮 **/
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    private final LongAdder admittedCount = new LongAdder();
+    private final LongAdder queuedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    AdmissionControl() {}
+
+    void setMaxInFlight(int maxInFlight, int maxQueued) {
+        if (maxInFlight < 1) { throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight); }
+        if (maxQueued < 0) { throw new IllegalArgumentException("maxQueued must not be negative: " + maxQueued); }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    void setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+        if (maxInFlightPerConnection < 1) { throw new IllegalArgumentException("maxInFlightPerConnection must be at least 1: " + maxInFlightPerConnection); }
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+    }
+
+    int getMaxInFlightPerConnection() {
+        return maxInFlightPerConnection;
+    }
+
+    /** 已发送但尚未结束的请求数 **/
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** 当前在等待队列中的请求数 **/
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /** 累计直接发送的请求数 **/
+    public long getAdmittedCount() {
+        return admittedCount.sum();
+    }
+
+    /** 累计进入等待队列的请求数 **/
+    public long getQueuedCount() {
+        return queuedCount.sum();
+    }
+
+    /** 累计因过载被拒绝的请求数 **/
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * 立即在handler上发送请求,或者放入等待队列,或者以TacacsOverloadException结束
+     * @param handler 会话绑定的连接
+     * @param tacacsFuture 已设置超时的请求
+     */
+    void submit(TacacsMessageHandler handler, TacacsFuture tacacsFuture) {
+        // 有请求在排队时新请求不能插队
+        if (queued.get() == 0 && reserve(handler)) {
+            admittedCount.increment();
+            send(handler, tacacsFuture);
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejectedCount.increment();
+            tacacsFuture.fail(new TacacsOverloadException("Too many TACACS+ requests in flight: " + inFlight.get()
+                    + " in flight, " + maxQueued + " queued"));
+            return;
+        }
+        queuedCount.increment();
+        handler.waiting.add(tacacsFuture);
+        if (handler.backlogged.compareAndSet(false, true)) {
+            backlogged.add(handler);
+        }
+        drain();
+    }
+
+    /**
+     * 请求在队列中超时,立即移出队列
+     * @param handler
+     * @param tacacsFuture
+     */
+    void cancel(TacacsMessageHandler handler, TacacsFuture tacacsFuture) {
+        // 与drainQueue的poll互斥,只有成功移出的一方减少计数
+        if (handler.waiting.remove(tacacsFuture)) {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * 有请求结束或者连接重新变为可写时调用,按顺序发送等待中的请求
+     */
+    void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drainQueue();
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /** 各连接轮流发送一个请求,直到所有等待的连接都没有余量或整个客户端的额度用完 **/
+    private void drainQueue() {
+        int stalled = 0;
+        TacacsMessageHandler handler;
+        while ((handler = backlogged.peek()) != null) {
+            TacacsFuture head;
+            while ((head = handler.waiting.peek()) != null && head.isDone()) {
+                if (handler.waiting.remove(head)) {
+                    queued.decrementAndGet();
+                }
+            }
+            if (head == null) {
+                backlogged.poll();
+                handler.backlogged.set(false);
+                // 移除之后新加入的请求由submit重新登记,这里再检查一次避免遗漏
+                if (!handler.waiting.isEmpty() && handler.backlogged.compareAndSet(false, true)) {
+                    backlogged.add(handler);
+                }
+                continue;
+            }
+            if (!handler.tryReserve()) {
+                if (++stalled >= backlogged.size()) {
+                    return;
+                }
+                backlogged.add(backlogged.poll());
+                continue;
+            }
+            if (!tryAcquire()) {
+                handler.admitted.decrementAndGet();
+                return;
+            }
+            stalled = 0;
+            backlogged.add(backlogged.poll());
+            if (handler.waiting.remove(head)) {
+                queued.decrementAndGet();
+                send(handler, head);
+            } else {
+                // 刚刚超时并被cancel移出
+                handler.admitted.decrementAndGet();
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /** 依次占用连接和整个客户端的额度,任一个不足时都不占用 **/
+    private boolean reserve(TacacsMessageHandler handler) {
+        if (!handler.tryReserve()) {
+            return false;
+        }
+        if (tryAcquire()) {
+            return true;
+        }
+        handler.admitted.decrementAndGet();
+        return false;
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** 请求结束(响应、超时、失败)时归还额度 **/
+    private void send(TacacsMessageHandler handler, TacacsFuture tacacsFuture) {
+        tacacsFuture.toCompletionStage().whenComplete((packet, cause) -> {
+            handler.admitted.decrementAndGet();
+            inFlight.decrementAndGet();
+            drain();
+        });
+        if (!tacacsFuture.isDone()) {
+            handler.resend(tacacsFuture);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的无锁报文跟踪环形缓冲区,代替逐个报文的INFO日志.
+ * 每个报文只记录类型、序列号、sessionID、标志、主体长度、状态和时间,不记录用户名、密码等报文内容;
+ * 记录时不分配内存,写满后覆盖最早的记录.可以随时导出最近的记录,连接出错时自动写入日志
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class PacketTrace {
+
+    /** 报文方向 **/
+    static final int OUT = 0;
+    static final int IN = 1;
+
+    /** 每条记录占用的long个数:时间,sessionID+报头字段,主体长度+状态 **/
+    private static final int FIELDS = 3;
+
+    private final int mask;
+    /** 每个槽位的版本:正数为写入该槽位的记录序号+1,-1表示正在写入 **/
+    private final AtomicLongArray versions;
+    private final AtomicLongArray records;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * @param capacity 保留的记录数,向上取整为2的幂;0表示不记录
+     */
+    public PacketTrace(int capacity) {
+        if (capacity < 0) { throw new IllegalArgumentException("capacity must not be negative: " + capacity); }
+        int size = capacity <= 1 ? capacity : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.versions = new AtomicLongArray(size);
+        this.records = new AtomicLongArray(size * FIELDS);
+    }
+
+    public boolean isEnabled() {
+        return mask >= 0;
+    }
+
+    /** 保留的记录数 **/
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 记录一个报文,可以在任意线程中调用
+     * @param direction OUT或IN
+     * @param header 报文头
+     * @param bodyLength 主体长度
+     * @param status 响应的状态码,请求为0
+     */
+    void record(int direction, Header header, int bodyLength, byte status) {
+        if (mask < 0) {
+            return;
+        }
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int base = slot * FIELDS;
+        // 先标记为写入中,读取方据此丢弃被并发覆盖的记录
+        versions.set(slot, -1);
+        records.lazySet(base, System.currentTimeMillis());
+        records.lazySet(base + 1, ((long) header.getSessionIDValue() << 32)
+                | (direction & 0xFF) << 24 | (header.type.code() & 0xFF) << 16
+                | (header.getSeqNum() & 0xFF) << 8 | (header.getFlags() & 0xFF));
+        records.lazySet(base + 2, ((long) bodyLength << 32) | (status & 0xFF));
+        versions.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * 导出最近的记录,从旧到新每行一条
+     * @param limit 最多导出的记录数
+     * @param redact 为true时只保留sessionID的低16位
+     * @return
+     */
+    public String dump(int limit, boolean redact) {
+        StringBuilder sb = new StringBuilder();
+        long end = cursor.get();
+        long start = Math.max(0, end - Math.min(limit, capacity()));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            int base = slot * FIELDS;
+            long before = versions.get(slot);
+            long time = records.get(base);
+            long packed = records.get(base + 1);
+            long sizes = records.get(base + 2);
+            if (before != sequence + 1 || versions.get(slot) != before) {
+                continue; // 正在写入或已被覆盖
+            }
+            int sessionId = (int) (packed >>> 32);
+            int direction = (int) (packed >>> 24) & 0xFF;
+            TACACS_PLUS.PACKET.TYPE type = TACACS_PLUS.PACKET.TYPE.forCode((byte) (packed >>> 16));
+            sb.append(format.format(new Date(time)))
+                    .append(direction == OUT ? " OUT " : " IN  ")
+                    .append(type)
+                    .append(" session=").append(redact ? String.format("****%04x", sessionId & 0xFFFF) : String.format("%08x", sessionId))
+                    .append(" seq=").append((packed >>> 8) & 0xFF)
+                    .append(" flags=0x").append(Integer.toHexString((int) packed & 0xFF))
+                    .append(" body=").append(sizes >>> 32);
+            if (direction == IN) {
+                sb.append(" status=").append(sizes & 0xFF);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump(Integer.MAX_VALUE, true);
+    }
+}
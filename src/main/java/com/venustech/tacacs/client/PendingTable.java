@@ -0,0 +1,196 @@
+package com.venustech.tacacs.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 待响应请求表,以报头中32位的sessionID为键.
+ * 按sessionID的散列值分段加锁,每段是一个int键的开放地址(线性探测)散列表,
+ * 查找和删除时不需要创建键对象
+ * @author zhangxin
+ * 2018/8/29
+ */
+final class PendingTable {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final AtomicInteger size = new AtomicInteger();
+
+    PendingTable() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /** sessionID本身是随机数,这里再打散一次,高位选段,低位定位槽 **/
+    private static int hash(int sessionId) {
+        return sessionId * 0x9E3779B9;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * @return 原来的值,没有时返回null
+     */
+    TacacsFuture put(int sessionId, TacacsFuture future) {
+        int h = hash(sessionId);
+        TacacsFuture previous = segmentFor(h).put(sessionId, h, future, true);
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        return previous;
+    }
+
+    /**
+     * 仅当没有该sessionID时放入
+     * @return 已有的值,放入成功时返回null
+     */
+    TacacsFuture putIfAbsent(int sessionId, TacacsFuture future) {
+        int h = hash(sessionId);
+        TacacsFuture previous = segmentFor(h).put(sessionId, h, future, false);
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        return previous;
+    }
+
+    TacacsFuture get(int sessionId) {
+        int h = hash(sessionId);
+        return segmentFor(h).get(sessionId, h);
+    }
+
+    /**
+     * 仅当当前值就是expected时删除
+     * @return 是否删除成功;成功删除的一方负责完成该TacacsFuture
+     */
+    boolean remove(int sessionId, TacacsFuture expected) {
+        int h = hash(sessionId);
+        boolean removed = segmentFor(h).remove(sessionId, h, expected);
+        if (removed) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * 移除并返回所有待响应请求,连接断开时使用
+     */
+    List<TacacsFuture> removeAll() {
+        List<TacacsFuture> removed = new ArrayList<>();
+        for (Segment segment : segments) {
+            size.addAndGet(-segment.drainTo(removed));
+        }
+        return removed;
+    }
+
+    private static final class Segment {
+
+        private int[] keys = new int[INITIAL_CAPACITY];
+        private TacacsFuture[] values = new TacacsFuture[INITIAL_CAPACITY];
+        private int count;
+
+        synchronized TacacsFuture put(int key, int h, TacacsFuture value, boolean replace) {
+            if ((count + 1) * 2 > values.length) {
+                resize(values.length * 2);
+            }
+            int mask = values.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                TacacsFuture current = values[i];
+                if (current == null) {
+                    keys[i] = key;
+                    values[i] = value;
+                    count++;
+                    return null;
+                }
+                if (keys[i] == key) {
+                    if (replace) {
+                        values[i] = value;
+                    }
+                    return current;
+                }
+            }
+        }
+
+        synchronized TacacsFuture get(int key, int h) {
+            int mask = values.length - 1;
+            for (int i = h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized boolean remove(int key, int h, TacacsFuture expected) {
+            int mask = values.length - 1;
+            for (int i = h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    if (values[i] != expected) {
+                        return false;
+                    }
+                    delete(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** 删除槽i,并把后续探测链上的元素前移,保证查找不会提前遇到空槽 **/
+        private void delete(int i) {
+            int mask = values.length - 1;
+            values[i] = null;
+            count--;
+            int gap = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                // j的理想位置不在(gap, j]区间内时,可以移到gap
+                boolean movable = gap <= j ? (home <= gap || home > j) : (home <= gap && home > j);
+                if (movable) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    values[j] = null;
+                    gap = j;
+                }
+            }
+        }
+
+        synchronized int drainTo(List<TacacsFuture> removed) {
+            int drained = count;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    removed.add(values[i]);
+                    values[i] = null;
+                }
+            }
+            count = 0;
+            return drained;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            TacacsFuture[] oldValues = values;
+            keys = new int[capacity];
+            values = new TacacsFuture[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
@@ -1,21 +1,41 @@
 package com.venustech.tacacs.client;
 
 import com.venustech.tacacs.UserInterface;
+import com.venustech.tacacs.protocol.AuthenticationCache;
+import com.venustech.tacacs.protocol.AuthorizationCache;
+import com.venustech.tacacs.protocol.AuthorizationCoalescer;
 import com.venustech.tacacs.protocol.ClientSession;
 import com.venustech.tacacs.protocol.entity.AuthenReply;
 import com.venustech.tacacs.protocol.entity.AuthorReply;
 import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Packet;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,11 +47,16 @@ import java.util.concurrent.locks.ReentrantLock;
 public class TacacsClient {
 
 
-    private String host, key;
-    private int port;
+    /** Netty默认的出站缓冲区低水位 **/
+    private static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+
+    /** 按优先级排列的服务器列表 **/
+    private final List<TacacsServer> servers;
     private final int timeoutMillis;
     final boolean singleConnect;
     final boolean unencrypted;
+    /** 每个服务器维持的连接数 **/
+    private final int poolSize;
 
     /**
      * 通过加锁方式获取TacacsMessageHandler,
@@ -41,35 +66,65 @@ public class TacacsClient {
     private Condition connected = lock.newCondition();
 
     private EventLoopGroup eventLoopGroup = null;
-
-    private TacacsMessageHandler tacacsMessageHandler = null;
+    /** 外部传入的EventLoopGroup由调用方负责关闭 **/
+    private boolean sharedEventLoopGroup = false;
+    /** 自建EventLoopGroup的线程数,0表示使用Netty的默认值(2*CPU核数) **/
+    private int ioThreads = 0;
+    /** 在Linux上使用epoll原生传输 **/
+    private boolean nativeTransport = false;
+
+    /** 所有连接共享一个时间轮,每个请求只在时间轮中登记一个超时项,而不是各自创建定时任务 **/
+    private Timer timer = null;
+    /** 外部传入的时间轮由调用方负责停止 **/
+    private boolean sharedTimer = false;
+
+    /** 重连退避的初始值和上限 **/
+    private volatile long reconnectBaseMillis = 100;
+    private volatile long reconnectMaxMillis = 30000;
+    /** 连接断开时是否在其他连接上重发幂等的请求(授权) **/
+    private volatile boolean replayIdempotent = false;
+    private volatile boolean closed = false;
+
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    /** 最近收发报文的跟踪记录 **/
+    private volatile PacketTrace packetTrace = new PacketTrace(1024);
+    /** 新会话使用的授权结果缓存,默认不缓存 **/
+    private volatile AuthorizationCache authorizationCache;
+    /** 新会话使用的PAP认证结果缓存,默认不缓存 **/
+    private volatile AuthenticationCache authenticationCache;
+    /** 新会话共享的授权请求合并,默认不合并 **/
+    private volatile AuthorizationCoalescer authorizationCoalescer;
+    /** 出站缓冲区的高低水位,0表示使用Netty的默认值 **/
+    private int writeBufferLowWaterMark = 0;
+    private int writeBufferHighWaterMark = 0;
 
     private Logger logger = LoggerFactory.getLogger(TacacsClient.class);
 
-    public TacacsClient(String host, String key, int timeoutMillis, boolean singleConnect, boolean unencrypted){
+    /**
+     *
+     * @param servers 按优先级排列的服务器列表,每个服务器有各自的地址和密钥
+     * @param timeoutMillis 建立连接的超时时间,同时也是请求的默认超时时间
+     * @param singleConnect
+     * @param unencrypted
+     * @param poolSize 每个服务器的连接数,新的ClientSession绑定到待响应请求最少的连接上
+     */
+    public TacacsClient(List<TacacsServer> servers, int timeoutMillis, boolean singleConnect, boolean unencrypted, int poolSize){
 
+        if (servers == null || servers.isEmpty()) { throw new IllegalArgumentException("At least one TACACS+ server is required"); }
+        if (poolSize < 1) { throw new IllegalArgumentException("poolSize must be at least 1: " + poolSize); }
+        this.servers = new ArrayList<>(servers);
+        this.poolSize = poolSize;
         this.timeoutMillis = timeoutMillis;
-        this.key = key;
-        this.host = host;
         this.singleConnect = singleConnect;
         this.unencrypted = unencrypted;
+    }
 
-            try {
+    public TacacsClient(String host, String key, int timeoutMillis, boolean singleConnect, boolean unencrypted, int poolSize){
+        this(Collections.singletonList(new TacacsServer(host, key)), timeoutMillis, singleConnect, unencrypted, poolSize);
+    }
 
-                URI uri = new URI("http://" + host);
-                host = uri.getHost();
-                port = uri.getPort();
-                if(port == -1) {
-                    logger.info("TACACS+: No port assigned for host, \""+host+"\".  " +
-                            "Using default port 49 instead.");
-                    port = TacacsMessageHandler.PORT_TACACS;
-                }
-            }
-            catch (URISyntaxException e) {
-                logger.info("TACACS+: Bad port assigned for host, \""+host+"\".  " +
-                        "Using default port 49 instead.");
-                port = TacacsMessageHandler.PORT_TACACS;
-            }
+    public TacacsClient(String host, String key, int timeoutMillis, boolean singleConnect, boolean unencrypted){
+        this(host, key, timeoutMillis, singleConnect, unencrypted, 1);
     }
 
     public TacacsClient(String host, String key, int timeoutMillis, boolean singleConnect) {
@@ -80,33 +135,346 @@ public class TacacsClient {
         this(host, key, 5000, false);
     }
 
+    public List<TacacsServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = newTimer();
+        }
+        return timer;
+    }
+
+    /**
+     * 使用外部共享的时间轮,多个TacacsClient可以共用同一个时间轮线程;
+     * 必须在建立连接之前调用,shutdown时不会停止该时间轮
+     * @param timer 可以通过newTimer创建
+     */
+    public synchronized void setTimer(Timer timer) {
+        if (this.timer != null) { throw new IllegalStateException("Timer already in use"); }
+        this.timer = timer;
+        this.sharedTimer = true;
+    }
+
+    /**
+     * 创建可供多个TacacsClient共享的时间轮,精度10毫秒,使用一个守护线程
+     * @return
+     */
+    public static Timer newTimer() {
+        return new HashedWheelTimer(new DefaultThreadFactory("tacacs-timeout", true), 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 连接断开后重连的退避时间:第n次重连前等待min(maxMillis, baseMillis*2^n)乘以0.5~1之间的随机数
+     * @param baseMillis
+     * @param maxMillis
+     */
+    public void setReconnectBackoff(long baseMillis, long maxMillis) {
+        this.reconnectBaseMillis = baseMillis;
+        this.reconnectMaxMillis = maxMillis;
+    }
+
+    /**
+     * 连接断开时,未收到响应的授权请求是否在其他可用连接上重发;
+     * 其他请求总是以TacacsConnectionException结束
+     * @param replayIdempotent
+     */
+    public void setReplayIdempotent(boolean replayIdempotent) {
+        this.replayIdempotent = replayIdempotent;
+    }
+
+    /**
+     * 限制整个客户端待响应的请求数,超出的请求最多排队maxQueued个,队列满时以TacacsOverloadException立即失败
+     * @param maxInFlight
+     * @param maxQueued 0表示不排队
+     */
+    public void setMaxInFlight(int maxInFlight, int maxQueued) {
+        admissionControl.setMaxInFlight(maxInFlight, maxQueued);
+    }
+
+    /**
+     * 限制每个连接待响应的请求数,超出的请求与setMaxInFlight共用等待队列
+     * @param maxInFlightPerConnection
+     */
+    public void setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+        admissionControl.setMaxInFlightPerConnection(maxInFlightPerConnection);
+    }
+
+    /**
+     * 连接出站缓冲区的高低水位,超过高水位时不再向该连接发送请求,降到低水位以下时恢复;必须在建立连接之前调用
+     * @param lowWaterMark
+     * @param highWaterMark
+     */
+    public synchronized void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("Invalid write buffer water marks: low " + lowWaterMark + ", high " + highWaterMark);
+        }
+        this.writeBufferLowWaterMark = lowWaterMark;
+        this.writeBufferHighWaterMark = highWaterMark;
+    }
+
+    /**
+     * 设置报文跟踪保留的记录数,0表示关闭跟踪;只对之后建立的连接生效
+     * @param capacity
+     */
+    public void setPacketTraceCapacity(int capacity) {
+        this.packetTrace = new PacketTrace(capacity);
+    }
+
+    /** 最近收发报文的跟踪记录,可以通过dump导出 **/
+    public PacketTrace getPacketTrace() {
+        return packetTrace;
+    }
+
+    /**
+     * 设置之后创建的会话使用的授权结果缓存,为null时不缓存
+     * @param authorizationCache
+     */
+    public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+        this.authorizationCache = authorizationCache;
+    }
+
+    public AuthorizationCache getAuthorizationCache() {
+        return authorizationCache;
+    }
+
+    /**
+     * 设置之后创建的会话使用的PAP认证结果缓存,为null时不缓存
+     * @param authenticationCache
+     */
+    public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+        this.authenticationCache = authenticationCache;
+    }
+
+    public AuthenticationCache getAuthenticationCache() {
+        return authenticationCache;
+    }
+
+    /**
+     * 之后创建的会话是否合并并发的相同授权请求:只有第一个请求发送到服务器,其他请求等待它的响应
+     * @param coalesce
+     */
+    public synchronized void setAuthorizationCoalescing(boolean coalesce) {
+        if (!coalesce) {
+            this.authorizationCoalescer = null;
+        } else if (this.authorizationCoalescer == null) {
+            this.authorizationCoalescer = new AuthorizationCoalescer();
+        }
+    }
+
+    /** 授权请求合并的计数,没有开启时返回null **/
+    public AuthorizationCoalescer getAuthorizationCoalescer() {
+        return authorizationCoalescer;
+    }
+
+    /** 准入控制的计数,用于监控 **/
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * 使用外部共享的EventLoopGroup,多个TacacsClient可以共用同一组IO线程;
+     * 必须在建立连接之前调用,shutdown时不会关闭该EventLoopGroup
+     * @param eventLoopGroup NioEventLoopGroup或EpollEventLoopGroup,可以通过newEventLoopGroup创建
+     */
+    public synchronized void setEventLoopGroup(EventLoopGroup eventLoopGroup) {
+        if (this.eventLoopGroup != null) { throw new IllegalStateException("EventLoopGroup already in use"); }
+        this.eventLoopGroup = eventLoopGroup;
+        this.sharedEventLoopGroup = true;
+    }
+
+    /**
+     * 自建EventLoopGroup的线程数,必须在建立连接之前调用
+     * @param ioThreads 0表示使用Netty的默认值
+     */
+    public synchronized void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * 自建EventLoopGroup时是否使用epoll原生传输,不可用时退回NIO;必须在建立连接之前调用
+     * @param nativeTransport
+     */
+    public synchronized void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    /**
+     * 创建可供多个TacacsClient共享的EventLoopGroup
+     * @param threads 0表示使用Netty的默认值
+     * @param nativeTransport 为true且epoll可用时创建EpollEventLoopGroup,否则创建NioEventLoopGroup
+     * @return
+     */
+    public static EventLoopGroup newEventLoopGroup(int threads, boolean nativeTransport) {
+        // epoll传输直接读写堆外内存地址,在无法使用Unsafe的JVM上不可用
+        return newEventLoopGroup(threads, nativeTransport, Epoll.isAvailable() && PlatformDependent.hasUnsafe());
+    }
+
+    /**
+     * @param epollAvailable 当前平台能否使用epoll原生传输
+     */
+    static EventLoopGroup newEventLoopGroup(int threads, boolean nativeTransport, boolean epollAvailable) {
+        ThreadFactory threadFactory = new DefaultThreadFactory("tacacs-io");
+        if (nativeTransport) {
+            if (epollAvailable) {
+                return new EpollEventLoopGroup(threads, threadFactory);
+            }
+            LoggerFactory.getLogger(TacacsClient.class).info("TACACS+: epoll transport not available, using NIO instead"
+                    + (Epoll.isAvailable() ? "" : ": " + Epoll.unavailabilityCause()));
+        }
+        return new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    private synchronized EventLoopGroup eventLoopGroup() {
+        if (eventLoopGroup == null) {
+            eventLoopGroup = newEventLoopGroup(ioThreads, nativeTransport);
+        }
+        return eventLoopGroup;
+    }
+
+    /** Channel类型必须与EventLoopGroup的传输方式一致 **/
+    private static Class<? extends SocketChannel> channelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
     /**
-     * 启动TacacsClient服务
-     * @throws Exception
+     * 补满指定服务器的连接池,连接结果在监听器中异步更新服务器的健康状态
+     * @param server
      */
-    private synchronized void connectTacacsServer() throws Exception{
+    private void connectTacacsServer(final TacacsServer server) {
 
-        if(eventLoopGroup == null){
+        // 建立连接时会解析域名,使用ReentrantLock而不是对象监视器,避免阻塞的虚拟线程占住载体线程
+        server.connectLock.lock();
+        try {
+            int missing = server.missingConnections(poolSize);
+            if (missing <= 0) {
+                return;
+            }
+            EventLoopGroup group = eventLoopGroup();
             Bootstrap bootstrap = new Bootstrap();
-            eventLoopGroup = new NioEventLoopGroup();
-            bootstrap.group(eventLoopGroup)
-                    .channel(NioSocketChannel.class)
-                    .handler(new TacacsInitializer(key.getBytes("UTF-8")));
-            ChannelFuture channelFuture = bootstrap.connect(host, port);
-            logger.info("connect tacacs+ server " + host + " : " + port + " success");
-            channelFuture.addListener((final ChannelFuture future) -> {
-                if (future.isSuccess()) {
-                    TacacsMessageHandler handler = future.channel().pipeline().get(TacacsMessageHandler.class);
-                    tacacsMessageHandler = handler;
+            bootstrap.group(group)
+                    .channel(channelClass(group))
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+                    // Netty 4.0默认使用非池化分配器,编码器的输出缓冲区需要显式指定池化分配器才会复用
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .handler(new TacacsInitializer(this, server));
+            if (writeBufferHighWaterMark > 0) {
+                // 选项按设置顺序生效,任何时刻都不能出现低水位高于高水位
+                if (writeBufferHighWaterMark < DEFAULT_LOW_WATER_MARK) {
+                    bootstrap.option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark)
+                            .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+                } else {
+                    bootstrap.option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark)
+                            .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+                }
+            }
+            for (int i = 0; i < missing; i++) {
+                server.connecting.incrementAndGet();
+                ChannelFuture channelFuture = bootstrap.connect(server.getHost(), server.getPort());
+                server.pendingConnects.add(channelFuture);
+                channelFuture.addListener((final ChannelFuture future) -> {
+                    server.pendingConnects.remove(future);
+                    if (closed) {
+                        // shutdown之后才完成的连接不再加入连接池,被shutdown取消的连接也不再重连
+                        future.channel().close();
+                    } else if (future.isSuccess()) {
+                        logger.info("connect tacacs+ server " + server + " success");
+                        TacacsMessageHandler handler = future.channel().pipeline().get(TacacsMessageHandler.class);
+                        server.addConnection(handler, singleConnect);
+                        server.recordConnectSuccess();
+                        server.reconnectAttempts.set(0);
+                    } else {
+                        logger.error("connect tacacs+ server " + server + " failed", future.cause());
+                        server.recordConnectFailure(future.cause());
+                        if (server.reconnectAttempts.get() > 0) {
+                            scheduleReconnect(server);
+                        } else {
+                            scheduleProbe(server);
+                        }
+                    }
+                    // 先加入连接池再减少计数,避免missingConnections短暂偏大导致多建连接
+                    server.connecting.decrementAndGet();
                     signalAvailableHandler();
+                });
+            }
+        } finally {
+            server.connectLock.unlock();
+        }
+
+    }
+
+    /**
+     * 连接断开时由TacacsMessageHandler调用.
+     * 连接池中的连接意外断开时按退避时间重连,全部断开时重新协商单连接模式;会话独占的连接在会话结束时关闭,不需要重连.
+     * 未收到响应的请求立即以TacacsConnectionException结束,开启replayIdempotent时授权请求在其他连接上重发
+     */
+    void connectionLost(TacacsMessageHandler handler, TacacsServer server, List<TacacsFuture> inFlight) {
+        boolean pooled = server.removeConnection(handler);
+        if (pooled && !closed) {
+            logger.warn("TACACS+ connection to " + server + " lost with " + inFlight.size() + " request(s) in flight");
+            server.resetSingleConnect();
+            scheduleReconnect(server);
+        }
+        for (TacacsFuture tacacsFuture : inFlight) {
+            if (replayIdempotent && !closed && isIdempotent(tacacsFuture.getRequest())) {
+                TacacsMessageHandler other = selectHandler();
+                if (other != null) {
+                    other.replay(tacacsFuture);
+                    continue;
                 }
-            });
+            }
+            tacacsFuture.fail(new TacacsConnectionException("Connection to TACACS+ server " + server + " lost before reply"));
         }
+    }
 
+    private static boolean isIdempotent(Packet request) {
+        return request.header.type == TACACS_PLUS.PACKET.TYPE.AUTHOR;
+    }
+
+    /** 在共享的时间轮上安排一次带随机抖动的指数退避重连,每个服务器同时只有一个重连任务 **/
+    private void scheduleReconnect(final TacacsServer server) {
+        if (!server.reconnectScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        int attempt = server.reconnectAttempts.getAndIncrement();
+        long ceiling = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(attempt, 20));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        logger.info("TACACS+: reconnecting to " + server + " in " + delay + " ms (attempt " + (attempt + 1) + ")");
+        scheduleConnect(server, delay);
     }
 
     /**
-     * addListener 成功后返回 tacacsMessageHandler
+     * 首次连接失败的服务器被标记为DOWN,在retryAfterMillis之后再连接一次;
+     * 有其他可用服务器时不会有请求选中它,必须由客户端主动探测,连接成功后恢复为UP并重新按优先级接收新会话
+     */
+    private void scheduleProbe(final TacacsServer server) {
+        if (closed || !server.reconnectScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        scheduleConnect(server, server.getRetryAfterMillis());
+    }
+
+    private void scheduleConnect(final TacacsServer server, long delayMillis) {
+        try {
+            getTimer().newTimeout(timeout -> {
+                server.reconnectScheduled.set(false);
+                if (!closed) {
+                    connectTacacsServer(server);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // shutdown已经停止了时间轮
+            server.reconnectScheduled.set(false);
+        }
+    }
+
+    /**
+     * 连接成功或失败后唤醒等待的线程
      */
     private void signalAvailableHandler() {
         lock.lock();
@@ -119,32 +487,210 @@ public class TacacsClient {
     /**
      * addListener 异步执行,此处需要加锁等待 tacacsMessageHandler
      */
-    private boolean waitingForHadler() throws InterruptedException{
+    private boolean waitingForHadler(long millis) throws InterruptedException{
         lock.lock();
         try {
-            return connected.await(6000, TimeUnit.MILLISECONDS);
+            return connected.await(millis, TimeUnit.MILLISECONDS);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 按列表顺序选择服务器,优先使用UP状态的服务器,其次是DEGRADED;
+     * DOWN状态的服务器在重试时间到达之前直接跳过.
+     * 服务器同意单连接时返回待响应请求最少的连接,否则返回一个由会话独占的预先建立的连接
+     * @return
+     */
     public TacacsMessageHandler chooseHandler(){
-        while (this.tacacsMessageHandler == null) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            TacacsMessageHandler handler = selectHandler();
+            if (handler != null) {
+                return handler;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !connectFirstAvailableServer()) {
+                throw new RuntimeException("Can't connect any servers!");
+            }
             try {
-               waitingForHadler();
+                waitingForHadler(remaining);
             } catch (InterruptedException e) {
                 //logger.error("Waiting for available node is interrupted! ", e);
                 throw new RuntimeException("Can't connect any servers!", e);
             }
         }
-        return this.tacacsMessageHandler;
+    }
+
+    /**
+     * 立即连接所有可用的服务器,阻塞直到第一个可用服务器的连接池全部建立,
+     * 避免第一个请求承担创建线程、DNS解析和TCP握手的开销
+     * @throws IOException timeoutMillis内没有建立任何连接时抛出
+     */
+    public void start() throws Exception {
+        start(0);
+    }
+
+    /**
+     * @param warmUpIterations 等待连接的同时在本地执行的模拟编解码次数,用于预热加解密和编解码代码;0表示不预热
+     * @return 是否完成预热;预热失败只记录日志,不影响连接和之后的请求
+     * @throws IOException timeoutMillis内没有建立任何连接时抛出
+     */
+    public boolean start(int warmUpIterations) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (TacacsServer server : servers) {
+            if (server.isAvailable(System.currentTimeMillis())) {
+                connectTacacsServer(server);
+            }
+        }
+        boolean warmedUp = warmUpIterations <= 0;
+        if (warmUpIterations > 0) {
+            long begin = System.currentTimeMillis();
+            try {
+                int roundTrips = warmUp(warmUpIterations);
+                warmedUp = true;
+                logger.info("TACACS+: warm-up of " + roundTrips + " encode/decode cycles took " + (System.currentTimeMillis() - begin) + " ms");
+            } catch (Exception | LinkageError e) {
+                logger.warn("TACACS+: warm-up failed, continuing without it", e);
+            }
+        }
+        while (!closed && !isPoolReady()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            // 连接结果在检查之后、等待之前到达时可能错过唤醒,因此限制每次等待的时间
+            waitingForHadler(Math.min(remaining, 50));
+        }
+        for (TacacsServer server : servers) {
+            if (!server.handlers.isEmpty() || !server.spares.isEmpty()) {
+                return warmedUp;
+            }
+        }
+        throw new IOException("Can't connect any servers!");
+    }
+
+    /**
+     * 在本地执行模拟的编解码
+     * @return 完成的往返次数
+     */
+    int warmUp(int iterations) throws Exception {
+        return TacacsWarmUp.run(iterations);
+    }
+
+    /** 第一个可用服务器的连接都已建立完成,或者所有服务器都不可用 **/
+    private boolean isPoolReady() {
+        long now = System.currentTimeMillis();
+        for (TacacsServer server : servers) {
+            if (server.isAvailable(now) && server.getHealth() != TacacsServer.Health.DOWN) {
+                return server.connecting.get() == 0 && server.missingConnections(poolSize) <= 0;
+            }
+        }
+        return true;
+    }
+
+    private TacacsMessageHandler selectHandler() {
+        long now = System.currentTimeMillis();
+        for (TacacsServer server : servers) {
+            server.decayLatency(now);
+        }
+        for (TacacsServer.Health wanted : TacacsServer.Health.values()) {
+            for (TacacsServer server : servers) {
+                if (server.getHealth() != wanted || !server.isAvailable(now)) {
+                    continue;
+                }
+                TacacsMessageHandler handler = server.isMultiplexed(singleConnect) ? server.leastPendingHandler() : server.takeSpare();
+                if (handler != null) {
+                    connectTacacsServer(server);
+                    return handler;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 与selectHandler按同样的优先级选择连接,但从不阻塞:不等待连接建立,也不在调用线程上解析域名或发起连接.
+     * 服务器同意单连接时复用连接池中的连接,否则取走一个预先建立的备用连接;连接池需要补充时在时间轮线程上建立连接
+     * @return 当前没有可用连接时返回null
+     */
+    TacacsMessageHandler pollHandler() {
+        long now = System.currentTimeMillis();
+        for (TacacsServer server : servers) {
+            server.decayLatency(now);
+        }
+        for (TacacsServer.Health wanted : TacacsServer.Health.values()) {
+            for (TacacsServer server : servers) {
+                if (server.getHealth() != wanted || !server.isAvailable(now)) {
+                    continue;
+                }
+                TacacsMessageHandler handler = server.isMultiplexed(singleConnect) ? server.leastPendingHandler() : server.takeSpare();
+                if (server.missingConnections(poolSize) > 0) {
+                    scheduleRefill(server);
+                }
+                if (handler != null) {
+                    return handler;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** 在时间轮线程上补满连接池,已有重连任务时不重复安排 **/
+    private void scheduleRefill(final TacacsServer server) {
+        if (closed || !server.reconnectScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        scheduleConnect(server, 0);
+    }
+
+    /**
+     * 对第一个可用的服务器发起连接
+     * @return 所有服务器都不可用时返回false
+     */
+    private boolean connectFirstAvailableServer() {
+        long now = System.currentTimeMillis();
+        for (TacacsServer server : servers) {
+            if (server.isAvailable(now)) {
+                connectTacacsServer(server);
+                return true;
+            }
+        }
+        return false;
     }
 
 
     public void shutdown(){
-        if(eventLoopGroup != null){
+        closed = true;
+        if (sharedEventLoopGroup) {
+            // 共享的EventLoopGroup不能关闭,只关闭本客户端的连接
+            for (TacacsServer server : servers) {
+                for (TacacsMessageHandler handler : server.handlers) {
+                    handler.close();
+                }
+                for (TacacsMessageHandler handler : server.spares) {
+                    handler.close();
+                }
+                for (TacacsMessageHandler handler : server.dedicated) {
+                    handler.close();
+                }
+                // 取消正在建立的连接;Netty 4.0发起连接之后不允许取消,关闭Channel也不会结束连接的future,因此直接让它失败
+                for (ChannelFuture connect : server.pendingConnects) {
+                    ((ChannelPromise) connect).tryFailure(new ClosedChannelException());
+                    connect.channel().close();
+                }
+            }
+        }
+        if(eventLoopGroup != null && !sharedEventLoopGroup){
             eventLoopGroup.shutdownGracefully();
         }
+        Timer ownTimer;
+        synchronized (this) {
+            ownTimer = sharedTimer ? null : timer;
+        }
+        if (ownTimer != null) {
+            ownTimer.stop();
+        }
     }
 
     private static void authenInteractive(String[] args, TacacsClient tc) throws Exception {
@@ -197,20 +743,39 @@ public class TacacsClient {
     }
 
 
-    public synchronized ClientSession newSessionInteractive(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui) throws Exception {
+    public ClientSession newSessionInteractive(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, UserInterface ui) throws Exception {
 
-        connectTacacsServer();
         TacacsMessageHandler t = chooseHandler();
         ClientSession s = new ClientSession(svc, port, rem_addr, priv_lvl, t, ui, singleConnect, unencrypted);
-        t.addSession(s);
+        s.setAuthorizationCache(authorizationCache);
+        s.setAuthenticationCache(authenticationCache);
+        s.setAuthorizationCoalescer(authorizationCoalescer);
         return s;
     }
 
-    public synchronized ClientSession newSession(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl) throws Exception {
-        connectTacacsServer();
+    public ClientSession newSession(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl) throws Exception {
         TacacsMessageHandler t = chooseHandler();
         ClientSession s = new ClientSession(svc, port, rem_addr, priv_lvl, t, singleConnect, unencrypted);
-        t.addSession(s);
+        s.setAuthorizationCache(authorizationCache);
+        s.setAuthenticationCache(authenticationCache);
+        s.setAuthorizationCoalescer(authorizationCoalescer);
+        return s;
+    }
+
+    /**
+     * 不阻塞地创建会话,用于不能等待连接建立的后台线程
+     * @return 当前没有可用连接时返回null
+     * @see #pollHandler()
+     */
+    public ClientSession pollSession(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl) {
+        TacacsMessageHandler t = pollHandler();
+        if (t == null) {
+            return null;
+        }
+        ClientSession s = new ClientSession(svc, port, rem_addr, priv_lvl, t, singleConnect, unencrypted);
+        s.setAuthorizationCache(authorizationCache);
+        s.setAuthenticationCache(authenticationCache);
+        s.setAuthorizationCoalescer(authorizationCoalescer);
         return s;
     }
 
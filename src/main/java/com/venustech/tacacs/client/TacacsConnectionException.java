@@ -0,0 +1,17 @@
+package com.venustech.tacacs.client;
+
+import java.io.IOException;
+
+/**
+ * 请求发出后、收到响应前与TACACS+服务器的连接断开;请求是否已被服务器处理是未知的
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsConnectionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TacacsConnectionException(String message) {
+        super(message);
+    }
+}
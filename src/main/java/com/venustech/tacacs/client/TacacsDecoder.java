@@ -1,58 +1,95 @@
 package com.venustech.tacacs.client;
 
+import com.venustech.tacacs.protocol.entity.AcctReply;
 import com.venustech.tacacs.protocol.entity.AuthenReply;
 import com.venustech.tacacs.protocol.entity.AuthorReply;
 import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 
 /**
+ * 按报头中偏移8的4字节长度字段切分报文.
+ * 帧是接收缓冲区的切片而不是副本,主体在切片上原位解密后只复制一次,
+ * 响应中的字符串在调用getter时才解码.长度超过maxFrameLength的帧在读到长度字段时立即拒绝,不会先缓存
  * @author zhangxin
  * 2018/8/29
  */
 public class TacacsDecoder extends LengthFieldBasedFrameDecoder {
 
-    private static final Logger LOG = LoggerFactory.getLogger(TacacsEncoder.class);
+    private byte[] key;
 
-    private Class<?> genericClass;
+    /** 记录每个收到的报文,不记录报文内容 **/
+    private final PacketTrace trace;
 
-    private byte[] key;
+    /**
+     * @param maxFrameLength 报头加主体的最大长度
+     * @param key 共享密钥
+     */
+    public TacacsDecoder(int maxFrameLength, byte[] key) {
+        this(maxFrameLength, key, new PacketTrace(0));
+    }
 
+    public TacacsDecoder(int maxFrameLength, byte[] key, PacketTrace trace) {
+        this(maxFrameLength, Header.LENGTH_OFFSET, 4, 0, 0, key, trace);
+    }
 
     public TacacsDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength,
                          int lengthAdjustment, int initialBytesToStrip, byte[] key) {
-        super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip);
+        this(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip, key, new PacketTrace(0));
+    }
+
+    private TacacsDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength,
+                         int lengthAdjustment, int initialBytesToStrip, byte[] key, PacketTrace trace) {
+        super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip, true);
         this.key = key;
+        this.trace = trace;
+    }
+
+    /** 返回接收缓冲区的切片,不复制帧数据 **/
+    @Override
+    protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        return buffer.slice(index, length).retain();
     }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return decodeFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
 
-        byte[] headerBytes = new byte[12];
-        in.readBytes(headerBytes);
-        Header header = new Header(headerBytes);
+    private Object decodeFrame(ByteBuf frame) throws IOException {
+        int versionCode = frame.getByte(frame.readerIndex()) & 0xFF;
+        int typeCode = frame.getByte(frame.readerIndex() + 1);
+        Header header = new Header(frame);
+        if (header.version==null) { throw new IOException("Received unknown packet header version code: "+((versionCode&0xf0)>>>4)+"."+(versionCode&0x0f)); }
+        if (header.type==null) { throw new IOException("Received unknown packet header type code: "+typeCode); }
+        int bodyIndex = frame.readerIndex();
+        try { header.toggleCipher(frame, bodyIndex, header.bodyLength, key); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
         byte[] body = new byte[header.bodyLength];
-        in.readBytes(body); // read the body before potentially throwing any exceptions below, so that the input stream is left clean
-        if (header.version==null) { throw new IOException("Received unknown packet header version code: "+((headerBytes[0]&0xf0)>>>4)+"."+(headerBytes[0]&0x0f)); }
-        if (header.type==null) { throw new IOException("Received unknown packet header type code: "+headerBytes[1]); }
-        byte[] bodyClear;
-        try { bodyClear = header.toggleCipher(body, key); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
+        frame.readBytes(body);
+        // 审计响应的状态在主体偏移4,认证和授权响应在偏移0
+        int statusIndex = header.type == TACACS_PLUS.PACKET.TYPE.ACCT ? 4 : 0;
+        trace.record(PacketTrace.IN, header, body.length, body.length > statusIndex ? body[statusIndex] : 0);
         switch (header.type)
         {
             case AUTHEN:
-                AuthenReply authenReply = new AuthenReply(header, bodyClear);
-                LOG.info("TacacsServer AUTHEN packet : " + authenReply.toString());
-                return authenReply;
+                return new AuthenReply(header, body);
             case AUTHOR:
-                AuthorReply authorReply = new AuthorReply(header, bodyClear);
-                LOG.info("TacacsServer AUTHOR packet : " + authorReply.toString());
-                return authorReply;
+                return new AuthorReply(header, body);
+            case ACCT:
+                return new AcctReply(header, body);
 
             default: throw new IOException("Client-side packet header type not supported: " + header.type); // shouldn't happen
         }
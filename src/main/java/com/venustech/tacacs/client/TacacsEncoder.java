@@ -4,8 +4,7 @@ import com.venustech.tacacs.protocol.entity.base.Packet;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.venustech.tacacs.protocol.entity.base.Header;
 
 /**
  * @author zhangxin
@@ -13,15 +12,21 @@ import org.slf4j.LoggerFactory;
  */
 public class TacacsEncoder extends MessageToByteEncoder<Packet> {
 
-    private static final Logger LOG = LoggerFactory.getLogger(TacacsEncoder.class);
-
     private Class<?> genericClass;
 
     private byte[] key;
 
+    /** 记录每个发出的报文,不记录报文内容 **/
+    private final PacketTrace trace;
+
     public TacacsEncoder(Class<?> genericClass, byte[] key) {
+        this(genericClass, key, new PacketTrace(0));
+    }
+
+    public TacacsEncoder(Class<?> genericClass, byte[] key, PacketTrace trace) {
         this.genericClass = genericClass;
         this.key = key;
+        this.trace = trace;
     }
 
 
@@ -29,9 +34,10 @@ public class TacacsEncoder extends MessageToByteEncoder<Packet> {
     protected void encode(ChannelHandlerContext channelHandlerContext, Packet in, ByteBuf out) throws Exception {
         if (genericClass.isInstance(in)) {
 
-            byte[] data = in.getWriteByte(key);
-            LOG.info("TacacsClient packet : " + in.toString());
-            out.writeBytes(data);
+            // 直接写入Netty分配的(池化)缓冲区,报头长度回填,主体在原位加密
+            int start = out.writerIndex();
+            in.write(out, key);
+            trace.record(PacketTrace.OUT, in.header, out.writerIndex() - start - Header.LENGTH, (byte) 0);
         }
     }
 }
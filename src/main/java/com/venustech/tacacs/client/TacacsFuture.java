@@ -1,9 +1,12 @@
 package com.venustech.tacacs.client;
 
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -22,13 +25,22 @@ public class TacacsFuture implements Future {
     private Sync sync;
     private Packet request;
     private Packet response;
+    private volatile Throwable cause;
+    /** 异步调用方通过CompletionStage获取响应,在done中完成 **/
+    private final CompletableFuture<Packet> completion = new CompletableFuture<>();
 
     private long startTime;
-    private long responseTimeThreshold = 5000;
+    /** 服务器响应的序列号应为请求序列号加1 **/
+    private final byte expectedSeqNum;
+    /** 由TacacsMessageHandler在时间轮中登记的超时任务,收到响应后取消 **/
+    private volatile Timeout timeout;
+    /** 当前负责该请求的连接,连接断开后重发时会改变 **/
+    private volatile TacacsMessageHandler owner;
 
     public TacacsFuture(Packet request){
         sync = new Sync();
         this.request = request;
+        this.expectedSeqNum = (byte) (request.header.getSeqNum() + 1);
         startTime = System.currentTimeMillis();
     }
 
@@ -51,6 +63,9 @@ public class TacacsFuture implements Future {
     @Override
     public Object get() throws InterruptedException, ExecutionException {
         sync.acquire(-1);
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
         if(this.response != null){
             return response;
         }
@@ -61,23 +76,85 @@ public class TacacsFuture implements Future {
     public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
         boolean success = sync.tryAcquireNanos(-1, unit.toNanos(timeout));
         if (success) {
+            if (cause != null) {
+                throw new ExecutionException(cause);
+            }
             if (this.response != null) {
                 return response;
             } else {
                 return null;
             }
         } else {
-            throw new RuntimeException("Timeout exception." );
+            throw new TimeoutException("Timeout exception." );
+        }
+    }
+
+    /** 判断收到的报文是否是该请求的响应,用于丢弃过期或重复的响应 **/
+    boolean isReplyTo(Packet reply) {
+        return reply.header.getSeqNum() == expectedSeqNum;
+    }
+
+    void setOwner(TacacsMessageHandler owner) {
+        this.owner = owner;
+    }
+
+    /** 超时后由当前负责的连接移除并结束该请求;还在准入控制队列中的请求直接结束 **/
+    void expire(long timeoutMillis) {
+        TacacsMessageHandler handler = owner;
+        if (handler != null) {
+            handler.expire(this, timeoutMillis);
+        } else {
+            fail(new TimeoutException("TACACS+ request still queued after " + timeoutMillis + " ms"));
         }
     }
 
+    void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public Packet getRequest() {
+        return request;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * 异步获取服务器响应;回调在Netty的EventLoop线程中执行,不要在回调中进行阻塞操作
+     * @return
+     */
+    public CompletionStage<Packet> toCompletionStage() {
+        return completion;
+    }
+
     public void done(Packet response){
         this.response = response;
         sync.release(1);
+        cancelTimeout();
+        completion.complete(response);
         long responseTime = System.currentTimeMillis() - startTime;
         //System.out.println("server response time is " + responseTime + " ms");
     }
 
+    /**
+     * 请求发送失败或没有得到响应时调用,等待的线程会收到ExecutionException
+     * @param cause
+     */
+    public void fail(Throwable cause){
+        this.cause = cause;
+        sync.release(1);
+        cancelTimeout();
+        completion.completeExceptionally(cause);
+    }
+
+    private void cancelTimeout() {
+        Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
     /** 使用AQS同步器来实现对服务器的准确应答 **/
     static class Sync extends AbstractQueuedSynchronizer{
 
@@ -1,6 +1,7 @@
 package com.venustech.tacacs.client;
 
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
@@ -12,17 +13,29 @@ import io.netty.channel.socket.SocketChannel;
  */
 public class TacacsInitializer extends ChannelInitializer<SocketChannel> {
 
-    private byte[] key;
+    /** 报头加主体的最大长度,超过时关闭连接 **/
+    static final int MAX_FRAME_LENGTH = 65536;
 
-    public TacacsInitializer(byte[] key){
-        this.key = key;
+    private final TacacsClient client;
+    private final TacacsServer server;
+
+    public TacacsInitializer(TacacsClient client, TacacsServer server){
+        this.client = client;
+        this.server = server;
     }
 
     @Override
     protected void initChannel(SocketChannel socketChannel) throws Exception {
         ChannelPipeline cp = socketChannel.pipeline();
-        cp.addLast(new TacacsEncoder(Packet.class, key));
-        cp.addLast(new TacacsDecoder(65536, 0, 4, 0, 0, key));
-        cp.addLast(new TacacsMessageHandler(key));
+        cp.addLast(codec(server.getKey(), client.getPacketTrace()));
+        cp.addLast(new TacacsMessageHandler(client, server));
+    }
+
+    /** 编解码器,预热时也使用同样的编解码器 **/
+    static ChannelHandler[] codec(byte[] key, PacketTrace trace) {
+        return new ChannelHandler[] {
+                new TacacsEncoder(Packet.class, key, trace),
+                new TacacsDecoder(MAX_FRAME_LENGTH, key, trace)
+        };
     }
 }
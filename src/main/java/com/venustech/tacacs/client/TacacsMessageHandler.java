@@ -1,15 +1,28 @@
 package com.venustech.tacacs.client;
 
 import com.venustech.tacacs.protocol.Session;
+import com.venustech.tacacs.protocol.SessionIdAllocator;
 import com.venustech.tacacs.protocol.entity.base.Packet;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.SocketAddress;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author zhangxin
@@ -20,18 +33,51 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
     public static final int PORT_TACACS = 49;
     public static final boolean DEBUG = false;
 
+    private static final Logger logger = LoggerFactory.getLogger(TacacsMessageHandler.class);
+
     /**
-     * 存放所有TacacsFuture,接受服务器返回报文时移除对应
+     * 存放所有TacacsFuture,以32位sessionID为键,接受服务器返回报文时移除对应
      */
-    private ConcurrentHashMap<String, TacacsFuture> pendingTacacs = new ConcurrentHashMap();
+    private final PendingTable pendingTacacs = new PendingTable();
 
-    private final List<Session> sessions;
+    /**
+     * 该连接上活动会话的sessionID,保证同一连接上的活动会话不重复.
+     * 会话调用close()时立即移除,没有关闭就被回收的会话由引用队列在下次分配时清除
+     */
+    private final ConcurrentHashMap<Integer, SessionRef> liveSessions = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Session> collectedSessions = new ReferenceQueue<>();
+    /** 因准入控制的限制在本连接上等待发送的请求,由AdmissionControl维护 **/
+    final Queue<TacacsFuture> waiting = new ConcurrentLinkedQueue<>();
+    /** 是否在AdmissionControl的轮转队列中 **/
+    final AtomicBoolean backlogged = new AtomicBoolean();
+    /** 经准入控制在本连接上发送、尚未结束的请求数,由AdmissionControl在发送前占用、结束时归还 **/
+    final AtomicInteger admitted = new AtomicInteger();
     private final byte[] key;
+    /** 创建该连接的客户端,连接断开时由客户端负责重连和处理未完成的请求 **/
+    private final TacacsClient client;
+    /** 该连接所属的服务器,用于更新服务器的健康状态 **/
+    private final TacacsServer server;
+    /** 所有连接共享的时间轮,用于请求超时 **/
+    private final Timer timer;
+    /** 默认的请求超时时间 **/
+    private final long responseTimeoutMillis;
+    /** 客户端的准入控制,限制待响应的请求数 **/
+    private final AdmissionControl admissionControl;
     private volatile boolean runnable;
 
     private volatile Channel channel;
     private SocketAddress remotePeer;
 
+    /**
+     * 合并flush:write只写入出站缓冲区,第一个写入的数据包在EventLoop中安排一次flush,
+     * 在flush执行之前写入的数据包都通过同一次系统调用发送
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = () -> {
+        flushScheduled.set(false);
+        channel.flush();
+    };
+
     public Channel getChannel() {
         return channel;
     }
@@ -40,10 +86,27 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
         return remotePeer;
     }
 
-    protected TacacsMessageHandler(byte[] key){
-        this.key = key;
+    public TacacsClient getClient() {
+        return client;
+    }
+
+    protected TacacsMessageHandler(TacacsClient client, TacacsServer server){
+        this.key = server.getKey();
+        this.client = client;
+        this.server = server;
+        this.timer = client.getTimer();
+        this.responseTimeoutMillis = client.getTimeoutMillis();
+        this.admissionControl = client.getAdmissionControl();
         this.runnable = true;
-        this.sessions = new ArrayList<>();
+    }
+
+    public long getResponseTimeoutMillis() {
+        return responseTimeoutMillis;
+    }
+
+    /** 已发送但尚未收到响应的请求数,用于连接池选择负载最小的连接 **/
+    public int pendingCount() {
+        return pendingTacacs.size();
     }
 
     public boolean isShutdown()
@@ -51,9 +114,61 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
         return !runnable;
     }
 
-    protected final void addSession(Session s)
-    {
-        synchronized(sessions) { sessions.add(s); }
+    /**
+     * 为新会话分配一个在该连接的活动会话中唯一的非0 sessionID
+     * @param session
+     * @return
+     */
+    public int allocateSessionId(Session session) {
+        expungeCollectedSessions();
+        while (true) {
+            int id = SessionIdAllocator.nextSessionId();
+            if (id == 0) {
+                continue;
+            }
+            SessionRef ref = new SessionRef(id, session, collectedSessions);
+            SessionRef current = liveSessions.putIfAbsent(id, ref);
+            if (current == null || (current.get() == null && liveSessions.replace(id, current, ref))) {
+                // 先登记再检查:从其他连接重发到本连接的请求不属于本连接的会话,但仍占用该sessionID
+                if (pendingTacacs.get(id) == null) {
+                    return id;
+                }
+                liveSessions.remove(id, ref);
+            }
+        }
+    }
+
+    /**
+     * 会话结束,释放它的sessionID;会话独占的连接在最后一个会话结束时关闭
+     * @param session
+     * @param id
+     */
+    public void releaseSessionId(Session session, int id) {
+        SessionRef current = liveSessions.get(id);
+        if (current != null && current.get() == session && liveSessions.remove(id, current)) {
+            expungeCollectedSessions();
+            // 独占连接上的会话全部结束后才关闭
+            if (liveSessions.isEmpty() && server.isDedicated(this) && isActive()) {
+                close();
+            }
+        }
+    }
+
+    private boolean isLiveSession(int id) {
+        SessionRef ref = liveSessions.get(id);
+        return ref != null && ref.get() != null;
+    }
+
+    /** 当前活动会话数 **/
+    public int liveSessionCount() {
+        return liveSessions.size();
+    }
+
+    private void expungeCollectedSessions() {
+        Reference<? extends Session> ref;
+        while ((ref = collectedSessions.poll()) != null) {
+            liveSessions.remove(((SessionRef) ref).id, ref);
+        }
     }
 
     @Override
@@ -62,6 +177,68 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
         this.remotePeer = this.channel.remoteAddress();
     }
 
+    /**
+     * 连接断开:所有未完成的请求交给客户端,由客户端决定重发还是以TacacsConnectionException结束,并安排重连
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        runnable = false;
+        client.connectionLost(this, server, pendingTacacs.removeAll());
+        // 本连接上等待的请求立即以TacacsConnectionException结束
+        admissionControl.drain();
+        super.channelInactive(ctx);
+    }
+
+    public boolean isActive() {
+        return channel != null && channel.isActive();
+    }
+
+    /**
+     * 是否可以再发送一个请求:待响应请求数未达到每连接的上限,且出站缓冲区低于高水位.
+     * 已断开的连接返回true,请求发送时立即以TacacsConnectionException失败而不是排队
+     */
+    boolean hasCapacity() {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            return true;
+        }
+        return ch.isWritable() && admitted.get() < admissionControl.getMaxInFlightPerConnection();
+    }
+
+    /**
+     * 与hasCapacity相同,但同时占用一个额度,并发的调用方不会让本连接超过上限
+     * @return 占用成功时返回true,请求结束后由AdmissionControl归还
+     */
+    boolean tryReserve() {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (!ch.isWritable()) {
+            return false;
+        }
+        int max = admissionControl.getMaxInFlightPerConnection();
+        while (true) {
+            int current = admitted.get();
+            if (current >= max) {
+                return false;
+            }
+            if (admitted.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** 出站缓冲区降到低水位以下时发送等待中的请求 **/
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            admissionControl.drain();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         super.channelRegistered(ctx);
@@ -77,16 +254,28 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, Packet packet) throws Exception {
         //read packet and handle packet
-        String sessionId = new String(packet.header.getSessionID(), "UTF-8");
+        int sessionId = packet.header.getSessionIDValue();
         TacacsFuture tacacsFuture = pendingTacacs.get(sessionId);
-        if(tacacsFuture != null){
-            pendingTacacs.remove(sessionId);
+        if (tacacsFuture == null || !tacacsFuture.isReplyTo(packet)) {
+            // 已超时、重复或序列号不匹配的响应直接丢弃
+            logger.debug("Dropping unexpected TACACS+ reply, session " + Integer.toHexString(sessionId) + " seq " + (packet.header.getSeqNum() & 0xFF));
+            return;
+        }
+        if(pendingTacacs.remove(sessionId, tacacsFuture)){
+            if (tacacsFuture.getRequest().header.hasFlag(TACACS_PLUS.PACKET.FLAG.SINGLE_CONNECT)) {
+                server.recordSingleConnect(packet.header.hasFlag(TACACS_PLUS.PACKET.FLAG.SINGLE_CONNECT));
+            }
+            // 先更新健康状态再唤醒调用方,调用方之后创建的会话按新的状态选择服务器
+            server.recordLatency(System.currentTimeMillis() - tacacsFuture.getStartTime());
             tacacsFuture.done(packet);
         }
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        PacketTrace trace = client.getPacketTrace();
+        logger.warn("TACACS+ connection to " + remotePeer + " failed, closing"
+                + (trace.isEnabled() ? "; recent packets:\n" + trace.dump(32, true) : ""), cause);
         ctx.close();
     }
 
@@ -95,30 +284,126 @@ public class TacacsMessageHandler extends SimpleChannelInboundHandler<Packet> {
     }
 
     /**
-     * 向Tacacs服务器发送数据包
+     * 使用默认超时时间发送数据包
      * @param packet
      * @return
      */
-    public TacacsFuture sendTacacsPacket(Packet packet){
+    public TacacsFuture sendTacacsPacket(final Packet packet){
+        return sendTacacsPacket(packet, responseTimeoutMillis);
+    }
 
-        TacacsFuture tacacsFuture = null;
+    /**
+     * 向Tacacs服务器发送数据包,不等待写操作完成.
+     * 数据包在EventLoop中写入出站缓冲区,同一轮中连续写入的数据包只触发一次flush;
+     * 写入失败或在timeoutMillis内没有收到响应时,从pendingTacacs中移除并通过返回的TacacsFuture通知调用方.
+     * 超出准入控制的限制时请求先在客户端排队,超时时间从调用时开始计算;队列已满时以TacacsOverloadException结束
+     * @param packet
+     * @param timeoutMillis 小于等于0时不设置超时
+     * @return
+     */
+    public TacacsFuture sendTacacsPacket(final Packet packet, long timeoutMillis){
 
-        try {
-            final CountDownLatch latch = new CountDownLatch(1);
-            tacacsFuture = new TacacsFuture(packet);
-            String sessionId = new String(packet.header.getSessionID(), "UTF-8");
-            pendingTacacs.put(sessionId, tacacsFuture);
-            channel.writeAndFlush(packet).addListener(new ChannelFutureListener() {
-                @Override
-                public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                    latch.countDown();
-                }
-            });
-            latch.await();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+        final TacacsFuture tacacsFuture = new TacacsFuture(packet);
+        if (timeoutMillis > 0) {
+            tacacsFuture.setTimeout(timer.newTimeout(timeout -> {
+                tacacsFuture.expire(timeoutMillis);
+                // 在队列中超时的请求不占用额度,需要主动从队列中清除
+                admissionControl.cancel(this, tacacsFuture);
+            }, timeoutMillis, TimeUnit.MILLISECONDS));
         }
+        admissionControl.submit(this, tacacsFuture);
         return tacacsFuture;
 
     }
+
+    /**
+     * 由准入控制调用,在本连接上发送会话的请求;超时设置保持不变
+     * @param tacacsFuture
+     */
+    void resend(final TacacsFuture tacacsFuture) {
+        final Packet packet = tacacsFuture.getRequest();
+        final int sessionId = packet.header.getSessionIDValue();
+        tacacsFuture.setOwner(this);
+        TacacsFuture superseded = pendingTacacs.put(sessionId, tacacsFuture);
+        if (superseded != null) {
+            // 同一会话上一个请求的响应已无法与新请求区分
+            superseded.fail(new IOException("Session " + Integer.toHexString(sessionId) + " sent a new request before the previous reply"));
+        }
+        dispatch(packet, sessionId, tacacsFuture);
+    }
+
+    /**
+     * 在本连接上重发其他连接断开时未完成的请求,超时设置保持不变.
+     * 请求的sessionID属于其他连接上的会话,可能与本连接上的活动会话或待响应请求相同,
+     * 此时只让重发的请求以TacacsConnectionException结束,不影响本连接上的请求;
+     * 不冲突时该请求在响应之前占用这个sessionID,本连接不会把它分配给新会话
+     * @param tacacsFuture
+     */
+    void replay(final TacacsFuture tacacsFuture) {
+        final Packet packet = tacacsFuture.getRequest();
+        final int sessionId = packet.header.getSessionIDValue();
+        tacacsFuture.setOwner(this);
+        // 先占用再检查,与allocateSessionId的顺序相反,两者并发时至少一方能看到另一方
+        if (pendingTacacs.putIfAbsent(sessionId, tacacsFuture) != null) {
+            tacacsFuture.fail(new TacacsConnectionException("Can't replay TACACS+ request on " + remotePeer
+                    + ": session " + Integer.toHexString(sessionId) + " has a request in flight there"));
+            return;
+        }
+        if (isLiveSession(sessionId)) {
+            failPending(sessionId, tacacsFuture, new TacacsConnectionException("Can't replay TACACS+ request on " + remotePeer
+                    + ": session " + Integer.toHexString(sessionId) + " is in use there"));
+            return;
+        }
+        dispatch(packet, sessionId, tacacsFuture);
+    }
+
+    private void dispatch(final Packet packet, final int sessionId, final TacacsFuture tacacsFuture) {
+        if (!isActive()) {
+            failPending(sessionId, tacacsFuture, new TacacsConnectionException("Connection to TACACS+ server " + server + " is closed"));
+            return;
+        }
+        try {
+            EventLoop eventLoop = channel.eventLoop();
+            if (eventLoop.inEventLoop()) {
+                write(packet, sessionId, tacacsFuture);
+            } else {
+                eventLoop.execute(() -> write(packet, sessionId, tacacsFuture));
+            }
+        } catch (RejectedExecutionException e) {
+            failPending(sessionId, tacacsFuture, e);
+        }
+    }
+
+    /** 只能在EventLoop中调用 **/
+    private void write(final Packet packet, final int sessionId, final TacacsFuture tacacsFuture) {
+        channel.write(packet).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                failPending(sessionId, tacacsFuture, future.cause());
+            }
+        });
+        if (flushScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(flushTask);
+        }
+    }
+
+    /** 由时间轮在请求超时时调用 **/
+    void expire(TacacsFuture tacacsFuture, long timeoutMillis) {
+        failPending(tacacsFuture.getRequest().header.getSessionIDValue(), tacacsFuture,
+                new TimeoutException("No reply from TACACS+ server " + remotePeer + " within " + timeoutMillis + " ms"));
+    }
+
+    private void failPending(int sessionId, TacacsFuture tacacsFuture, Throwable cause) {
+        if (pendingTacacs.remove(sessionId, tacacsFuture)) {
+            tacacsFuture.fail(cause);
+        }
+    }
+
+    private static final class SessionRef extends WeakReference<Session> {
+        final int id;
+
+        SessionRef(int id, Session session, ReferenceQueue<Session> queue) {
+            super(session, queue);
+            this.id = id;
+        }
+    }
 }
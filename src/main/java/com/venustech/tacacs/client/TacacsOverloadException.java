@@ -0,0 +1,17 @@
+package com.venustech.tacacs.client;
+
+import java.io.IOException;
+
+/**
+ * 待响应请求数已达上限且等待队列已满,请求没有发送到服务器
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsOverloadException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TacacsOverloadException(String message) {
+        super(message);
+    }
+}
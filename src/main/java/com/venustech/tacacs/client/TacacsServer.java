@@ -0,0 +1,348 @@
+package com.venustech.tacacs.client;
+
+import io.netty.channel.ChannelFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个TACACS+服务器节点:地址、共享密钥、连接池以及健康状态.
+ * 健康状态由建立连接的结果和响应时延共同更新,TacacsClient按列表顺序选择第一个可用的服务器.
+ * @author zhangxin
+ * 2018/8/28
+ */
+public class TacacsServer {
+
+    /** 服务器健康状态 **/
+    public enum Health {
+        /** 正常 **/
+        UP,
+        /** 响应缓慢,只有在没有UP的服务器时才使用 **/
+        DEGRADED,
+        /** 连接失败,在retryAfterMillis之内不再尝试 **/
+        DOWN
+    }
+
+    /** 服务器对单连接模式(TAC_PLUS_SINGLE_CONNECT_FLAG)的应答 **/
+    public enum SingleConnect {
+        /** 还没有收到第一个响应 **/
+        UNKNOWN,
+        /** 服务器同意单连接,所有会话复用连接池中的连接 **/
+        SUPPORTED,
+        /** 服务器拒绝单连接,每个会话独占一个预先建立的连接 **/
+        REFUSED
+    }
+
+    /** 响应时延EWMA的平滑系数 **/
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private static final Logger logger = LoggerFactory.getLogger(TacacsServer.class);
+
+    private final String host;
+    private final int port;
+    private final byte[] key;
+
+    /** 已建立的可复用连接,只在单连接模式下使用 **/
+    final List<TacacsMessageHandler> handlers = new CopyOnWriteArrayList<>();
+    /** 预先建立、尚未分配给会话的连接,非单连接模式下每个会话取走一个 **/
+    final Queue<TacacsMessageHandler> spares = new ConcurrentLinkedQueue<>();
+    /** 已被会话独占的连接,会话close时由客户端关闭,服务器也可能在会话结束时关闭 **/
+    final Set<TacacsMessageHandler> dedicated = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    /** 正在建立中的连接数 **/
+    final AtomicInteger connecting = new AtomicInteger();
+    /** 正在建立中的连接,共享EventLoopGroup时由shutdown关闭 **/
+    final Set<ChannelFuture> pendingConnects = ConcurrentHashMap.newKeySet();
+    /** 连续重连的次数,用于计算退避时间;连接成功后清零 **/
+    final AtomicInteger reconnectAttempts = new AtomicInteger();
+    final AtomicBoolean reconnectScheduled = new AtomicBoolean();
+    /** 补充连接时加锁,避免并发建立多余的连接 **/
+    final ReentrantLock connectLock = new ReentrantLock();
+
+    private volatile Health health = Health.UP;
+    private volatile SingleConnect singleConnect = SingleConnect.UNKNOWN;
+    private volatile long downUntil = 0;
+    private volatile double latencyMillis = 0;
+    /** 最近一次时延样本的时间 **/
+    private volatile long latencySampledAt = 0;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long slowReplyMillis = 2000;
+    private volatile long retryAfterMillis = 30000;
+    private volatile long latencyHalfLifeMillis = 10000;
+
+    /**
+     * @param host 服务器地址,可以带端口,如"10.0.0.1:4949";不带端口时使用49
+     * @param key 共享密钥
+     */
+    public TacacsServer(String host, String key) {
+        String h = host;
+        int p;
+        try {
+            URI uri = new URI("http://" + host);
+            h = uri.getHost() == null ? host : uri.getHost();
+            p = uri.getPort();
+            if (p == -1) {
+                logger.info("TACACS+: No port assigned for host, \""+host+"\".  " +
+                        "Using default port 49 instead.");
+                p = TacacsMessageHandler.PORT_TACACS;
+            }
+        }
+        catch (URISyntaxException e) {
+            logger.info("TACACS+: Bad port assigned for host, \""+host+"\".  " +
+                    "Using default port 49 instead.");
+            p = TacacsMessageHandler.PORT_TACACS;
+        }
+        this.host = h;
+        this.port = p;
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public TacacsServer(String host, int port, String key) {
+        this.host = host;
+        this.port = port;
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    public Health getHealth() {
+        return health;
+    }
+
+    public SingleConnect getSingleConnect() {
+        return singleConnect;
+    }
+
+    /** 最近响应时延的EWMA,单位毫秒 **/
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /** 响应时延超过该值时服务器被标记为DEGRADED **/
+    public void setSlowReplyMillis(long slowReplyMillis) {
+        this.slowReplyMillis = slowReplyMillis;
+    }
+
+    /** 连接失败后多长时间内跳过该服务器 **/
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * DEGRADED的服务器在有UP的服务器时不再收到请求,也就没有新的时延样本;
+     * 没有样本时EWMA每经过该时间减半,降到slowReplyMillis以下时恢复为UP,由下一个响应确认是否仍然缓慢
+     */
+    public void setLatencyHalfLifeMillis(long latencyHalfLifeMillis) {
+        if (latencyHalfLifeMillis < 1) { throw new IllegalArgumentException("latencyHalfLifeMillis must be positive: " + latencyHalfLifeMillis); }
+        this.latencyHalfLifeMillis = latencyHalfLifeMillis;
+    }
+
+    /**
+     * 是否可以向该服务器分配新的会话;DOWN状态的服务器在retryAfterMillis之后重新尝试
+     */
+    boolean isAvailable(long now) {
+        return health != Health.DOWN || now >= downUntil;
+    }
+
+    /** 还需要建立多少个连接才能补满连接池 **/
+    int missingConnections(int poolSize) {
+        return poolSize - handlers.size() - spares.size() - connecting.get();
+    }
+
+    /**
+     * 新会话是否复用连接池中的连接.只有客户端请求了单连接并且服务器已经同意时才复用;
+     * 在协商结果未知时每个会话使用独占连接,避免服务器在会话结束时关闭其他会话正在使用的连接
+     */
+    boolean isMultiplexed(boolean singleConnectRequested) {
+        return singleConnectRequested && singleConnect == SingleConnect.SUPPORTED;
+    }
+
+    /** 新建立的连接按当前模式加入可复用连接池或备用连接队列,与recordSingleConnect互斥 **/
+    synchronized void addConnection(TacacsMessageHandler handler, boolean singleConnectRequested) {
+        if (isMultiplexed(singleConnectRequested)) {
+            handlers.add(handler);
+        } else {
+            spares.add(handler);
+        }
+    }
+
+    /**
+     * 取走一个备用连接供一个会话独占
+     * @return 没有备用连接时返回null
+     */
+    TacacsMessageHandler takeSpare() {
+        TacacsMessageHandler handler;
+        while ((handler = spares.poll()) != null) {
+            if (handler.isActive()) {
+                dedicated.add(handler);
+                return handler;
+            }
+        }
+        return null;
+    }
+
+    boolean isDedicated(TacacsMessageHandler handler) {
+        return dedicated.contains(handler);
+    }
+
+    /**
+     * 连接关闭后从所有列表中移除
+     * @return 是否是连接池中的连接(可复用连接或备用连接),而不是会话独占的连接
+     */
+    boolean removeConnection(TacacsMessageHandler handler) {
+        boolean pooled = handlers.remove(handler) | spares.remove(handler);
+        dedicated.remove(handler);
+        return pooled;
+    }
+
+    /**
+     * 记录服务器在第一个响应中对单连接模式的应答;同意时把备用连接和协商期间独占的连接转为可复用连接
+     * @param accepted 响应报头中是否带有TAC_PLUS_SINGLE_CONNECT_FLAG
+     */
+    void recordSingleConnect(boolean accepted) {
+        if (singleConnect != SingleConnect.UNKNOWN) {
+            return;
+        }
+        synchronized (this) {
+            if (singleConnect != SingleConnect.UNKNOWN) {
+                return;
+            }
+            singleConnect = accepted ? SingleConnect.SUPPORTED : SingleConnect.REFUSED;
+            logger.info("TACACS+ server " + this + " single-connect mode " + singleConnect);
+            if (accepted) {
+                TacacsMessageHandler spare;
+                while ((spare = spares.poll()) != null) {
+                    handlers.add(spare);
+                }
+                for (TacacsMessageHandler handler : dedicated) {
+                    if (handler.isActive()) {
+                        handlers.add(handler);
+                    }
+                }
+                dedicated.clear();
+            }
+        }
+    }
+
+    /**
+     * 到该服务器的连接已全部断开,服务器可能已经重启或更换了配置,下一个连接重新协商单连接模式
+     */
+    synchronized void resetSingleConnect() {
+        if (singleConnect != SingleConnect.UNKNOWN && handlers.isEmpty() && spares.isEmpty()) {
+            logger.info("TACACS+ server " + this + " lost all connections, single-connect mode will be negotiated again");
+            singleConnect = SingleConnect.UNKNOWN;
+        }
+    }
+
+    /**
+     * 连接池中待响应请求最少的连接,优先选择还有发送余量的连接
+     * @return 没有可用连接时返回null
+     */
+    TacacsMessageHandler leastPendingHandler() {
+        TacacsMessageHandler chosen = null;
+        long least = Long.MAX_VALUE;
+        for (TacacsMessageHandler handler : handlers) {
+            long pending = handler.hasCapacity() ? handler.pendingCount() : (long) Integer.MAX_VALUE + handler.pendingCount();
+            if (pending < least) {
+                least = pending;
+                chosen = handler;
+            }
+        }
+        return chosen;
+    }
+
+    void recordConnectSuccess() {
+        consecutiveFailures.set(0);
+        if (health == Health.DOWN) {
+            health = Health.UP;
+            logger.info("TACACS+ server " + this + " is up");
+        }
+    }
+
+    void recordConnectFailure(Throwable cause) {
+        int failures = consecutiveFailures.incrementAndGet();
+        downUntil = System.currentTimeMillis() + retryAfterMillis;
+        if (health != Health.DOWN) {
+            logger.warn("TACACS+ server " + this + " is down after " + failures + " connect failure(s): " + cause);
+        }
+        health = Health.DOWN;
+    }
+
+    /**
+     * 根据服务器响应时延更新健康状态
+     * @param millis 从发送请求到收到响应的时间
+     */
+    void recordLatency(long millis) {
+        double ewma = latencyMillis == 0 ? millis : LATENCY_ALPHA * millis + (1 - LATENCY_ALPHA) * latencyMillis;
+        latencyMillis = ewma;
+        latencySampledAt = System.currentTimeMillis();
+        if (health == Health.DOWN) {
+            return;
+        }
+        Health next = ewma > slowReplyMillis ? Health.DEGRADED : Health.UP;
+        if (next != health) {
+            logger.info("TACACS+ server " + this + " is " + next + ", reply latency " + (long) ewma + " ms");
+            health = next;
+        }
+    }
+
+    /**
+     * 按半衰期衰减DEGRADED服务器的时延,衰减到slowReplyMillis以下时恢复为UP
+     * @param now
+     */
+    void decayLatency(long now) {
+        if (health != Health.DEGRADED) {
+            return;
+        }
+        long idle = now - latencySampledAt;
+        if (idle <= 0) {
+            return;
+        }
+        double decayed = latencyMillis * Math.pow(0.5, (double) idle / latencyHalfLifeMillis);
+        if (decayed > slowReplyMillis) {
+            return;
+        }
+        synchronized (this) {
+            // 与其他线程的衰减或新样本竞争时以先到者为准
+            if (health != Health.DEGRADED || latencySampledAt > now - idle) {
+                return;
+            }
+            latencyMillis = decayed;
+            latencySampledAt = now;
+            health = Health.UP;
+        }
+        logger.info("TACACS+ server " + this + " is UP again after " + idle + " ms without replies, decayed latency " + (long) decayed + " ms");
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
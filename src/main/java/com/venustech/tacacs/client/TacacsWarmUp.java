@@ -0,0 +1,86 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.AuthenReply;
+import com.venustech.tacacs.protocol.entity.AuthenStart;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.AuthorRequest;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在本地对模拟的认证和授权报文执行编码、加密、解密和解码,
+ * 让JIT在第一个真实请求之前编译这些热点路径.不会向服务器发送任何数据
+ * @author zhangxin
+ * 2018/8/29
+ */
+final class TacacsWarmUp {
+
+    private static final byte[] KEY = "tacacs-warm-up".getBytes(StandardCharsets.UTF_8);
+    private static final Argument[] ARGS = {
+            new Argument("service", "shell", false),
+            new Argument("cmd", "show", false),
+            new Argument("cmd-arg", "running-config", false)
+    };
+
+    private TacacsWarmUp() {}
+
+    /**
+     * @param iterations 认证和授权报文各往返的次数
+     * @return 完成的往返次数
+     * @throws Exception 编码或解码失败
+     */
+    static int run(int iterations) throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(TacacsInitializer.codec(KEY, new PacketTrace(0)));
+        // 与真实连接使用同一个分配器,预热的是池化缓冲区上的编码路径
+        channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        int roundTrips = 0;
+        try {
+            byte[] sessionID = {0x12, 0x34, 0x56, 0x78};
+            for (int i = 0; i < iterations; i++) {
+                AuthenStart start = new AuthenStart(
+                        new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_1, TACACS_PLUS.PACKET.TYPE.AUTHEN, sessionID),
+                        TACACS_PLUS.AUTHEN.ACTION.LOGIN, TACACS_PLUS.PRIV_LVL.USER.code(), TACACS_PLUS.AUTHEN.TYPE.PAP,
+                        TACACS_PLUS.AUTHEN.SVC.NONE, "warm-up", "tty0", "127.0.0.1", "warm-up");
+                roundTrips += roundTrip(channel, start, new AuthenReply(start.header.next(TACACS_PLUS.PACKET.VERSION.v13_1),
+                        TACACS_PLUS.AUTHEN.STATUS.PASS, (byte) 0, "", ""));
+
+                AuthorRequest request = new AuthorRequest(
+                        new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, sessionID),
+                        TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.PRIV_LVL.USER.code(), TACACS_PLUS.AUTHEN.TYPE.ASCII,
+                        TACACS_PLUS.AUTHEN.SVC.LOGIN, "warm-up", "tty0", "127.0.0.1", ARGS);
+                roundTrips += roundTrip(channel, request, new AuthorReply(request.header.next(TACACS_PLUS.PACKET.VERSION.v13_0),
+                        TACACS_PLUS.AUTHOR.STATUS.PASS_ADD, "", "", ARGS));
+            }
+        } finally {
+            channel.finish();
+        }
+        return roundTrips;
+    }
+
+    /** 编码请求,再把服务器格式的响应交给解码器 **/
+    private static int roundTrip(EmbeddedChannel channel, Packet request, Packet reply) throws Exception {
+        channel.writeOutbound(request);
+        Object encoded = channel.readOutbound();
+        if (encoded == null) {
+            throw new IllegalStateException("Warm-up request was not encoded: " + request);
+        }
+        ReferenceCountUtil.release(encoded);
+        ByteBuf in = Unpooled.wrappedBuffer(reply.getWriteByte(KEY));
+        channel.writeInbound(in);
+        Object decoded = channel.readInbound();
+        if (decoded == null) {
+            throw new IllegalStateException("Warm-up reply was not decoded: " + reply);
+        }
+        ReferenceCountUtil.release(decoded);
+        return 1;
+    }
+}
@@ -0,0 +1,258 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.protocol.entity.AuthenReply;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * PAP认证成功结果的短期缓存,默认不启用,通过TacacsClient.setAuthenticationCache设置.
+ * 只缓存eligibleUser接受的用户(如自动化使用的服务账号),其他用户每次都发送到服务器.
+ * 以用户名、权限级别、服务、端口和远程地址为键,服务器可能根据这些字段做出不同的决定,一个请求的结果不能用于另一个请求.
+ * 不保存密码明文,只保存随机盐和PBKDF2派生的校验值,命中时对输入的密码做同样的计算后比较;
+ * 服务器返回FAIL或其他非PASS结果时立即删除该用户的所有缓存.条目数超过上限时淘汰最久没有使用的条目
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AuthenticationCache {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int VERIFIER_BITS = 256;
+    /**
+     * 默认的PBKDF2迭代次数,命中时校验一次约需一到两毫秒.缓存减少的是服务器的负载和跨网络的往返,
+     * 迭代次数越少越快,但校验值被窃取时越容易被暴力破解
+     **/
+    public static final int DEFAULT_ITERATIONS = 4096;
+
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final int iterations;
+    private final Predicate<String> eligibleUser;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** 按访问顺序排列,最久没有使用的在最前 **/
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public AuthenticationCache(int maxEntries, long ttlMillis, Predicate<String> eligibleUser) {
+        this(maxEntries, ttlMillis, eligibleUser, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @param maxEntries 最多缓存的用户数
+     * @param ttlMillis 认证成功结果的有效期,应当很短
+     * @param eligibleUser 哪些用户名可以使用缓存
+     * @param iterations PBKDF2的迭代次数
+     */
+    public AuthenticationCache(int maxEntries, long ttlMillis, Predicate<String> eligibleUser, int iterations) {
+        if (maxEntries < 1) { throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries); }
+        if (ttlMillis < 1) { throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis); }
+        if (iterations < 1) { throw new IllegalArgumentException("iterations must be positive: " + iterations); }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.iterations = iterations;
+        this.eligibleUser = eligibleUser;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > AuthenticationCache.this.maxEntries;
+            }
+        };
+    }
+
+    /** 累计命中的次数 **/
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** 累计可以使用缓存但没有命中的次数 **/
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 删除一个用户的所有缓存,如修改密码后 **/
+    public void invalidate(String user) {
+        lock.lock();
+        try {
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().user.equals(user)) {
+                    keys.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 该用户是否可以使用缓存 **/
+    boolean isEligible(String user) {
+        return user != null && eligibleUser.test(user);
+    }
+
+    /**
+     * 构造缓存键
+     * @param user
+     * @param privLvl
+     * @param service
+     * @param port
+     * @param remAddr
+     * @return
+     */
+    static Key key(String user, byte privLvl, TACACS_PLUS.AUTHEN.SVC service, String port, String remAddr) {
+        return new Key(user, privLvl, service, port == null ? "" : port, remAddr == null ? "" : remAddr);
+    }
+
+    /**
+     * @return 有效期内并且密码一致时返回缓存的结果,否则返回null
+     */
+    AuthenReply lookup(Key key, String password) {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+                entries.remove(key);
+                entry = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 在锁外计算校验值,不阻塞其他用户
+        if (entry == null || !MessageDigest.isEqual(entry.verifier, verifier(password, entry.salt))) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.reply;
+    }
+
+    /**
+     * 保存服务器返回的结果:PASS时保存新的校验值,其他结果删除该用户的所有缓存
+     */
+    void put(Key key, String password, AuthenReply reply) {
+        if (!reply.isOK()) {
+            invalidate(key.user);
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        SessionIdAllocator.nextBytes(salt, 0, SALT_LENGTH);
+        byte[] verifier = verifier(password, salt);
+        // 在加锁发布之前解码全部字段,之后多个线程读取同一个结果时不再修改它
+        reply.getServerMsg();
+        reply.getData();
+        lock.lock();
+        try {
+            entries.put(key, new Entry(salt, verifier, reply, System.currentTimeMillis() + ttlMillis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] verifier(String password, byte[] salt) {
+        char[] chars = password == null ? new char[0] : password.toCharArray();
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, VERIFIER_BITS);
+        try {
+            return PBKDF2.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    static final class Key {
+        final String user;
+        private final byte privLvl;
+        private final TACACS_PLUS.AUTHEN.SVC service;
+        private final String port;
+        private final String remAddr;
+        private final int hash;
+
+        Key(String user, byte privLvl, TACACS_PLUS.AUTHEN.SVC service, String port, String remAddr) {
+            this.user = user;
+            this.privLvl = privLvl;
+            this.service = service;
+            this.port = port;
+            this.remAddr = remAddr;
+            int h = user.hashCode();
+            h = 31 * h + privLvl;
+            h = 31 * h + (service == null ? 0 : service.hashCode());
+            h = 31 * h + port.hashCode();
+            this.hash = 31 * h + remAddr.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && privLvl == other.privLvl && service == other.service
+                    && user.equals(other.user) && port.equals(other.port) && remAddr.equals(other.remAddr);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] salt;
+        final byte[] verifier;
+        final AuthenReply reply;
+        final long expiresAt;
+
+        Entry(byte[] salt, byte[] verifier, AuthenReply reply, long expiresAt) {
+            this.salt = salt;
+            this.verifier = verifier;
+            this.reply = reply;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 授权结果缓存,默认不启用,通过TacacsClient.setAuthorizationCache设置.
+ * 以用户名、端口、远程地址、认证方式、服务、权限级别和规范化后的参数列表为键,与服务器可能用于判断的请求字段一致,PASS_ADD/PASS_REPL和FAIL分别使用不同的有效期,
+ * ERROR和FOLLOW不缓存;条目数超过上限时淘汰最久没有使用的条目.
+ * 过期后的staleMillis之内仍然返回旧的结果,同时在后台重新授权一次,用新结果替换旧结果
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AuthorizationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationCache.class);
+
+    private final int maxEntries;
+    private final long passTtlMillis;
+    private final long failTtlMillis;
+    private final long staleMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** 按访问顺序排列,最久没有使用的在最前 **/
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder staleHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxEntries 最多缓存的结果数
+     * @param passTtlMillis PASS_ADD和PASS_REPL结果的有效期,0表示不缓存
+     * @param failTtlMillis FAIL结果的有效期,0表示不缓存
+     * @param staleMillis 过期后继续使用旧结果并在后台重新授权的时间,0表示过期后立即重新授权
+     */
+    public AuthorizationCache(int maxEntries, long passTtlMillis, long failTtlMillis, long staleMillis) {
+        if (maxEntries < 1) { throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries); }
+        if (passTtlMillis < 0 || failTtlMillis < 0 || staleMillis < 0) { throw new IllegalArgumentException("TTLs must not be negative"); }
+        this.maxEntries = maxEntries;
+        this.passTtlMillis = passTtlMillis;
+        this.failTtlMillis = failTtlMillis;
+        this.staleMillis = staleMillis;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > AuthorizationCache.this.maxEntries;
+            }
+        };
+    }
+
+    /** 累计在有效期内命中的次数 **/
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** 累计返回过期结果并在后台重新授权的次数 **/
+    public long getStaleHitCount() {
+        return staleHitCount.sum();
+    }
+
+    /** 累计没有命中的次数 **/
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 删除一个用户的所有结果,如用户权限变更后 **/
+    public void invalidate(String user) {
+        lock.lock();
+        try {
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().user.equals(user)) {
+                    keys.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 构造缓存键.参数列表按原顺序保留,属性名转为小写;值保持原样,值不同的请求可能得到不同的授权结果
+     * @param user
+     * @param port
+     * @param remAddr
+     * @param method
+     * @param type
+     * @param service
+     * @param privLvl
+     * @param arguments
+     * @return
+     */
+    static Key key(String user, String port, String remAddr, TACACS_PLUS.AUTHEN.METH method, TACACS_PLUS.AUTHEN.TYPE type,
+                   TACACS_PLUS.AUTHEN.SVC service, byte privLvl, Argument[] arguments) {
+        String[] normalized = new String[arguments == null ? 0 : arguments.length];
+        for (int i = 0; i < normalized.length; i++) {
+            Argument argument = arguments[i];
+            normalized[i] = argument.attribute.toLowerCase(Locale.ROOT) + (argument.isOptional() ? '*' : '=')
+                    + (argument.value == null ? "" : argument.value);
+        }
+        return new Key(user == null ? "" : user, port == null ? "" : port, remAddr == null ? "" : remAddr, method, type, service, privLvl, normalized);
+    }
+
+    /**
+     * 查找缓存的结果.结果已过期但还在staleMillis之内时返回旧结果,并调用revalidate重新授权一次
+     * @param key
+     * @param revalidate 在后台重新授权
+     * @return 没有可用的结果时返回null
+     */
+    AuthorReply lookup(Key key, Supplier<CompletionStage<AuthorReply>> revalidate) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean refresh = false;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry == null || now >= entry.expiresAt + staleMillis) {
+                missCount.increment();
+                return null;
+            }
+            if (now >= entry.expiresAt) {
+                if (!entry.refreshing) {
+                    entry.refreshing = true;
+                    refresh = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (now < entry.expiresAt) {
+            hitCount.increment();
+            return entry.reply;
+        }
+        staleHitCount.increment();
+        if (refresh) {
+            refresh(key, entry, revalidate);
+        }
+        return entry.reply;
+    }
+
+    private void refresh(Key key, Entry entry, Supplier<CompletionStage<AuthorReply>> revalidate) {
+        try {
+            revalidate.get().whenComplete((reply, cause) -> {
+                if (cause == null) {
+                    put(key, reply);
+                } else {
+                    logger.debug("TACACS+ authorization revalidation failed for " + key.user + ": " + cause);
+                }
+                lock.lock();
+                try {
+                    entry.refreshing = false;
+                } finally {
+                    lock.unlock();
+                }
+            });
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                entry.refreshing = false;
+            } finally {
+                lock.unlock();
+            }
+            logger.debug("TACACS+ authorization revalidation failed for " + key.user + ": " + e);
+        }
+    }
+
+    /**
+     * 保存服务器返回的结果;ERROR和FOLLOW不保存并删除旧结果
+     * @param key
+     * @param reply
+     */
+    void put(Key key, AuthorReply reply) {
+        long ttl;
+        switch (reply.status) {
+            case PASS_ADD:
+            case PASS_REPL:
+                ttl = passTtlMillis;
+                break;
+            case FAIL:
+                ttl = failTtlMillis;
+                break;
+            default:
+                ttl = 0;
+                break;
+        }
+        if (ttl > 0) {
+            decode(reply);
+        }
+        lock.lock();
+        try {
+            if (ttl > 0) {
+                entries.put(key, new Entry(reply, System.currentTimeMillis() + ttl));
+            } else {
+                entries.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 解码响应中延迟解码的全部字段.在发布给多个线程之前调用,之后读取同一个结果时不再修改它
+     * @param reply
+     */
+    static void decode(AuthorReply reply) {
+        // server_msg在收到时已经解码
+        reply.getData();
+        reply.getArguments();
+    }
+
+    static final class Key {
+        final String user;
+        private final String port;
+        private final String remAddr;
+        private final TACACS_PLUS.AUTHEN.METH method;
+        private final TACACS_PLUS.AUTHEN.TYPE type;
+        private final TACACS_PLUS.AUTHEN.SVC service;
+        private final byte privLvl;
+        private final String[] arguments;
+        private final int hash;
+
+        Key(String user, String port, String remAddr, TACACS_PLUS.AUTHEN.METH method, TACACS_PLUS.AUTHEN.TYPE type,
+            TACACS_PLUS.AUTHEN.SVC service, byte privLvl, String[] arguments) {
+            this.user = user;
+            this.port = port;
+            this.remAddr = remAddr;
+            this.method = method;
+            this.type = type;
+            this.service = service;
+            this.privLvl = privLvl;
+            this.arguments = arguments;
+            int h = user.hashCode();
+            h = 31 * h + port.hashCode();
+            h = 31 * h + remAddr.hashCode();
+            h = 31 * h + (method == null ? 0 : method.hashCode());
+            h = 31 * h + (type == null ? 0 : type.hashCode());
+            h = 31 * h + (service == null ? 0 : service.hashCode());
+            h = 31 * h + privLvl;
+            this.hash = 31 * h + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && privLvl == other.privLvl && method == other.method && type == other.type
+                    && service == other.service
+                    && user.equals(other.user) && port.equals(other.port) && remAddr.equals(other.remAddr)
+                    && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final AuthorReply reply;
+        final long expiresAt;
+        /** 只在锁内读写 **/
+        boolean refreshing;
+
+        Entry(AuthorReply reply, long expiresAt) {
+            this.reply = reply;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 合并并发的相同授权请求,默认不启用,通过TacacsClient.setAuthorizationCoalescing设置.
+ * 用户名、端口、地址、认证方式、服务、权限级别和参数列表都相同的授权请求在第一个请求收到响应之前,
+ * 不再发送到服务器,而是等待第一个请求的结果;第一个请求超时或失败时所有等待者同样失败.
+ * 响应到达后立即移除,之后的请求重新发送
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AuthorizationCoalescer {
+
+    private final ConcurrentHashMap<Key, CompletableFuture<AuthorReply>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /** 累计发送到服务器的请求数 **/
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /** 累计与正在发送的请求合并的请求数 **/
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /** 当前正在等待响应的不同请求数 **/
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    static Key key(String user, String port, String remAddr, TACACS_PLUS.AUTHEN.METH method, TACACS_PLUS.AUTHEN.TYPE type,
+                   TACACS_PLUS.AUTHEN.SVC service, byte privLvl, Argument[] arguments) {
+        String[] args = new String[arguments == null ? 0 : arguments.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = arguments[i].toString();
+        }
+        return new Key(user, port, remAddr, method, type, service, privLvl, args);
+    }
+
+    /**
+     * 没有相同的请求在等待响应时调用send发送,否则等待那个请求的结果
+     * @param key
+     * @param send 发送请求
+     * @return 每个调用方得到各自的CompletableFuture,取消或完成它不影响其他调用方
+     */
+    CompletableFuture<AuthorReply> execute(Key key, Supplier<CompletionStage<AuthorReply>> send) {
+        CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+        CompletableFuture<AuthorReply> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedCount.increment();
+            return existing.thenApply(Function.identity());
+        }
+        sentCount.increment();
+        try {
+            send.get().whenComplete((reply, cause) -> {
+                // 先移除再完成,完成之后到达的请求重新发送
+                inFlight.remove(key, flight);
+                if (cause != null) {
+                    flight.completeExceptionally(cause);
+                } else {
+                    // 同一个结果交给所有合并的调用方,先在本线程解码
+                    AuthorizationCache.decode(reply);
+                    flight.complete(reply);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight.thenApply(Function.identity());
+    }
+
+    static final class Key {
+        private final String user;
+        private final String port;
+        private final String remAddr;
+        private final TACACS_PLUS.AUTHEN.METH method;
+        private final TACACS_PLUS.AUTHEN.TYPE type;
+        private final TACACS_PLUS.AUTHEN.SVC service;
+        private final byte privLvl;
+        private final String[] arguments;
+        private final int hash;
+
+        Key(String user, String port, String remAddr, TACACS_PLUS.AUTHEN.METH method, TACACS_PLUS.AUTHEN.TYPE type,
+            TACACS_PLUS.AUTHEN.SVC service, byte privLvl, String[] arguments) {
+            this.user = user;
+            this.port = port;
+            this.remAddr = remAddr;
+            this.method = method;
+            this.type = type;
+            this.service = service;
+            this.privLvl = privLvl;
+            this.arguments = arguments;
+            this.hash = Objects.hash(user, port, remAddr, method, type, service, privLvl) * 31 + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && privLvl == other.privLvl && method == other.method && type == other.type
+                    && service == other.service && Objects.equals(user, other.user) && Objects.equals(port, other.port)
+                    && Objects.equals(remAddr, other.remAddr) && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
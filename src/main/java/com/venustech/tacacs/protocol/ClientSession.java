@@ -14,7 +14,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * @author zhangxin
@@ -31,6 +36,25 @@ public class ClientSession extends Session{
     private byte headerFlags;
     private static final AtomicInteger PPP_ID = new AtomicInteger();//chap
     private static final int CHAP_CHALLENGE_LENGTH = 16;
+    /** CHAP响应使用的MD5,每个线程一个实例,digest后自动重置 **/
+    private static final ThreadLocal<MessageDigest> CHAP_MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    /**
+     * 同一会话的阻塞请求依次执行.等待响应时不持有对象监视器,
+     * 在虚拟线程上调用时不会占住载体线程
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** 授权结果缓存,为null时每次授权都发送到服务器 **/
+    private volatile AuthorizationCache authorizationCache;
+    /** PAP认证结果缓存,为null时每次认证都发送到服务器 **/
+    private volatile AuthenticationCache authenticationCache;
+    /** 合并并发的相同授权请求,为null时不合并 **/
+    private volatile AuthorizationCoalescer authorizationCoalescer;
 
 
     public ClientSession(TACACS_PLUS.AUTHEN.SVC svc, String port, String rem_addr, byte priv_lvl, TacacsMessageHandler tacacs, boolean singleConnect, boolean unencrypted) {
@@ -62,13 +86,46 @@ public class ClientSession extends Session{
         }
     }
 
+    /**
+     * 设置授权结果缓存,只对使用参数列表的authorize和authorizeAsync生效
+     * @param authorizationCache 为null时不使用缓存
+     */
+    public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+        this.authorizationCache = authorizationCache;
+    }
+
+    /**
+     * 设置PAP认证结果缓存,只对authenticate_PAP和authenticate_PAPAsync生效
+     * @param authenticationCache 为null时不使用缓存
+     */
+    public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+        this.authenticationCache = authenticationCache;
+    }
+
+    /**
+     * 设置授权请求合并,只对使用参数列表的authorize和authorizeAsync生效
+     * @param authorizationCoalescer 为null时不合并
+     */
+    public void setAuthorizationCoalescer(AuthorizationCoalescer authorizationCoalescer) {
+        this.authorizationCoalescer = authorizationCoalescer;
+    }
+
     @Override
     public boolean isSingleConnectMode(){
         return super.isSingleConnectMode() && singleConnect;
     }
 
     @Override
-    public synchronized boolean handlePacket(Packet packet) throws Exception{
+    public boolean handlePacket(Packet packet) throws Exception{
+        lock.lock();
+        try {
+            return handlePacketLocked(packet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean handlePacketLocked(Packet packet) throws Exception{
         super.handlePacket(packet);
         boolean result = false;
         switch (packet.header.type){
@@ -81,7 +138,7 @@ public class ClientSession extends Session{
                         break;
                     case GETDATA:
                         if(ui == null){throw new IOException("no user input data");}
-                        String data = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status);
+                        String data = ui.getUserInput(authenReply.getServerMsg(), authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status);
                         TacacsFuture getData = tacacs.sendTacacsPacket(new AuthenContinue
                                 (
                                         packet.getHeader().next(TACACS_PLUS.PACKET.VERSION.v13_0),
@@ -93,7 +150,7 @@ public class ClientSession extends Session{
                         break;
                     case GETUSER:
                         if (ui==null) { throw new IOException("No interactive user interface available."); }
-                        String username = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
+                        String username = ui.getUserInput(authenReply.getServerMsg(), authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
                         TacacsFuture getUser = tacacs.sendTacacsPacket(new AuthenContinue
                                 (
                                         packet.getHeader().next(TACACS_PLUS.PACKET.VERSION.v13_0),
@@ -105,7 +162,7 @@ public class ClientSession extends Session{
                         break;
                     case GETPASS:
                         if (ui==null) { throw new IOException("No interactive user interface available."); }
-                        String password = ui.getUserInput(authenReply.server_msg, authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
+                        String password = ui.getUserInput(authenReply.getServerMsg(), authenReply.hasFlag(TACACS_PLUS.REPLY.FLAG.NOECHO), authenReply.status); // blocks for user input
                         TacacsFuture getPass = tacacs.sendTacacsPacket(new AuthenContinue
                                 (
                                         packet.getHeader().next(TACACS_PLUS.PACKET.VERSION.v13_0),
@@ -134,10 +191,11 @@ public class ClientSession extends Session{
                 if (authorReply.isOK()){
                     result = true;
                 }
-                logger.info("author reply mode is : " + authorReply.status);
+                logger.debug("author reply mode is : " + authorReply.status);
                 break;
             /** 审计 **/
             case ACCT:
+                result = ((AcctReply)packet).isOK();
                 end(packet);
                 break;
             default:
@@ -152,8 +210,20 @@ public class ClientSession extends Session{
      * @return
      * @throws Exception
      */
-    public synchronized AuthenReply authenticate_ASCII() throws Exception {
-        TacacsFuture tacacsFuture = tacacs.sendTacacsPacket(new AuthenStart
+    public AuthenReply authenticate_ASCII() throws Exception {
+        return sendAndWait(this::asciiStart, AuthenReply.class, tacacs.getResponseTimeoutMillis());
+    }
+
+    /**
+     * 异步ASCII认证,返回服务器的第一个响应;后续的GETUSER/GETPASS交互仍由handlePacket完成
+     * @return
+     */
+    public CompletionStage<AuthenReply> authenticate_ASCIIAsync() {
+        return sendAsync(this::asciiStart, AuthenReply.class, tacacs.getResponseTimeoutMillis());
+    }
+
+    private AuthenStart asciiStart() {
+        return new AuthenStart
                 (
                         new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHEN,id),
                         TACACS_PLUS.AUTHEN.ACTION.LOGIN,
@@ -164,8 +234,7 @@ public class ClientSession extends Session{
                         port,
                         rem_addr,
                         "" // server will prompt for password
-                ));
-        return (AuthenReply) tacacsFuture.get();
+                );
     }
 
 
@@ -178,9 +247,62 @@ public class ClientSession extends Session{
      * @throws java.util.concurrent.TimeoutException
      * @throws java.io.IOException
      */
-    public synchronized AuthenReply authenticate_PAP(String username, String password) throws Exception {
+    public AuthenReply authenticate_PAP(String username, String password) throws Exception {
+        return authenticate_PAP(username, password, tacacs.getResponseTimeoutMillis());
+    }
 
-        TacacsFuture tacacsFuture = tacacs.sendTacacsPacket(new AuthenStart
+    /**
+     * PAP认证,使用指定的超时时间
+     * @param username
+     * @param password
+     * @param timeoutMillis 超时后抛出包装了TimeoutException的ExecutionException
+     * @return
+     * @throws Exception
+     */
+    public AuthenReply authenticate_PAP(String username, String password, long timeoutMillis) throws Exception {
+        AuthenticationCache cache = authenticationCache;
+        if (cache == null || !cache.isEligible(username)) {
+            return sendAndWait(() -> papStart(username, password), AuthenReply.class, timeoutMillis);
+        }
+        AuthenticationCache.Key key = AuthenticationCache.key(username, priv_lvl, authen_svc, port, rem_addr);
+        AuthenReply cached = cache.lookup(key, password);
+        if (cached != null) {
+            return cached;
+        }
+        AuthenReply reply = sendAndWait(() -> papStart(username, password), AuthenReply.class, timeoutMillis);
+        cache.put(key, password, reply);
+        return reply;
+    }
+
+    /**
+     * 异步PAP认证
+     * @param username
+     * @param password
+     * @return 在收到服务器响应时完成
+     */
+    public CompletionStage<AuthenReply> authenticate_PAPAsync(String username, String password) {
+        return authenticate_PAPAsync(username, password, tacacs.getResponseTimeoutMillis());
+    }
+
+    public CompletionStage<AuthenReply> authenticate_PAPAsync(String username, String password, long timeoutMillis) {
+        AuthenticationCache cache = authenticationCache;
+        if (cache == null || !cache.isEligible(username)) {
+            return sendAsync(() -> papStart(username, password), AuthenReply.class, timeoutMillis);
+        }
+        AuthenticationCache.Key key = AuthenticationCache.key(username, priv_lvl, authen_svc, port, rem_addr);
+        AuthenReply cached = cache.lookup(key, password);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return sendAsync(() -> papStart(username, password), AuthenReply.class, timeoutMillis)
+                .thenApply(reply -> {
+                    cache.put(key, password, reply);
+                    return reply;
+                });
+    }
+
+    private AuthenStart papStart(String username, String password) {
+        return new AuthenStart
                 (
                         new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_1, TACACS_PLUS.PACKET.TYPE.AUTHEN,id),
                         TACACS_PLUS.AUTHEN.ACTION.LOGIN,
@@ -191,8 +313,7 @@ public class ClientSession extends Session{
                         port,
                         rem_addr,
                         password
-                ));
-        return (AuthenReply) tacacsFuture.get();
+                );
     }
 
 
@@ -204,21 +325,43 @@ public class ClientSession extends Session{
      * @throws java.util.concurrent.TimeoutException
      * @throws java.io.IOException
      */
-    public synchronized AuthenReply authenticate_CHAP(String username, String password) throws Exception {
+    public AuthenReply authenticate_CHAP(String username, String password) throws Exception {
+        return authenticate_CHAP(username, password, tacacs.getResponseTimeoutMillis());
+    }
+
+    public AuthenReply authenticate_CHAP(String username, String password, long timeoutMillis) throws Exception {
+        return sendAndWait(() -> chapStart(username, password), AuthenReply.class, timeoutMillis);
+    }
+
+    /**
+     * 异步CHAP认证
+     * @param username
+     * @param password
+     * @return 在收到服务器响应时完成
+     */
+    public CompletionStage<AuthenReply> authenticate_CHAPAsync(String username, String password) {
+        return authenticate_CHAPAsync(username, password, tacacs.getResponseTimeoutMillis());
+    }
+
+    public CompletionStage<AuthenReply> authenticate_CHAPAsync(String username, String password, long timeoutMillis) {
+        return sendAsync(() -> chapStart(username, password), AuthenReply.class, timeoutMillis);
+    }
+
+    private AuthenStart chapStart(String username, String password) throws Exception {
         byte[] data = new byte[1+CHAP_CHALLENGE_LENGTH+16]; // PPP ID byte + challenge + MD5 hash response
         // The PPP ID needs to be relatively unique per login attempt
         data[0] = (byte)PPP_ID.getAndIncrement();
         // In CHAP for TACACS+, the client-side generates the challenge.
-        byte[] challenge = Session.generateRandomBytes(CHAP_CHALLENGE_LENGTH);
-        MessageDigest md = MessageDigest.getInstance("MD5");
+        // 挑战码直接从随机数缓冲区写入data
+        SessionIdAllocator.nextBytes(data, 1, CHAP_CHALLENGE_LENGTH);
+        MessageDigest md = CHAP_MD5.get();
         md.update(data[0]);
         md.update(password.getBytes(StandardCharsets.UTF_8));
-        md.update(challenge);
-        byte[] response = md.digest();
-        System.arraycopy(challenge, 0, data, 1, challenge.length);
-        System.arraycopy(response, 0, data, 1+challenge.length, response.length);
+        md.update(data, 1, CHAP_CHALLENGE_LENGTH);
+        // MD5结果直接写入data末尾
+        md.digest(data, 1+CHAP_CHALLENGE_LENGTH, 16);
 
-        TacacsFuture tacacsFuture = tacacs.sendTacacsPacket(new AuthenStart
+        return new AuthenStart
                 (
                         new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_1, TACACS_PLUS.PACKET.TYPE.AUTHEN,id),
                         TACACS_PLUS.AUTHEN.ACTION.LOGIN,
@@ -229,8 +372,7 @@ public class ClientSession extends Session{
                         port,
                         rem_addr,
                         data
-                ));
-        return (AuthenReply)tacacsFuture.get();
+                );
     }
 
     /**
@@ -243,8 +385,175 @@ public class ClientSession extends Session{
      * @return
      * @throws Exception
      */
-    public synchronized AuthorReply authorize(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws Exception {
-        TacacsFuture  tacacsFuture = tacacs.sendTacacsPacket(new AuthorRequest
+    public AuthorReply authorize(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws Exception {
+        return authorize(username, authen_meth, authen_type, authen_svc, args, tacacs.getResponseTimeoutMillis());
+    }
+
+    public AuthorReply authorize(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) throws Exception {
+        AuthorizationCache cache = authorizationCache;
+        AuthorizationCache.Key key = null;
+        if (cache != null) {
+            key = AuthorizationCache.key(username, port, rem_addr, authen_meth, authen_type, authen_svc, priv_lvl, args);
+            AuthorReply cached = cache.lookup(key, () -> revalidate(username, authen_meth, authen_type, authen_svc, args, timeoutMillis));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        AuthorizationCoalescer coalescer = authorizationCoalescer;
+        AuthorReply reply;
+        if (coalescer == null) {
+            reply = sendAndWait(() -> authorRequest(username, authen_meth, authen_type, authen_svc, args), AuthorReply.class, timeoutMillis);
+        } else {
+            reply = await(() -> coalesce(coalescer, username, authen_meth, authen_type, authen_svc, args, timeoutMillis));
+        }
+        if (cache != null) {
+            cache.put(key, reply);
+        }
+        return reply;
+    }
+
+    /**
+     * 异步授权
+     * @param username
+     * @param authen_meth
+     * @param authen_type
+     * @param authen_svc
+     * @param args
+     * @return 在收到服务器响应时完成
+     */
+    public CompletionStage<AuthorReply> authorizeAsync(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) {
+        return authorizeAsync(username, authen_meth, authen_type, authen_svc, args, tacacs.getResponseTimeoutMillis());
+    }
+
+    public CompletionStage<AuthorReply> authorizeAsync(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) {
+        AuthorizationCache cache = authorizationCache;
+        AuthorizationCache.Key key = null;
+        if (cache != null) {
+            key = AuthorizationCache.key(username, port, rem_addr, authen_meth, authen_type, authen_svc, priv_lvl, args);
+            AuthorReply cached = cache.lookup(key, () -> revalidate(username, authen_meth, authen_type, authen_svc, args, timeoutMillis));
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        AuthorizationCoalescer coalescer = authorizationCoalescer;
+        CompletionStage<AuthorReply> reply = coalescer == null
+                ? sendAsync(() -> authorRequest(username, authen_meth, authen_type, authen_svc, args), AuthorReply.class, timeoutMillis)
+                : coalesce(coalescer, username, authen_meth, authen_type, authen_svc, args, timeoutMillis);
+        if (cache == null) {
+            return reply;
+        }
+        AuthorizationCache.Key cacheKey = key;
+        return reply.thenApply(r -> {
+            cache.put(cacheKey, r);
+            return r;
+        });
+    }
+
+    /**
+     * 与其他会话上正在等待响应的相同请求合并;没有相同请求时在本会话上发送,本会话的超时时间对所有合并的调用方生效
+     */
+    private CompletableFuture<AuthorReply> coalesce(AuthorizationCoalescer coalescer, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) {
+        AuthorizationCoalescer.Key key = AuthorizationCoalescer.key(username, port, rem_addr, authen_meth, authen_type, authen_svc, priv_lvl, args);
+        return coalescer.execute(key, () -> sendAsync(() -> authorRequest(username, authen_meth, authen_type, authen_svc, args), AuthorReply.class, timeoutMillis));
+    }
+
+    /**
+     * 在后台重新授权.使用客户端分配的另一个会话发送,不占用本会话的sessionID,调用方可以继续在本会话上发送请求;
+     * 服务器拒绝单连接时本会话的连接是独占的,不能在上面再开始一个会话,新会话使用另一个连接
+     */
+    private CompletionStage<AuthorReply> revalidate(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) {
+        ClientSession sibling = tacacs.getClient().pollSession(this.authen_svc, port, rem_addr, priv_lvl);
+        if (sibling == null) {
+            CompletableFuture<AuthorReply> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No TACACS+ connection available for revalidation"));
+            return failed;
+        }
+        // 新会话必须发送到服务器,不能再命中正在刷新的旧结果
+        sibling.setAuthorizationCache(null);
+        return sibling.authorizeAsync(username, authen_meth, authen_type, authen_svc, args, timeoutMillis)
+                .whenComplete((reply, cause) -> sibling.close());
+    }
+
+    /**
+     * 使用预先编码的模板授权,只写入本会话的报头;模板中的端口和地址代替会话的端口和地址
+     * @param template
+     * @return
+     * @throws Exception
+     */
+    public AuthorReply authorize(AuthorTemplate template) throws Exception {
+        return authorize(template, tacacs.getResponseTimeoutMillis());
+    }
+
+    public AuthorReply authorize(AuthorTemplate template, long timeoutMillis) throws Exception {
+        return sendAndWait(() -> authorRequest(template), AuthorReply.class, timeoutMillis);
+    }
+
+    /**
+     * 使用预先编码的模板异步授权
+     * @param template
+     * @return 在收到服务器响应时完成
+     */
+    public CompletionStage<AuthorReply> authorizeAsync(AuthorTemplate template) {
+        return authorizeAsync(template, tacacs.getResponseTimeoutMillis());
+    }
+
+    public CompletionStage<AuthorReply> authorizeAsync(AuthorTemplate template, long timeoutMillis) {
+        return sendAsync(() -> authorRequest(template), AuthorReply.class, timeoutMillis);
+    }
+
+    /**
+     * 审计
+     * @param flag START、STOP或WATCHDOG
+     * @param username
+     * @param authen_meth
+     * @param authen_type
+     * @param authen_svc
+     * @param args 审计参数,如task_id、start_time、stop_time、cmd
+     * @return
+     * @throws Exception
+     */
+    public AcctReply account(TACACS_PLUS.ACCT.FLAG flag, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) throws Exception {
+        return account(flag, username, authen_meth, authen_type, authen_svc, args, tacacs.getResponseTimeoutMillis());
+    }
+
+    public AcctReply account(TACACS_PLUS.ACCT.FLAG flag, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) throws Exception {
+        return sendAndWait(() -> acctRequest(flag, username, authen_meth, authen_type, authen_svc, args), AcctReply.class, timeoutMillis);
+    }
+
+    /**
+     * 异步审计
+     * @return 在收到服务器响应时完成
+     */
+    public CompletionStage<AcctReply> accountAsync(TACACS_PLUS.ACCT.FLAG flag, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) {
+        return accountAsync(flag, username, authen_meth, authen_type, authen_svc, args, tacacs.getResponseTimeoutMillis());
+    }
+
+    public CompletionStage<AcctReply> accountAsync(TACACS_PLUS.ACCT.FLAG flag, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args, long timeoutMillis) {
+        return sendAsync(() -> acctRequest(flag, username, authen_meth, authen_type, authen_svc, args), AcctReply.class, timeoutMillis);
+    }
+
+    private AcctRequest acctRequest(TACACS_PLUS.ACCT.FLAG flag, String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) {
+        return new AcctRequest
+                (
+                        new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.ACCT,id),
+                        flag,
+                        authen_meth,
+                        priv_lvl,
+                        authen_type,
+                        authen_svc,
+                        username,
+                        port,
+                        rem_addr,
+                        args
+                );
+    }
+
+    private AuthorRequest authorRequest(AuthorTemplate template) {
+        return new AuthorRequest(new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR,id), template);
+    }
+
+    private AuthorRequest authorRequest(String username, TACACS_PLUS.AUTHEN.METH authen_meth, TACACS_PLUS.AUTHEN.TYPE authen_type, TACACS_PLUS.AUTHEN.SVC authen_svc, Argument[] args) {
+        return new AuthorRequest
                 (
                         new Header(this.headerFlags, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR,id),
                         authen_meth,
@@ -255,8 +564,50 @@ public class ClientSession extends Session{
                         port,
                         rem_addr,
                         args
-                ));
-        return (AuthorReply)tacacsFuture.get();
+                );
+    }
+
+    /** 构造请求包 **/
+    private interface PacketBuilder {
+        Packet build() throws Exception;
+    }
+
+    /**
+     * 发送请求并阻塞等待响应,同一会话上的阻塞请求依次执行
+     */
+    private <T extends Packet> T sendAndWait(PacketBuilder builder, Class<T> replyType, long timeoutMillis) throws Exception {
+        lock.lock();
+        try {
+            TacacsFuture tacacsFuture = tacacs.sendTacacsPacket(builder.build(), timeoutMillis);
+            return replyType.cast(tacacsFuture.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 发送可能被合并的请求并阻塞等待结果,与sendAndWait一样在锁内发送和等待,同一会话上的阻塞请求依次执行
+     */
+    private <T> T await(Supplier<CompletableFuture<T>> send) throws Exception {
+        lock.lock();
+        try {
+            return send.get().get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 发送请求但不等待响应,构造请求包时的异常也通过返回的CompletionStage传递
+     */
+    private <T extends Packet> CompletionStage<T> sendAsync(PacketBuilder builder, Class<T> replyType, long timeoutMillis) {
+        try {
+            return tacacs.sendTacacsPacket(builder.build(), timeoutMillis).toCompletionStage().thenApply(replyType::cast);
+        } catch (Exception e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
     }
 
 }
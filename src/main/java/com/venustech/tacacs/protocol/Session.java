@@ -5,9 +5,6 @@ import com.venustech.tacacs.protocol.entity.base.Packet;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 
 /**
  * @author zhangxin
@@ -37,8 +34,25 @@ public abstract class Session {
         this.port = port;
         this.priv_lvl = priv_lvl;
         this.authen_svc = authen_svc;
-        this.id = id == null ? generateRandomBytes(4) : id;
         this.tacacs = tacacs;
+        if (id != null) {
+            this.id = id;
+        } else if (tacacs != null) {
+            // 由连接分配,保证与该连接上其他活动会话的sessionID不同
+            int value = tacacs.allocateSessionId(this);
+            this.id = new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        } else {
+            this.id = generateRandomBytes(4);
+        }
+    }
+
+    /**
+     * 会话结束,释放sessionID;会话独占的连接(服务器拒绝单连接时)同时关闭.之后不应再在该会话上发送请求
+     */
+    public void close() {
+        if (tacacs != null) {
+            tacacs.releaseSessionId(this, ((id[0] & 0xFF) << 24) | ((id[1] & 0xFF) << 16) | ((id[2] & 0xFF) << 8) | (id[3] & 0xFF));
+        }
     }
 
     boolean handlePacket(Packet p) throws Exception {
@@ -61,12 +75,8 @@ public abstract class Session {
     /** Generate a random byte[], e.g. a session ID for a new client-side session, or a CHAP challenge. */
     final static byte[] generateRandomBytes(int length)
     {
-        // Use of SecureRandom per https://www.cigital.com/blog/proper-use-of-javas-securerandom/
-        SecureRandom sr;
-        try { sr = SecureRandom.getInstance("SHA1PRNG", "SUN"); }
-        catch (NoSuchAlgorithmException | NoSuchProviderException e) { sr = new SecureRandom(); }
         byte[] bytes = new byte[length];
-        sr.nextBytes(bytes);
+        SessionIdAllocator.nextBytes(bytes, 0, length);
         return bytes;
     }
 
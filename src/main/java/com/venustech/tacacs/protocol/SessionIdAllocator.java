@@ -0,0 +1,98 @@
+package com.venustech.tacacs.protocol;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * sessionID和CHAP挑战码的随机数来源.
+ * 按线程分到固定数量的SecureRandom上,每个SecureRandom只在创建时播种一次,
+ * 并且一次生成一批随机字节,之后的请求直接从缓冲区中取,不再为每个会话创建和播种新的随机数生成器.
+ * 连接上活动会话之间的sessionID唯一性由TacacsMessageHandler保证
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class SessionIdAllocator {
+
+    /** 每次从SecureRandom批量生成的字节数 **/
+    private static final int POOL_BYTES = 1024;
+
+    private static final Stripe[] STRIPES;
+
+    static {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        STRIPES = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            STRIPES[i] = new Stripe();
+        }
+    }
+
+    private SessionIdAllocator() {}
+
+    private static Stripe stripe() {
+        return STRIPES[(int) Thread.currentThread().getId() & (STRIPES.length - 1)];
+    }
+
+    /** 一个随机的32位sessionID **/
+    public static int nextSessionId() {
+        return stripe().nextInt();
+    }
+
+    /**
+     * 把length个随机字节直接写入dest,用于CHAP挑战码
+     * @param dest
+     * @param offset
+     * @param length
+     */
+    public static void nextBytes(byte[] dest, int offset, int length) {
+        stripe().nextBytes(dest, offset, length);
+    }
+
+    private static final class Stripe {
+
+        private final SecureRandom random;
+        private final byte[] pool = new byte[POOL_BYTES];
+        private int position = POOL_BYTES;
+
+        Stripe() {
+            // Use of SecureRandom per https://www.cigital.com/blog/proper-use-of-javas-securerandom/
+            SecureRandom sr;
+            try { sr = SecureRandom.getInstance("SHA1PRNG", "SUN"); }
+            catch (NoSuchAlgorithmException | NoSuchProviderException e) { sr = new SecureRandom(); }
+            // 在创建时完成自播种,之后生成随机数不会再读取熵源
+            sr.nextBytes(new byte[1]);
+            this.random = sr;
+        }
+
+        /** 从缓冲区直接取4个字节,不分配数组 **/
+        synchronized int nextInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                if (position == POOL_BYTES) {
+                    random.nextBytes(pool);
+                    position = 0;
+                }
+                value = (value << 8) | (pool[position] & 0xFF);
+                pool[position++] = 0;
+            }
+            return value;
+        }
+
+        synchronized void nextBytes(byte[] dest, int offset, int length) {
+            while (length > 0) {
+                if (position == POOL_BYTES) {
+                    random.nextBytes(pool);
+                    position = 0;
+                }
+                int n = Math.min(length, POOL_BYTES - position);
+                System.arraycopy(pool, position, dest, offset, n);
+                // 已经取出的随机字节不再留在内存中
+                Arrays.fill(pool, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.venustech.tacacs.protocol.entity;
+
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AcctReply extends Packet{
+
+    public final TACACS_PLUS.ACCT.STATUS status;
+    /** 收到的报文主体,server_msg和data在第一次读取时才解码;发送的报文为null **/
+    private final byte[] body;
+    private final int msgLen;
+    private final int dataLen;
+    private String server_msg;
+    private String data;
+
+
+    public AcctReply(Header header, TACACS_PLUS.ACCT.STATUS status, String server_msg, String data){
+
+        super(header);
+        this.status = status;
+        this.server_msg = server_msg;
+        this.data = data;
+        this.body = null;
+        this.msgLen = 0;
+        this.dataLen = 0;
+    }
+
+    public AcctReply(Header header, byte[] body) throws IOException
+    {
+        super(header);
+        // Verify...
+        int overhead = 5;
+        if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
+        msgLen = toInt(body[0],body[1]);
+        dataLen = toInt(body[2],body[3]);
+        int chkLen = overhead + msgLen + dataLen;
+        if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
+        //
+        status = TACACS_PLUS.ACCT.STATUS.forCode(body[4]);
+        if (status == null) { throw new IOException("Received unknown TAC_PLUS_ACCT_STATUS code: "+body[4]); }
+        this.body = body;
+    }
+
+    public boolean isOK() {
+        return status == TACACS_PLUS.ACCT.STATUS.SUCCESS;
+    }
+
+    public String getServerMsg()
+    {
+        if (server_msg == null && msgLen > 0) {
+            server_msg = new String(body, 5, msgLen, StandardCharsets.UTF_8);
+        }
+        return server_msg;
+    }
+
+
+    public String getData()
+    {
+        if (data == null && dataLen > 0) {
+            data = new String(body, 5 + msgLen, dataLen, StandardCharsets.UTF_8);
+        }
+        return data;
+    }
+
+    @Override
+    protected void writeBody(ByteBuf out) {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(status.code());
+        // 长度限制为16位,超出的部分被截断
+        out.setShort(start, writeUtf8(out, getServerMsg(), FFFF));
+        out.setShort(start + 2, writeUtf8(out, getData(), FFFF));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+":"+header+"[status:"+status+" server_msg:'"+getServerMsg()+"' data:'"+getData()+"']";
+    }
+}
@@ -0,0 +1,104 @@
+package com.venustech.tacacs.protocol.entity;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+
+import java.util.Arrays;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AcctRequest extends Packet
+{
+
+	final TACACS_PLUS.ACCT.FLAG flag;
+	final TACACS_PLUS.AUTHEN.METH authen_method;
+	final byte priv_lvl;
+	final TACACS_PLUS.AUTHEN.TYPE authen_type;
+	final TACACS_PLUS.AUTHEN.SVC authen_service;
+	final String user;
+	final String port;
+	final String rem_addr;
+	final Argument[] arguments;
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(100);
+		sb.append(getClass().getSimpleName()).append(":").append(header);
+		sb.append("[");
+		sb.append("flag:").append(flag);
+		sb.append(" authen_method:").append(authen_method);
+		sb.append(" priv_lvl:").append(priv_lvl);
+		sb.append(" authen_type:").append(authen_type);
+		sb.append(" authen_service:").append(authen_service);
+		sb.append(" user:").append(user);
+		sb.append(" port:").append(port);
+		sb.append(" rem_addr:").append(rem_addr);
+		sb.append(" arguments:[").append(Arrays.toString(arguments));
+		sb.append("]]");
+		return sb.toString();
+	}
+
+
+	/**
+	 * Constructor for when building outgoing packets.
+	 */
+	public AcctRequest(
+		Header header,
+		TACACS_PLUS.ACCT.FLAG flag,
+		TACACS_PLUS.AUTHEN.METH authen_method,
+		byte priv_lvl,
+		TACACS_PLUS.AUTHEN.TYPE authen_type,
+		TACACS_PLUS.AUTHEN.SVC authen_service,
+		String user,
+		String port,
+		String rem_addr,
+		Argument[] arguments) {
+		super(header);
+		this.flag = flag;
+		this.authen_method = authen_method;
+		this.priv_lvl = priv_lvl;
+		this.authen_type = authen_type;
+		this.authen_service = authen_service;
+		this.user = user;
+		this.port = port;
+		this.rem_addr = rem_addr;
+		this.arguments = arguments==null?new Argument[0]:arguments;
+	}
+
+	public TACACS_PLUS.ACCT.FLAG getFlag() {
+		return flag;
+	}
+
+
+	/**
+	 * Writes the packet body.
+	 * @param out The buffer the encoder allocated for this packet.
+	 */
+	@Override
+	protected void writeBody(ByteBuf out) {
+		// Same layout as an authorization request, preceded by the accounting flags
+		int argCount = Math.min(FF, arguments.length);
+		int start = out.writerIndex();
+		out.writeByte(flag.code());
+		out.writeByte(authen_method.code());
+		out.writeByte(priv_lvl);
+		out.writeByte(authen_type.code());
+		out.writeByte(authen_service.code());
+		out.writeInt(0);
+		out.setByte(start + 8, argCount);
+		out.writeZero(argCount);
+		out.setByte(start + 5, writeUtf8(out, user, FF));
+		out.setByte(start + 6, writeUtf8(out, port, FF));
+		out.setByte(start + 7, writeUtf8(out, rem_addr, FF));
+		for (int i=0; i<argCount; i++)
+		{
+			out.setByte(start + 9 + i, writeArgument(out, arguments[i], FF));
+		}
+	}
+
+}
@@ -2,11 +2,10 @@ package com.venustech.tacacs.protocol.entity;
 
 import com.venustech.tacacs.protocol.entity.base.Header;
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
  * @author zhangxin
@@ -45,21 +44,13 @@ public class AuthenContinue extends Packet {
 
 
     @Override
-    public byte[] getWriteByte(byte[] key) throws IOException {
-        byte[] umsgBytes = user_msg==null?null:user_msg.getBytes(StandardCharsets.UTF_8);
-        byte[] dataBytes = data==null?null:data.getBytes(StandardCharsets.UTF_8);
-        // Truncating to fit packet...  lengths are limited to 16 bits
-        if (umsgBytes!=null && umsgBytes.length>FFFF) { umsgBytes = Arrays.copyOfRange(umsgBytes,0,FFFF); }
-        if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
-        ByteArrayOutputStream body = new ByteArrayOutputStream(3 + (umsgBytes==null?0:umsgBytes.length) + (dataBytes==null?0:dataBytes.length));
-        body.write(toBytes2(umsgBytes==null?0:umsgBytes.length));
-        body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-        body.write(flags);
-        if (umsgBytes!=null) { body.write(umsgBytes); }
-        if (dataBytes!=null) { body.write(dataBytes); }
-        byte[] bodyBytes = body.toByteArray();
-        header.writePacket(bodyBytes, key);
-        return header.writePacket(bodyBytes, key);
+    protected void writeBody(ByteBuf out) {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        out.writeByte(flags);
+        // 长度限制为16位,超出的部分被截断
+        out.setShort(start, writeUtf8(out, user_msg, FFFF));
+        out.setShort(start + 2, writeUtf8(out, data, FFFF));
     }
 
     @Override
@@ -2,12 +2,11 @@ package com.venustech.tacacs.protocol.entity;
 
 import com.venustech.tacacs.protocol.entity.base.Header;
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
  * @author zhangxin
@@ -17,17 +16,25 @@ public class AuthenReply extends Packet{
 
     public final TACACS_PLUS.AUTHEN.STATUS status;
     final byte flags;
+    /** 给用户的消息,收到报文时即解码,保留为公开字段以兼容直接读取它的代码 **/
     public final String server_msg;
-    final String data;
+    /** 收到的报文主体,data在第一次读取时才解码;发送的报文为null **/
+    private final byte[] body;
+    private final int msgLen;
+    private final int dataLen;
+    private String data;
 
 
-    AuthenReply(Header header, TACACS_PLUS.AUTHEN.STATUS status, byte flags, String server_msg, String data){
+    public AuthenReply(Header header, TACACS_PLUS.AUTHEN.STATUS status, byte flags, String server_msg, String data){
 
         super(header);
         this.status = status;
         this.flags = flags;
         this.server_msg = server_msg;
         this.data = data;
+        this.body = null;
+        this.msgLen = 0;
+        this.dataLen = 0;
     }
 
     public AuthenReply(Header header, byte[] body) throws IOException
@@ -36,8 +43,8 @@ public class AuthenReply extends Packet{
         // Verify...
         int overhead = 6;
         if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
-        int msgLen = toInt(body[2],body[3]);
-        int dataLen = toInt(body[4],body[5]);
+        msgLen = toInt(body[2],body[3]);
+        dataLen = toInt(body[4],body[5]);
         int chkLen = overhead + msgLen + dataLen;
         if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
         //
@@ -45,7 +52,7 @@ public class AuthenReply extends Packet{
         if (status == null) { throw new IOException("Received unknown TAC_PLUS_AUTHEN_STATUS code: "+body[0]); }
         flags = body[1];
         server_msg = (msgLen>0) ? new String(body, 6, msgLen, StandardCharsets.UTF_8) : null;
-        data = (dataLen>0) ? new String(body, 6+msgLen, dataLen, StandardCharsets.UTF_8) : null;
+        this.body = body;
     }
 
     public boolean isOK() {
@@ -65,30 +72,25 @@ public class AuthenReply extends Packet{
 
     public String getData()
     {
+        if (data == null && dataLen > 0) {
+            data = new String(body, 6 + msgLen, dataLen, StandardCharsets.UTF_8);
+        }
         return data;
     }
 
     @Override
-    public byte[] getWriteByte(byte[] key) throws IOException {
-        byte[] smsgBytes = server_msg==null?null:server_msg.getBytes(StandardCharsets.UTF_8);
-        byte[] dataBytes = data==null?null:data.getBytes(StandardCharsets.UTF_8);
-        // Truncating to fit packet...  lengths are limited to a 16 bits
-        if (smsgBytes!=null && smsgBytes.length>FFFF) { smsgBytes = Arrays.copyOfRange(smsgBytes,0,FFFF); }
-        if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
-        ByteArrayOutputStream body = new ByteArrayOutputStream(6 + (smsgBytes==null?0:smsgBytes.length) + (dataBytes==null?0:dataBytes.length));
-        body.write(status.code());
-        body.write(flags);
-        body.write(toBytes2(smsgBytes==null?0:smsgBytes.length));
-        body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-        if (smsgBytes!=null) { body.write(smsgBytes); }
-        if (dataBytes!=null) { body.write(dataBytes); }
-        byte[] bodyBytes = body.toByteArray();
-        header.writePacket(bodyBytes, key);
-        return header.writePacket(bodyBytes, key);
+    protected void writeBody(ByteBuf out) {
+        int start = out.writerIndex();
+        out.writeByte(status.code());
+        out.writeByte(flags);
+        out.writeInt(0);
+        // 长度限制为16位,超出的部分被截断
+        out.setShort(start + 2, writeUtf8(out, getServerMsg(), FFFF));
+        out.setShort(start + 4, writeUtf8(out, getData(), FFFF));
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName()+":"+header+"[status:"+status+" flags:"+flags+" server_msg:'"+server_msg+"' data:'"+data+"']";
+        return getClass().getSimpleName()+":"+header+"[status:"+status+" flags:"+flags+" server_msg:'"+getServerMsg()+"' data:'"+getData()+"']";
     }
 }
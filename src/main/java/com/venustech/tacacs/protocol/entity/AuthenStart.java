@@ -2,9 +2,9 @@ package com.venustech.tacacs.protocol.entity;
 
 import com.venustech.tacacs.protocol.entity.base.Header;
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
@@ -83,25 +83,18 @@ public class AuthenStart extends Packet {
     }
 
     @Override
-    public byte[] getWriteByte(byte[] key) throws IOException{
-
-        byte[] userBytes = username==null?null:username.getBytes(StandardCharsets.UTF_8);
-        byte[] portBytes = port==null?null:port.getBytes(StandardCharsets.UTF_8);
-        byte[] remoBytes = rem_addr==null?null:rem_addr.getBytes(StandardCharsets.UTF_8);
-        ByteArrayOutputStream body = new ByteArrayOutputStream();
-        body.write(action.code());
-        body.write(priv_lvl);
-        body.write(type.code());
-        body.write(authen_service.code());
-        body.write(userBytes==null?0:userBytes.length);
-        body.write(portBytes==null?0:portBytes.length);
-        body.write(remoBytes==null?0:remoBytes.length);
-        body.write(dataBytes==null?0:dataBytes.length);
-        if (userBytes!=null) { body.write(userBytes); }
-        if (portBytes!=null) { body.write(portBytes); }
-        if (remoBytes!=null) { body.write(remoBytes); }
-        if (dataBytes!=null) { body.write(dataBytes); }
-        return header.writePacket(body.toByteArray(), key);
+    protected void writeBody(ByteBuf out) {
+        int start = out.writerIndex();
+        out.writeByte(action.code());
+        out.writeByte(priv_lvl);
+        out.writeByte(type.code());
+        out.writeByte(authen_service.code());
+        out.writeInt(0);
+        // 长度限制为一个字节,超出的部分被截断
+        out.setByte(start + 4, writeUtf8(out, username, FF));
+        out.setByte(start + 5, writeUtf8(out, port, FF));
+        out.setByte(start + 6, writeUtf8(out, rem_addr, FF));
+        out.setByte(start + 7, writeBytes(out, dataBytes, FF));
     }
 
     @Override
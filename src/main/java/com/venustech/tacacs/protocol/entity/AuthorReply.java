@@ -3,9 +3,9 @@ package com.venustech.tacacs.protocol.entity;
 import com.venustech.tacacs.protocol.entity.base.Argument;
 import com.venustech.tacacs.protocol.entity.base.Header;
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -17,9 +17,17 @@ import java.util.Arrays;
 public class AuthorReply extends Packet {
 
 	public final TACACS_PLUS.AUTHOR.STATUS status;
-	public final String server_msg; // optional message for user
-	final String data; // admin or console log; not for user
-	final Argument[] arguments;
+	/** Optional message for the user; decoded on receipt and kept public for code that reads the field directly. */
+	public final String server_msg;
+	/** The received body; data and arguments are decoded from it on first access. Null for outgoing packets. */
+	private final byte[] body;
+	private final int msgLen;
+	private final int dataLen;
+	private final int argCount;
+	private String data; // admin or console log; not for user
+	private Argument[] arguments;
+	/** Argument offsets and attribute lookup table over the raw body; built on first access. */
+	private ArgumentIndex argumentIndex;
 	
 	@Override
     public String toString() {
@@ -27,21 +35,25 @@ public class AuthorReply extends Packet {
 		sb.append(getClass().getSimpleName()).append(":").append(header);
 		sb.append("[");
 		sb.append("status:").append(status);
-		sb.append(" server_msg:'").append(server_msg).append("'");
-		sb.append(" data:'").append(data).append("'");
-		sb.append(" arguments:[").append(Arrays.toString(arguments));
+		sb.append(" server_msg:'").append(getServerMsg()).append("'");
+		sb.append(" data:'").append(getData()).append("'");
+		sb.append(" arguments:[").append(Arrays.toString(getArguments()));
 		sb.append("]]");
 		return sb.toString();
 	}
 	
 
-	AuthorReply(Header header, TACACS_PLUS.AUTHOR.STATUS status, String server_msg, String data, Argument[] arguments)
+	public AuthorReply(Header header, TACACS_PLUS.AUTHOR.STATUS status, String server_msg, String data, Argument[] arguments)
 	{
 		super(header);
 		this.status = status;
 		this.server_msg = server_msg;
 		this.data = data;
 		this.arguments = arguments==null?new Argument[0]:arguments;
+		this.body = null;
+		this.msgLen = 0;
+		this.dataLen = 0;
+		this.argCount = this.arguments.length;
 	}
 	
 	public AuthorReply(Header header, byte[] body) throws IOException {
@@ -49,25 +61,17 @@ public class AuthorReply extends Packet {
 			// Verify...
 		int overhead = 6;
 		if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
-		int msgLen = toInt(body[2],body[3]);
-		int dataLen = toInt(body[4],body[5]);
-		int arg_cnt = body[1] & FF;
-		int chkLen = overhead + arg_cnt + msgLen + dataLen;
-		for (int i=0; i<arg_cnt; i++) { chkLen += body[overhead+i] & FF; }
+		msgLen = toInt(body[2],body[3]);
+		dataLen = toInt(body[4],body[5]);
+		argCount = body[1] & FF;
+		int chkLen = overhead + argCount + msgLen + dataLen;
+		for (int i=0; i<argCount; i++) { chkLen += body[overhead+i] & FF; }
 		if (chkLen != body.length) { throw new IOException("Corrupt packet or bad key"); }
 		//
 		status = TACACS_PLUS.AUTHOR.STATUS.forCode(body[0]);
-		arguments = new Argument[arg_cnt];
-		int argOffset = 6 + arg_cnt + msgLen + dataLen;
-		for (int i=0; i<arg_cnt; i++)
-		{
-			int argLen = body[6+i] & FF ;
-			arguments[i] = new Argument(new String(Arrays.copyOfRange(body, argOffset, argOffset+argLen),StandardCharsets.UTF_8));
-			argOffset += argLen;
-		}
 		if (status == null) { throw new IOException("Received unknown TAC_PLUS_AUTHOR_STATUS code: "+body[0]); }
-		server_msg = (msgLen>0) ? new String(body, 6, msgLen, StandardCharsets.UTF_8) : null; 
-		data = (dataLen>0) ? new String(body, 6+msgLen, dataLen, StandardCharsets.UTF_8) : null; 
+		server_msg = (msgLen>0) ? new String(body, 6 + argCount, msgLen, StandardCharsets.UTF_8) : null;
+		this.body = body;
 	}
 
 
@@ -90,6 +94,9 @@ public class AuthorReply extends Packet {
 	 * probably null if the authorization was successful.
 	 */
 	public String getData() {
+		if (data == null && dataLen > 0) {
+			data = new String(body, 6 + argCount + msgLen, dataLen, StandardCharsets.UTF_8);
+		}
 		return data;
 	}
 	
@@ -100,44 +107,184 @@ public class AuthorReply extends Packet {
 	 */
 	public Argument[] getArguments()
 	{
+		if (arguments == null) {
+			ArgumentIndex index = argumentIndex();
+			Argument[] parsed = new Argument[argCount];
+			for (int i=0; i<argCount; i++)
+			{
+				parsed[i] = index.argument(i);
+			}
+			arguments = parsed;
+		}
 		return arguments;
 	}
 	
+	/**
+	 * Looks up an attribute in the raw UTF-8 body through an index built once per reply;
+	 * only the returned value is turned into a String.
+	 * @return The value of the first argument with the given attribute, or null.
+	 */
 	public String getValue(String attribute)
 	{
-		for (Argument a : arguments)
-		{
-			if (a.attribute.equals(attribute)) return a.value;
+		if (body == null) {
+			for (Argument a : arguments)
+			{
+				if (a.attribute.equals(attribute)) return a.value;
+			}
+			return null;
+		}
+		ArgumentIndex index = argumentIndex();
+		int i = index.find(attribute);
+		return i < 0 ? null : index.value(i);
+	}
+
+	private ArgumentIndex argumentIndex() {
+		ArgumentIndex index = argumentIndex;
+		if (index == null) {
+			index = new ArgumentIndex(body, 6, argCount, 6 + argCount + msgLen + dataLen);
+			argumentIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Offsets of each "attribute=value" or "attribute*value" argument in the body, and an
+	 * open-addressing table from the attribute bytes to the first argument carrying it.
+	 */
+	private static final class ArgumentIndex {
+
+		private final byte[] body;
+		private final int[] starts;
+		/** Offset of the '=' or '*' separator, or the end of the argument if there is none. */
+		private final int[] separators;
+		private final int[] ends;
+		/** Argument index + 1; 0 marks an empty slot. */
+		private final int[] slots;
+		private final String[] values;
+
+		ArgumentIndex(byte[] body, int lengthsOffset, int count, int firstArgument) {
+			this.body = body;
+			starts = new int[count];
+			separators = new int[count];
+			ends = new int[count];
+			values = new String[count];
+			int size = 2;
+			while (size < count * 2) { size <<= 1; }
+			slots = new int[size];
+			int offset = firstArgument;
+			for (int i=0; i<count; i++)
+			{
+				int end = offset + (body[lengthsOffset+i] & FF);
+				int separator = offset;
+				while (separator < end && body[separator] != '=' && body[separator] != '*') { separator++; }
+				starts[i] = offset;
+				separators[i] = separator;
+				ends[i] = end;
+				insert(i);
+				offset = end;
+			}
+		}
+
+		private void insert(int i) {
+			int mask = slots.length - 1;
+			int length = separators[i] - starts[i];
+			int h = 0;
+			for (int k = starts[i]; k < separators[i]; k++) { h = 31 * h + (body[k] & FF); }
+			for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+				int j = slots[slot] - 1;
+				if (j < 0) {
+					slots[slot] = i + 1;
+					return;
+				}
+				if (separators[j] - starts[j] == length && sameBytes(starts[j], starts[i], length)) {
+					return; // keep the first argument with this attribute
+				}
+			}
+		}
+
+		private boolean sameBytes(int a, int b, int length) {
+			for (int k = 0; k < length; k++) {
+				if (body[a + k] != body[b + k]) return false;
+			}
+			return true;
+		}
+
+		/** @return The index of the first argument with the given attribute, or -1. */
+		int find(String attribute) {
+			int length = attribute.length();
+			for (int k = 0; k < length; k++) {
+				if (attribute.charAt(k) >= 0x80) {
+					return find(attribute.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			// ASCII attribute names, which is all of them in practice, are compared without encoding
+			int h = 0;
+			for (int k = 0; k < length; k++) { h = 31 * h + attribute.charAt(k); }
+			int mask = slots.length - 1;
+			for (int slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+				int i = slots[slot] - 1;
+				if (separators[i] - starts[i] == length) {
+					int k = 0;
+					while (k < length && body[starts[i] + k] == attribute.charAt(k)) { k++; }
+					if (k == length) return i;
+				}
+			}
+			return -1;
+		}
+
+		private int find(byte[] attribute) {
+			int h = 0;
+			for (byte b : attribute) { h = 31 * h + (b & FF); }
+			int mask = slots.length - 1;
+			for (int slot = h & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+				int i = slots[slot] - 1;
+				if (separators[i] - starts[i] == attribute.length) {
+					int k = 0;
+					while (k < attribute.length && body[starts[i] + k] == attribute[k]) { k++; }
+					if (k == attribute.length) return i;
+				}
+			}
+			return -1;
+		}
+
+		/** @return The value of argument i, or null if it has no separator. */
+		String value(int i) {
+			if (separators[i] == ends[i]) {
+				return null;
+			}
+			String value = values[i];
+			if (value == null) {
+				value = new String(body, separators[i] + 1, ends[i] - separators[i] - 1, StandardCharsets.UTF_8);
+				values[i] = value;
+			}
+			return value;
+		}
+
+		Argument argument(int i) {
+			String attribute = new String(body, starts[i], separators[i] - starts[i], StandardCharsets.UTF_8);
+			boolean optional = separators[i] < ends[i] && body[separators[i]] == '*';
+			return new Argument(attribute, value(i), optional);
 		}
-		return null;
 	}
 
 
 	@Override
-	public byte[] getWriteByte(byte[] key) throws IOException {
-
-		byte[] smsgBytes = server_msg.getBytes(StandardCharsets.UTF_8);
-		byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
-		// Truncating to fit packet...  lengths are limited to 16 bytes
-		if (smsgBytes!=null && smsgBytes.length>FFFF) { smsgBytes = Arrays.copyOfRange(smsgBytes,0,FFFF); }
-		if (dataBytes!=null && dataBytes.length>FFFF) { dataBytes = Arrays.copyOfRange(dataBytes,0,FFFF); }
-		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
-		byte[][] argsBytes = new byte[Math.min(FF,arguments.length)][];
-		for (int i=0; i<argsBytes.length; i++)
+	protected void writeBody(ByteBuf out) {
+		// Truncating the number of arguments, and the length of each argument... limited to a byte
+		Argument[] args = getArguments();
+		int count = Math.min(FF, args.length);
+		int start = out.writerIndex();
+		out.writeByte(status.code());
+		out.writeByte(count);
+		out.writeInt(0);
+		out.writeZero(count);
+		// Truncating to fit packet...  lengths are limited to 16 bits
+		out.setShort(start + 2, writeUtf8(out, getServerMsg(), FFFF));
+		out.setShort(start + 4, writeUtf8(out, getData(), FFFF));
+		for (int i=0; i<count; i++)
 		{
-			argsBytes[i] = arguments[i].toString().getBytes(StandardCharsets.UTF_8);
-			if (argsBytes[i].length>FF) { argsBytes[i] = Arrays.copyOfRange(argsBytes[i],0,FF); }
+			out.setByte(start + 6 + i, writeArgument(out, args[i], FF));
 		}
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(status.code());
-		body.write(arguments.length);
-		body.write(toBytes2(smsgBytes==null?0:smsgBytes.length));
-		body.write(toBytes2(dataBytes==null?0:dataBytes.length));
-		for (byte[] aBytes : argsBytes) { body.write(aBytes.length); }
-		body.write(smsgBytes);
-		body.write(dataBytes);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes); }
-		return header.writePacket(body.toByteArray(), key);
 	}
 
 }
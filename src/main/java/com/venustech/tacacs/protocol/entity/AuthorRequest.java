@@ -3,9 +3,9 @@ package com.venustech.tacacs.protocol.entity;
 import com.venustech.tacacs.protocol.entity.base.Argument;
 import com.venustech.tacacs.protocol.entity.base.Header;
 import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.buffer.ByteBuf;
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -25,6 +25,8 @@ public class AuthorRequest extends Packet
 	final String port;
 	final String rem_addr;
 	final Argument[] arguments;
+	/** Pre-encoded body, if this request was created from an AuthorTemplate. */
+	private final AuthorTemplate template;
 	
 	@Override
 	public String toString() {
@@ -49,6 +51,7 @@ public class AuthorRequest extends Packet
 	 */
 	AuthorRequest(Header header, byte[] body) throws IOException {
 		super(header);
+		template = null;
 		// Verify...
 		int overhead = 8;
 		if (body.length<overhead) { throw new IOException("Corrupt packet or bad key"); }
@@ -96,46 +99,54 @@ public class AuthorRequest extends Packet
 		this.port = port;
 		this.rem_addr = rem_addr;
 		this.arguments = arguments;
+		this.template = null;
+	}
+
+	/**
+	 * Constructor for outgoing packets whose body was encoded in advance;
+	 * only the header is written per request.
+	 */
+	public AuthorRequest(Header header, AuthorTemplate template) {
+		super(header);
+		this.authen_method = template.authen_method;
+		this.priv_lvl = template.priv_lvl;
+		this.authen_type = template.authen_type;
+		this.authen_service = template.authen_service;
+		this.user = template.user;
+		this.port = template.port;
+		this.rem_addr = template.rem_addr;
+		this.arguments = template.arguments;
+		this.template = template;
 	}
 
 
 	/**
-	 * Writes the whole packet.
-	 * @param key The byte[] secret key shared between the client and server.
-	 * @throws IOException if there is a problem writing to the given OutputStream.
+	 * Writes the packet body.
+	 * @param out The buffer the encoder allocated for this packet.
 	 */
 	@Override
-	public byte[] getWriteByte(byte[] key) throws IOException {
-		byte[] userBytes = user.getBytes(StandardCharsets.UTF_8); 
-		byte[] portBytes = port.getBytes(StandardCharsets.UTF_8);
-		byte[] remaBytes = rem_addr.getBytes(StandardCharsets.UTF_8);
-		// Truncating to fit packet...  lengths are limited to a byte
-		if (userBytes!=null && userBytes.length>FF) { userBytes = Arrays.copyOfRange(userBytes,0,FF); }
-		if (portBytes!=null && portBytes.length>FF) { portBytes = Arrays.copyOfRange(portBytes,0,FF); }
-		if (remaBytes!=null && remaBytes.length>FF) { remaBytes = Arrays.copyOfRange(remaBytes,0,FF); }
-		// Truncating the number of arguments, and the length of the byte[] representations... limited to a byte
-		byte[][] argsBytes = new byte[Math.min(FF,arguments.length)][];
-		for (int i=0; i<argsBytes.length; i++) 
+	protected void writeBody(ByteBuf out) {
+		if (template != null) {
+			template.writeBody(out);
+			return;
+		}
+		// Truncating the number of arguments, and the length of each field... limited to a byte
+		int argCount = Math.min(FF, arguments.length);
+		int start = out.writerIndex();
+		out.writeByte(authen_method.code());
+		out.writeByte(priv_lvl);
+		out.writeByte(authen_type.code());
+		out.writeByte(authen_service.code());
+		out.writeInt(0);
+		out.setByte(start + 7, argCount);
+		out.writeZero(argCount);
+		out.setByte(start + 4, writeUtf8(out, user, FF));
+		out.setByte(start + 5, writeUtf8(out, port, FF));
+		out.setByte(start + 6, writeUtf8(out, rem_addr, FF));
+		for (int i=0; i<argCount; i++)
 		{
-			argsBytes[i] = arguments[i].toString().getBytes(StandardCharsets.UTF_8);
-			if (argsBytes[i].length>FF) { argsBytes[i] = Arrays.copyOfRange(argsBytes[i],0,FF); }
+			out.setByte(start + 8 + i, writeArgument(out, arguments[i], FF));
 		}
-		//
-		ByteArrayOutputStream body = new ByteArrayOutputStream();
-		body.write(authen_method.code());
-		body.write(priv_lvl);
-		body.write(authen_type.code());
-		body.write(authen_service.code());
-		body.write(userBytes.length);
-		body.write(portBytes.length);
-		body.write(remaBytes.length);
-		body.write(argsBytes.length);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes.length); }
-		body.write(userBytes);
-		body.write(portBytes);
-		body.write(remaBytes);
-		for (byte[] aBytes : argsBytes) { body.write(aBytes); }
-		return header.writePacket(body.toByteArray(), key);
 	}
 	
 }
@@ -0,0 +1,75 @@
+package com.venustech.tacacs.protocol.entity;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+
+/**
+ * 预先编码的授权请求主体.
+ * 经常重复授权的命令(相同的用户、端口、地址和参数)只在创建模板时序列化一次,
+ * 每次请求只写入报头、复制主体并加密;创建后不可修改,可以在线程之间共享
+ * @author zhangxin
+ * 2018/8/29
+ */
+public final class AuthorTemplate {
+
+	final TACACS_PLUS.AUTHEN.METH authen_method;
+	final byte priv_lvl;
+	final TACACS_PLUS.AUTHEN.TYPE authen_type;
+	final TACACS_PLUS.AUTHEN.SVC authen_service;
+	final String user;
+	final String port;
+	final String rem_addr;
+	final Argument[] arguments;
+	/** 未加密的主体 **/
+	private final byte[] body;
+
+	public AuthorTemplate(
+		TACACS_PLUS.AUTHEN.METH authen_method,
+		byte priv_lvl,
+		TACACS_PLUS.AUTHEN.TYPE authen_type,
+		TACACS_PLUS.AUTHEN.SVC authen_service,
+		String user,
+		String port,
+		String rem_addr,
+		Argument[] arguments) {
+		this.authen_method = authen_method;
+		this.priv_lvl = priv_lvl;
+		this.authen_type = authen_type;
+		this.authen_service = authen_service;
+		this.user = user;
+		this.port = port;
+		this.rem_addr = rem_addr;
+		this.arguments = arguments.clone();
+		ByteBuf buf = Unpooled.buffer();
+		try {
+			new AuthorRequest(null, authen_method, priv_lvl, authen_type, authen_service, user, port, rem_addr, this.arguments).writeBody(buf);
+			this.body = new byte[buf.readableBytes()];
+			buf.readBytes(this.body);
+		} finally {
+			buf.release();
+		}
+	}
+
+	/** 把预先编码的主体写入out **/
+	void writeBody(ByteBuf out) {
+		out.writeBytes(body);
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	/** @return 参数的副本 **/
+	public Argument[] getArguments() {
+		return arguments.clone();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[user:"+user+" port:"+port+" rem_addr:"+rem_addr+" arguments:"+Arrays.toString(arguments)+"]";
+	}
+}
@@ -1,5 +1,7 @@
 package com.venustech.tacacs.protocol.entity.base;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * 授权request和response数据包
  * @author zhangxin
@@ -18,11 +20,12 @@ public class Argument {
     }
     /** 对从服务端读取的数据包进行转换 **/
     public Argument(String arg){
-        String[] args = arg.split("[=*]", 2);
-        this.attribute=args[0];
-        if (args.length==2) { this.value=args[1]; } else { this.value = null; }
-        isOptional = (arg.length() > attribute.length()) && // there is another character after the attribute name
-                (arg.charAt(attribute.length()) == '*');
+        // 在第一个'='或'*'处分开,不使用正则表达式
+        int separator = 0;
+        while (separator < arg.length() && arg.charAt(separator) != '=' && arg.charAt(separator) != '*') { separator++; }
+        this.attribute = arg.substring(0, separator);
+        this.value = separator < arg.length() ? arg.substring(separator + 1) : null;
+        isOptional = separator < arg.length() && arg.charAt(separator) == '*';
     }
 
     public String getAttribute() {
@@ -37,6 +40,21 @@ public class Argument {
         return isOptional;
     }
 
+    /**
+     * 以"attribute=value"或"attribute*value"的形式按UTF-8直接写入out
+     * @param maxBytes 最多写入的字节数
+     * @return 写入的字节数
+     */
+    int writeTo(ByteBuf out, int maxBytes) {
+        int written = Packet.writeUtf8(out, attribute, maxBytes);
+        if (written < maxBytes) {
+            out.writeByte(isOptional ? '*' : '=');
+            written++;
+            written += Packet.writeUtf8(out, value, maxBytes - written);
+        }
+        return written;
+    }
+
     @Override
     public String toString()
     {
@@ -2,9 +2,10 @@ package com.venustech.tacacs.protocol.entity.base;
 
 import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
 
-import java.io.ByteArrayOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
@@ -15,6 +16,10 @@ import java.util.Arrays;
 public class Header {
 
     static final int FF = 0xFF;
+    /** 报头长度 **/
+    public static final int LENGTH = 12;
+    /** 主体长度字段在报头中的偏移 **/
+    public static final int LENGTH_OFFSET = 8;
     /** 会话中唯一的序列号 **/
     final byte seqNum;
     /** 此字段包含各种位映射标志 **/
@@ -58,9 +63,24 @@ public class Header {
         sessionID = Arrays.copyOfRange(bytes, 4, 8);
         bodyLength = toInt(bytes[8],bytes[9],bytes[10],bytes[11]);
     }
+    /**
+     * 从解码器切出的帧中读取报头,读取后readerIndex位于主体开头
+     * @param in 至少包含12个可读字节
+     */
+    public Header(ByteBuf in)
+    {
+        version = TACACS_PLUS.PACKET.VERSION.forCode(in.readByte());
+        type = TACACS_PLUS.PACKET.TYPE.forCode(in.readByte());
+        seqNum = in.readByte();
+        flags = in.readByte();
+        sessionID = new byte[4];
+        in.readBytes(sessionID);
+        bodyLength = in.readInt();
+    }
+
     static int toInt(byte a, byte b, byte c, byte d)
     {
-        return ((a&FF)<<24) | (b&FF<<16) | ((c&FF)<<8) | (d&FF);
+        return ((a&FF)<<24) | ((b&FF)<<16) | ((c&FF)<<8) | (d&FF);
     }
 
     /**
@@ -84,6 +104,19 @@ public class Header {
         return sessionID;
     }
 
+    /** sessionID的32位整数形式,用于在不创建对象的情况下关联请求和响应 **/
+    public int getSessionIDValue(){
+        return toInt(sessionID[0], sessionID[1], sessionID[2], sessionID[3]);
+    }
+
+    public byte getSeqNum(){
+        return seqNum;
+    }
+
+    public byte getFlags(){
+        return flags;
+    }
+
     /**
      * Toggles the encryption of the given packet body byte[] returning the result.
      * The calculation depends on the given key, and these header fields:
@@ -96,47 +129,44 @@ public class Header {
      */
     public byte[] toggleCipher(byte[] body, byte[] key) throws NoSuchAlgorithmException {
         if (hasFlag(TACACS_PLUS.PACKET.FLAG.UNENCRYPTED)) { return body; }
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        int length = body.length;
-        byte[] pad = new byte[length];
-        md.update(sessionID); // reset() not necessary since each digest() resets
-        md.update(key);
-        md.update(version.code());
-        md.update(seqNum);
-        byte[] digest=md.digest(); // first digest applies only header info
-        System.arraycopy(digest, 0, pad, 0, Math.min(digest.length,length));
-        length -= digest.length;
-        int pos = digest.length;
-        while (length>0)
-        {
-            md.update(sessionID);
-            md.update(key);
-            md.update(version.code());
-            md.update(seqNum);
-            md.update(Arrays.copyOfRange(pad, pos-digest.length, pos)); // apply previous digest too
-            digest=md.digest();
-            System.arraycopy(digest, 0, pad, pos, Math.min(digest.length,length));
-            pos += digest.length;
-            length -= digest.length;
-        }
-        byte[] toggled = new byte[body.length];
-        for (int i=body.length-1; i>=0; i--)
-        {
-            toggled[i] = (byte)((body[i] & 0xff) ^ (pad[i] & 0xff));
-        }
+        byte[] toggled = body.clone();
+        toggleCipher(Unpooled.wrappedBuffer(toggled), 0, toggled.length, key);
         return toggled;
     }
 
+    /**
+     * 在原位加密或解密buf中从index开始的length个字节,不复制数据.
+     * 每16字节的密码块是MD5(sessionID, key, version, seqNum[, 上一个密码块]),由当前线程的ObfuscationEngine计算
+     * @param buf
+     * @param index 主体在buf中的起始位置
+     * @param length 主体长度
+     * @param key
+     * @throws NoSuchAlgorithmException
+     */
+    public void toggleCipher(ByteBuf buf, int index, int length, byte[] key) throws NoSuchAlgorithmException {
+        if (hasFlag(TACACS_PLUS.PACKET.FLAG.UNENCRYPTED)) { return; }
+        ObfuscationEngine.get().toggle(buf, index, length, sessionID, key, version.code(), seqNum);
+    }
+
+    /**
+     * 写入12字节的报头,长度字段先写0,由Packet.write在写完主体后回填
+     * @param out
+     */
+    void writeHeader(ByteBuf out) {
+        out.writeByte(version.code());
+        out.writeByte(type.code());
+        out.writeByte(seqNum);
+        out.writeByte(flags);
+        out.writeBytes(sessionID);
+        out.writeInt(0);
+    }
+
     public byte[] writePacket(byte[] body, byte[] key) throws IOException {
-        int len = body.length;
-        ByteArrayOutputStream bout = new ByteArrayOutputStream(12+len);
-        bout.write(version.code());
-        bout.write(type.code());
-        bout.write(seqNum);
-        bout.write(flags);
-        bout.write(sessionID);
-        bout.write(Packet.toBytes4(len));
-        try { bout.write(toggleCipher(body, key)); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
-        return bout.toByteArray();
+        ByteBuf buf = Unpooled.buffer(LENGTH + body.length);
+        writeHeader(buf);
+        buf.setInt(LENGTH_OFFSET, body.length);
+        buf.writeBytes(body);
+        try { toggleCipher(buf, LENGTH, body.length, key); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
+        return buf.array();
     }
 }
@@ -0,0 +1,85 @@
+package com.venustech.tacacs.protocol.entity.base;
+
+import io.netty.buffer.ByteBuf;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 报文主体的加解密引擎,每个线程一个实例,MD5和密码块缓冲区重复使用,加解密过程中不分配内存.
+ * 密码块按8字节为单位与主体原位异或
+ * @author zhangxin
+ * 2018/8/29
+ */
+final class ObfuscationEngine {
+
+    private static final int BLOCK = 16;
+
+    private static final ThreadLocal<ObfuscationEngine> ENGINE = ThreadLocal.withInitial(ObfuscationEngine::new);
+
+    private final MessageDigest md;
+    /** 当前的密码块,同时作为下一个密码块的输入 **/
+    private final byte[] pad = new byte[BLOCK];
+    /** 每个密码块共同的输入sessionID+key+version+seqNum,每次加解密只组装一次 **/
+    private byte[] prefix = new byte[64];
+
+    private ObfuscationEngine() {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // 所有Java平台都必须提供MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ObfuscationEngine get() {
+        return ENGINE.get();
+    }
+
+    /**
+     * 原位加密或解密buf中从index开始的length个字节
+     */
+    void toggle(ByteBuf buf, int index, int length, byte[] sessionID, byte[] key, byte version, byte seqNum) {
+        int prefixLength = sessionID.length + key.length + 2;
+        if (prefix.length < prefixLength) {
+            prefix = new byte[prefixLength];
+        }
+        System.arraycopy(sessionID, 0, prefix, 0, sessionID.length);
+        System.arraycopy(key, 0, prefix, sessionID.length, key.length);
+        prefix[prefixLength - 2] = version;
+        prefix[prefixLength - 1] = seqNum;
+        for (int pos = 0; pos < length; pos += BLOCK) {
+            md.update(prefix, 0, prefixLength);
+            if (pos > 0) {
+                md.update(pad, 0, BLOCK); // apply previous digest too
+            }
+            try {
+                md.digest(pad, 0, BLOCK);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            int at = index + pos;
+            int n = Math.min(BLOCK, length - pos);
+            if (n == BLOCK) {
+                buf.setLong(at, buf.getLong(at) ^ toLong(pad, 0));
+                buf.setLong(at + 8, buf.getLong(at + 8) ^ toLong(pad, 8));
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buf.setByte(at + i, buf.getByte(at + i) ^ pad[i]);
+                }
+            }
+        }
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        return ((long) (b[offset] & 0xFF) << 56)
+                | ((long) (b[offset + 1] & 0xFF) << 48)
+                | ((long) (b[offset + 2] & 0xFF) << 40)
+                | ((long) (b[offset + 3] & 0xFF) << 32)
+                | ((long) (b[offset + 4] & 0xFF) << 24)
+                | ((b[offset + 5] & 0xFF) << 16)
+                | ((b[offset + 6] & 0xFF) << 8)
+                | (b[offset + 7] & 0xFF);
+    }
+}
@@ -1,7 +1,11 @@
 package com.venustech.tacacs.protocol.entity.base;
 
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * @author zhangxin
@@ -34,7 +38,7 @@ public abstract class Packet {
 
     public static int toInt(byte a, byte b, byte c, byte d)
     {
-        return ((a&FF)<<24) | (b&FF<<16) | ((c&FF)<<8) | (d&FF);
+        return ((a&FF)<<24) | ((b&FF)<<16) | ((c&FF)<<8) | (d&FF);
     }
 
     public static String toHex(byte[] bytes)
@@ -58,5 +62,106 @@ public abstract class Packet {
         return new byte[] { (byte)((i>>>8)&FF), (byte)(i&FF) };
     }
 
-    public abstract byte[] getWriteByte(byte[] key) throws IOException;
+    /**
+     * 把报文主体(不含报头)写入out
+     * @param out
+     */
+    protected abstract void writeBody(ByteBuf out);
+
+    /**
+     * 把整个报文直接写入out:先写报头并预留长度,写完主体后回填长度,再在原位加密主体
+     * @param out 编码器分配的缓冲区
+     * @param key 共享密钥
+     * @throws IOException
+     */
+    public final void write(ByteBuf out, byte[] key) throws IOException {
+        int headerIndex = out.writerIndex();
+        header.writeHeader(out);
+        int bodyIndex = out.writerIndex();
+        writeBody(out);
+        int bodyLength = out.writerIndex() - bodyIndex;
+        out.setInt(headerIndex + Header.LENGTH_OFFSET, bodyLength);
+        try { header.toggleCipher(out, bodyIndex, bodyLength, key); } catch (NoSuchAlgorithmException e) { throw new IOException(e.getMessage()); }
+    }
+
+    /**
+     * 整个报文的字节数组形式,发送报文时请使用write
+     * @param key 共享密钥
+     * @return
+     * @throws IOException
+     */
+    public byte[] getWriteByte(byte[] key) throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            write(buf, key);
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * 把字符串按UTF-8编码直接写入out,不创建中间数组
+     * @param maxBytes 最多写入的字节数,超出的字符被截断(不会拆开一个多字节字符)
+     * @return 写入的字节数;s为null时为0
+     */
+    protected static int writeUtf8(ByteBuf out, String s, int maxBytes) {
+        if (s == null) {
+            return 0;
+        }
+        int start = out.writerIndex();
+        int limit = start + maxBytes;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (out.writerIndex() + 1 > limit) { break; }
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                if (out.writerIndex() + 2 > limit) { break; }
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (out.writerIndex() + 4 > limit) { break; }
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.writeByte(0xF0 | (cp >> 18));
+                out.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                out.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                out.writeByte(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 与String.getBytes一致,不成对的代理字符编码为'?'
+                if (out.writerIndex() + 1 > limit) { break; }
+                out.writeByte('?');
+            } else {
+                if (out.writerIndex() + 3 > limit) { break; }
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        return out.writerIndex() - start;
+    }
+
+    /**
+     * @param maxBytes 最多写入的字节数
+     * @return 写入的字节数
+     */
+    protected static int writeArgument(ByteBuf out, Argument argument, int maxBytes) {
+        return argument.writeTo(out, maxBytes);
+    }
+
+    /**
+     * @param maxBytes 最多写入的字节数
+     * @return 写入的字节数;bytes为null时为0
+     */
+    protected static int writeBytes(ByteBuf out, byte[] bytes, int maxBytes) {
+        if (bytes == null) {
+            return 0;
+        }
+        int length = Math.min(bytes.length, maxBytes);
+        out.writeBytes(bytes, 0, length);
+        return length;
+    }
 }
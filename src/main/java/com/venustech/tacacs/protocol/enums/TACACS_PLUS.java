@@ -169,6 +169,7 @@ public class TACACS_PLUS {
             private final byte code;
             private FLAG(int code) { this.code=(byte)code; }
             public byte code() { return code; }
+            public static FLAG forCode(byte b) { for (FLAG e : values()) { if (e.code==b) { return e; } } return null; }
         }
         /** 审计REPLY报文格式 --> status **/
         public static enum STATUS
@@ -0,0 +1,158 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AccountingSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final Argument[] ARGS = {new Argument("task_id", "1", false), new Argument("service", "shell", false)};
+
+    static AccountingRecord record(int i) {
+        return new AccountingRecord(TACACS_PLUS.ACCT.FLAG.STOP, "user" + i, "tty0", "10.0.0.1", ARGS);
+    }
+
+    @Test(timeout = 30_000)
+    public void recordsArePipelinedOverPooledConnections() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 2);
+            try {
+                client.start();
+                // 单连接协商完成之后的记录都复用连接池
+                TacacsClientTest.authorize(client);
+                int before = server.getConnections();
+                AccountingSender sender = new AccountingSender(client, 1000, 64);
+                for (int i = 0; i < 500; i++) {
+                    assertTrue(sender.send(record(i)));
+                }
+                sender.shutdown(10_000);
+                assertEquals(500, sender.getSentCount());
+                assertEquals(0, sender.getFailedCount());
+                assertEquals(before, server.getConnections());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void spooledRecordsAreReplayedAfterRestart() throws Exception {
+        File directory = folder.newFolder();
+        int port;
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            port = server.getPort();
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 500, true, false, 1);
+            try {
+                client.start();
+                TacacsClientTest.authorize(client);
+                // 连接断开后等待响应的记录和之后的记录都写入缓存
+                server.setDelayMillis(60_000);
+                AccountingSpool spool = new AccountingSpool(directory, 4096, 16);
+                AccountingSender sender = new AccountingSender(client, 10, 4, spool);
+                for (int i = 0; i < 50; i++) {
+                    assertTrue(sender.send(record(i)));
+                }
+                TacacsClientTest.waitFor(() -> sender.getOutstanding() > 0 || spool.hasPending());
+                server.close();
+                sender.shutdown(5_000);
+                assertEquals(0, sender.getFailedCount());
+                assertEquals(50, sender.getSentCount() + spool.getPending());
+                assertEquals(0, sender.getSentCount());
+                spool.close();
+            } finally {
+                client.shutdown();
+            }
+        }
+
+        // 进程重启:新的缓存从文件恢复记录,新的发送器按顺序重发
+        try (FakeTacacsServer server = new FakeTacacsServer("secret", port)) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            AccountingSpool spool = new AccountingSpool(directory, 4096, 16);
+            try {
+                assertEquals(50, spool.getPending());
+                client.start();
+                AccountingSender sender = new AccountingSender(client, 10, 4, spool);
+                TacacsClientTest.waitFor(() -> !spool.hasPending());
+                sender.shutdown(5_000);
+                assertEquals(50, sender.getReplayedCount());
+                // 单连接协商完成之前一批记录可能只发出一部分,整批重发时服务器会收到重复的记录
+                assertTrue(server.getReceived() >= 50);
+            } finally {
+                spool.close();
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void offerSpoolsBehindPendingRecords() throws Exception {
+        TacacsClient client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret", 500, true, false, 1);
+        AccountingSpool spool = new AccountingSpool(folder.newFolder(), 4096, 4);
+        try {
+            assertTrue(spool.append(record(0)));
+            AccountingSender sender = new AccountingSender(client, 10, 1, spool);
+            // 缓存中有记录时新记录排在后面,由缓存线程写入
+            for (int i = 1; i <= 5; i++) {
+                assertTrue(sender.offer(record(i)));
+            }
+            TacacsClientTest.waitFor(() -> spool.getPending() == 6);
+            assertEquals(0, sender.getQueued());
+            assertEquals(5, sender.getSpooledCount());
+            sender.shutdown(100);
+            assertEquals(6, spool.getPending());
+        } finally {
+            spool.close();
+            client.shutdown();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void recordFailsWhenNoConnectionIsAvailable() throws Exception {
+        FakeTacacsServer server = new FakeTacacsServer("secret");
+        TacacsClient client = new TacacsClient(server.getAddress(), "secret", 500, true, false, 1);
+        try {
+            client.start();
+            TacacsClientTest.authorize(client);
+            server.close();
+            TacacsServer tacacsServer = client.getServers().get(0);
+            TacacsClientTest.waitFor(() -> tacacsServer.handlers.isEmpty() && tacacsServer.spares.isEmpty());
+
+            AccountingSender sender = new AccountingSender(client, 100, 100);
+            CountDownLatch failed = new CountDownLatch(100);
+            AtomicReference<Throwable> cause = new AtomicReference<>();
+            sender.setFailureListener((record, e) -> {
+                cause.set(e);
+                failed.countDown();
+            });
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                assertTrue(sender.send(record(i)));
+            }
+            assertTrue(failed.await(10, TimeUnit.SECONDS));
+            // 每批只等待一次客户端超时时间,而不是每条记录等待一次
+            assertTrue(System.currentTimeMillis() - begin < 3000);
+            assertTrue(cause.get().getMessage(), cause.get().getMessage().contains("No TACACS+ connection available"));
+            assertEquals(100, sender.getFailedCount());
+            sender.shutdown(1000);
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.venustech.tacacs.client;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AccountingSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int ackAll(AccountingSpool spool, int batchSize, int expectedFirst) {
+        int next = expectedFirst;
+        AccountingSpool.Batch batch;
+        while ((batch = spool.peek(batchSize)) != null) {
+            for (AccountingRecord record : batch.records) {
+                assertEquals("user" + next, record.getUser());
+                next++;
+            }
+            spool.ack(batch);
+        }
+        return next;
+    }
+
+    private File[] segments(File directory) {
+        return directory.listFiles((dir, name) -> name.endsWith(".spool"));
+    }
+
+    @Test
+    public void recordsSurviveRestartInOrder() throws Exception {
+        File directory = folder.newFolder();
+        AccountingSpool spool = new AccountingSpool(directory, 1024, 16);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(spool.append(AccountingSenderTest.record(i)));
+        }
+        assertTrue(segments(directory).length > 1);
+        // 确认前10条之后重启
+        AccountingSpool.Batch batch = spool.peek(10);
+        assertEquals(10, batch.records.size());
+        spool.ack(batch);
+        spool.close();
+
+        spool = new AccountingSpool(directory, 1024, 16);
+        try {
+            assertEquals(30, spool.getPending());
+            assertEquals(40, ackAll(spool, 7, 10));
+            assertFalse(spool.hasPending());
+            assertEquals(0, segments(directory).length);
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscardedOnRestart() throws Exception {
+        File directory = folder.newFolder();
+        AccountingSpool spool = new AccountingSpool(directory, 4096, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spool.append(AccountingSenderTest.record(i)));
+        }
+        spool.close();
+        // 模拟进程在写最后一条记录的内容时崩溃:长度已写入,内容不完整
+        File file = segments(directory)[0];
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int offset = 16;
+        for (int i = 0; i < 2; i++) {
+            offset += 8 + readInt(bytes, offset);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset + 8);
+            raf.write("garbage".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        spool = new AccountingSpool(directory, 4096, 1);
+        try {
+            assertEquals(2, spool.getPending());
+            // 丢弃的记录之后可以继续追加
+            assertTrue(spool.append(AccountingSenderTest.record(2)));
+            assertEquals(3, ackAll(spool, 10, 0));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void deletedSegmentsAreUnmapped() throws Exception {
+        File maps = new File("/proc/self/maps");
+        Assume.assumeTrue(maps.exists());
+        File directory = folder.newFolder();
+        AccountingSpool spool = new AccountingSpool(directory, 1024, 16);
+        try {
+            for (int i = 0; i < 40; i++) {
+                assertTrue(spool.append(AccountingSenderTest.record(i)));
+            }
+            String path = directory.getCanonicalPath();
+            assertTrue(new String(Files.readAllBytes(Paths.get("/proc/self/maps")), StandardCharsets.UTF_8).contains(path));
+            ackAll(spool, 10, 0);
+            assertEquals(0, segments(directory).length);
+            assertFalse(new String(Files.readAllBytes(Paths.get("/proc/self/maps")), StandardCharsets.UTF_8).contains(path));
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void fullSpoolRejectsRecords() throws Exception {
+        AccountingSpool spool = new AccountingSpool(folder.newFolder(), 256, 1);
+        try {
+            int appended = 0;
+            while (spool.append(AccountingSenderTest.record(appended))) {
+                appended++;
+            }
+            assertTrue(appended > 0);
+            assertEquals(appended, spool.getPending());
+            assertEquals(appended, ackAll(spool, 100, 0));
+            assertNull(spool.peek(1));
+            assertTrue(spool.append(AccountingSenderTest.record(0)));
+        } finally {
+            spool.close();
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,73 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AccountingWatchdogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void slotsCoverExactlyOneInterval() throws Exception {
+        TacacsClient client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        AccountingSender sender = new AccountingSender(client, 10, 1);
+        // 1000不能被7整除,按截断的槽长度每个周期会提前6毫秒
+        AccountingWatchdog watchdog = new AccountingWatchdog(client, sender, 1000, 7);
+        try {
+            long start = watchdog.slotDeadline(0);
+            for (int cycle = 1; cycle <= 100; cycle++) {
+                assertEquals(start + cycle * 1000L, watchdog.slotDeadline(cycle * 7L));
+            }
+            for (long tick = 1; tick < 700; tick++) {
+                long slot = watchdog.slotDeadline(tick) - watchdog.slotDeadline(tick - 1);
+                assertTrue(slot == 142 || slot == 143);
+            }
+        } finally {
+            watchdog.close();
+            sender.shutdown(100);
+            client.shutdown();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void watchdogRecordsAreSentForEachTask() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            try {
+                client.start();
+                TacacsClientTest.authorize(client);
+                AccountingSpool spool = new AccountingSpool(folder.newFolder(), 4096, 4);
+                AccountingSender sender = new AccountingSender(client, 100, 8, spool);
+                AccountingWatchdog watchdog = new AccountingWatchdog(client, sender, 200, 3);
+                AccountingWatchdog.Task[] tasks = new AccountingWatchdog.Task[10];
+                for (int i = 0; i < tasks.length; i++) {
+                    tasks[i] = watchdog.start(Integer.toString(i), "user" + i, "tty" + i, "10.0.0.1",
+                            new Argument("service", "shell", false));
+                }
+                assertEquals(tasks.length, watchdog.getTaskCount());
+                TacacsClientTest.waitFor(() -> watchdog.getWatchdogCount() >= 2 * tasks.length);
+                for (AccountingWatchdog.Task task : tasks) {
+                    task.stop();
+                }
+                watchdog.close();
+                assertEquals(0, watchdog.getTaskCount());
+                sender.shutdown(5_000);
+                spool.close();
+                assertEquals(0, watchdog.getDroppedCount());
+                assertEquals(2 * tasks.length + watchdog.getWatchdogCount(), sender.getSentCount());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+}
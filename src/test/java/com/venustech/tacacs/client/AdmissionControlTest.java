@@ -0,0 +1,234 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AdmissionControlTest {
+
+    private TacacsClient client;
+    private AdmissionControl admission;
+    private TacacsMessageHandler first;
+    private TacacsMessageHandler second;
+    private EmbeddedChannel firstChannel;
+    private EmbeddedChannel secondChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        admission = client.getAdmissionControl();
+        first = new TacacsMessageHandler(client, client.getServers().get(0));
+        second = new TacacsMessageHandler(client, client.getServers().get(0));
+        firstChannel = new EmbeddedChannel(first);
+        secondChannel = new EmbeddedChannel(second);
+    }
+
+    @After
+    public void tearDown() {
+        firstChannel.finish();
+        secondChannel.finish();
+        client.shutdown();
+    }
+
+    private static TacacsFuture send(TacacsMessageHandler handler, int sessionId) {
+        return handler.sendTacacsPacket(PendingTableTest.future(sessionId).getRequest(), 0);
+    }
+
+    /** 已写出的请求的sessionID,按写出顺序 **/
+    private static List<Integer> written(EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        List<Integer> ids = new ArrayList<>();
+        Object packet;
+        while ((packet = channel.readOutbound()) != null) {
+            ids.add(((Packet) packet).header.getSessionIDValue());
+        }
+        return ids;
+    }
+
+    /** 模拟请求结束,归还额度 **/
+    private static void finish(TacacsFuture future) {
+        future.expire(1);
+    }
+
+    private static void assertFailedWith(Class<? extends Throwable> type, TacacsFuture future) throws Exception {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+
+    @Test
+    public void queuedRequestsAreSentInOrderWhenCapacityReturns() {
+        client.setMaxInFlight(2, 10);
+        TacacsFuture a = send(first, 1);
+        TacacsFuture b = send(first, 2);
+        send(first, 3);
+        send(first, 4);
+        assertEquals(Arrays.asList(1, 2), written(firstChannel));
+        assertEquals(2, admission.getInFlight());
+        assertEquals(2, admission.getQueued());
+
+        finish(b);
+        assertEquals(Arrays.asList(3), written(firstChannel));
+        finish(a);
+        assertEquals(Arrays.asList(4), written(firstChannel));
+        assertEquals(0, admission.getQueued());
+        assertEquals(2, admission.getAdmittedCount());
+        assertEquals(2, admission.getQueuedCount());
+    }
+
+    @Test
+    public void fullQueueRejectsImmediately() throws Exception {
+        client.setMaxInFlight(1, 1);
+        send(first, 1);
+        TacacsFuture queued = send(first, 2);
+        TacacsFuture rejected = send(first, 3);
+        assertFalse(queued.isDone());
+        assertFailedWith(TacacsOverloadException.class, rejected);
+        assertEquals(1, admission.getRejectedCount());
+        assertEquals(Arrays.asList(1), written(firstChannel));
+    }
+
+    @Test
+    public void busyConnectionDoesNotBlockOtherConnections() {
+        client.setMaxInFlightPerConnection(1);
+        TacacsFuture a = send(first, 1);
+        send(first, 2);
+        send(second, 3);
+        send(second, 4);
+        send(first, 5);
+        // first上的第二个请求在等待,second上的第一个请求仍然立即发送
+        assertEquals(Arrays.asList(1), written(firstChannel));
+        assertEquals(Arrays.asList(3), written(secondChannel));
+        assertEquals(3, admission.getQueued());
+
+        finish(a);
+        assertEquals(Arrays.asList(2), written(firstChannel));
+        assertEquals(Arrays.asList(), written(secondChannel));
+    }
+
+    @Test
+    public void clientLimitIsSharedRoundRobin() {
+        client.setMaxInFlight(1, 10);
+        Map<Integer, TacacsFuture> futures = new HashMap<>();
+        futures.put(1, send(first, 1));
+        futures.put(2, send(first, 2));
+        futures.put(3, send(first, 3));
+        futures.put(4, send(second, 4));
+        futures.put(5, send(second, 5));
+        assertEquals(Arrays.asList(1), written(firstChannel));
+
+        // 每次归还额度后轮到下一个连接
+        List<Integer> order = new ArrayList<>();
+        int inFlight = 1;
+        for (int i = 0; i < 4; i++) {
+            finish(futures.get(inFlight));
+            List<Integer> sent = new ArrayList<>(written(firstChannel));
+            sent.addAll(written(secondChannel));
+            assertEquals(1, sent.size());
+            inFlight = sent.get(0);
+            order.add(inFlight);
+        }
+        assertEquals(Arrays.asList(2, 4, 3, 5), order);
+    }
+
+    @Test
+    public void requestTimingOutInQueueLeavesTheQueue() throws Exception {
+        client.setMaxInFlightPerConnection(1);
+        send(first, 1);
+        TacacsFuture waiting = first.sendTacacsPacket(PendingTableTest.future(2).getRequest(), 50);
+        assertEquals(1, admission.getQueued());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!waiting.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFailedWith(TimeoutException.class, waiting);
+        assertEquals(0, admission.getQueued());
+        assertEquals(Arrays.asList(1), written(firstChannel));
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentSubmittersNeverExceedPerConnectionLimit() throws Exception {
+        int limit = 4;
+        client.setMaxInFlightPerConnection(limit);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        BlockingQueue<TacacsFuture> sent = new LinkedBlockingQueue<>();
+        // 记录同时在连接上的请求数;结束请求之前先减少计数,计数不会超过实际占用的额度
+        TacacsMessageHandler handler = new TacacsMessageHandler(client, client.getServers().get(0)) {
+            @Override
+            void resend(TacacsFuture tacacsFuture) {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                sent.add(tacacsFuture);
+            }
+        };
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        int threads = 8;
+        int perThread = 2000;
+        Thread completer = new Thread(() -> {
+            try {
+                for (int i = 0; i < threads * perThread; i++) {
+                    TacacsFuture future = sent.take();
+                    active.decrementAndGet();
+                    finish(future);
+                }
+            } catch (InterruptedException e) {
+                // 测试结束
+            }
+        });
+        completer.start();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> submitters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            Thread submitter = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 1; i <= perThread; i++) {
+                    send(handler, base + i);
+                }
+            });
+            submitter.start();
+            submitters.add(submitter);
+        }
+        start.countDown();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        completer.join();
+        channel.finish();
+        assertTrue("max in flight " + maxActive.get(), maxActive.get() <= limit);
+        assertEquals(0, handler.admitted.get());
+        assertEquals(0, admission.getInFlight());
+        assertEquals(0, admission.getQueued());
+    }
+}
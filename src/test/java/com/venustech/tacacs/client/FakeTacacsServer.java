@@ -0,0 +1,231 @@
+package com.venustech.tacacs.client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的TACACS+服务器:认证总是PASS,授权总是PASS_ADD(priv-lvl=15),审计总是SUCCESS.
+ * 同一连接上的请求依次处理,按请求中的TAC_PLUS_SINGLE_CONNECT_FLAG应答单连接模式
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class FakeTacacsServer implements Closeable {
+
+    private final byte[] key;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean singleConnect = true;
+    private volatile boolean closeWhenRefused = true;
+    private volatile long delayMillis;
+    private boolean closed;
+
+    public FakeTacacsServer(String key) throws IOException {
+        this(key, 0);
+    }
+
+    /**
+     * @param key 共享密钥
+     * @param port 0表示使用任意空闲端口
+     */
+    public FakeTacacsServer(String key, int port) throws IOException {
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+        this.serverSocket = new ServerSocket();
+        // 模拟重启时立即重新绑定同一端口,不受TIME_WAIT状态的旧连接影响
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        executor.execute(this::accept);
+    }
+
+    /** 当前没有监听的本地端口,不需要服务器的测试用它构造客户端,不会连到本机真实的TACACS+服务 **/
+    public static int unusedPort() throws IOException {
+        try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return unused.getLocalPort();
+        }
+    }
+
+    public static String unusedAddress() throws IOException {
+        return "127.0.0.1:" + unusedPort();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getAddress() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /** 收到的请求数 **/
+    public int getReceived() {
+        return received.get();
+    }
+
+    /** 接受的连接数 **/
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /** 当前打开的连接数 **/
+    public int getOpenConnections() {
+        return sockets.size();
+    }
+
+    /** 是否同意单连接 **/
+    public void setSingleConnect(boolean singleConnect) {
+        this.singleConnect = singleConnect;
+    }
+
+    /** 不同意单连接时是否在每个响应之后关闭连接,为false时等待客户端关闭 **/
+    public void setCloseWhenRefused(boolean closeWhenRefused) {
+        this.closeWhenRefused = closeWhenRefused;
+    }
+
+    /** 每个响应之前等待的时间 **/
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                // close()遍历连接之后才接受的连接也要关闭,否则客户端一直保留这个连接
+                synchronized (this) {
+                    if (closed) {
+                        socket.close();
+                        return;
+                    }
+                    connections.incrementAndGet();
+                    sockets.add(socket);
+                }
+                executor.execute(() -> serve(socket));
+            } catch (IOException | RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                byte[] header = new byte[12];
+                in.readFully(header);
+                int length = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16) | ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+                in.readFully(new byte[length]);
+                received.incrementAndGet();
+                byte[] sessionId = Arrays.copyOfRange(header, 4, 8);
+                byte seq = (byte) (header[2] + 1);
+                byte[] body = replyBody(header[1]);
+                byte[] pad = pad(sessionId, header[0], seq, body.length);
+                boolean accepted = singleConnect;
+                byte[] reply = new byte[12 + body.length];
+                reply[0] = header[0];
+                reply[1] = header[1];
+                reply[2] = seq;
+                reply[3] = (byte) (accepted ? header[3] & 0x04 : 0);
+                System.arraycopy(sessionId, 0, reply, 4, 4);
+                reply[8] = (byte) (body.length >>> 24);
+                reply[9] = (byte) (body.length >>> 16);
+                reply[10] = (byte) (body.length >>> 8);
+                reply[11] = (byte) body.length;
+                for (int i = 0; i < body.length; i++) {
+                    reply[12 + i] = (byte) (body[i] ^ pad[i]);
+                }
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                out.write(reply);
+                out.flush();
+                if (!accepted && closeWhenRefused) {
+                    socket.close();
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // 客户端关闭连接
+        } catch (Exception e) {
+            if (!socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static byte[] replyBody(byte type) {
+        switch (type) {
+            case 1:
+                // AUTHEN: PASS
+                return new byte[]{1, 0, 0, 0, 0, 0};
+            case 2:
+                // AUTHOR: PASS_ADD, priv-lvl=15
+                byte[] arg = "priv-lvl=15".getBytes(StandardCharsets.US_ASCII);
+                byte[] body = new byte[7 + arg.length];
+                body[0] = 1;
+                body[1] = 1;
+                body[6] = (byte) arg.length;
+                System.arraycopy(arg, 0, body, 7, arg.length);
+                return body;
+            default:
+                // ACCT: SUCCESS
+                return new byte[]{0, 0, 0, 0, 1};
+        }
+    }
+
+    private byte[] pad(byte[] sessionId, byte version, byte seq, int length) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] pad = new byte[length];
+        byte[] previous = null;
+        for (int pos = 0; pos < length; pos += 16) {
+            md.update(sessionId);
+            md.update(key);
+            md.update(version);
+            md.update(seq);
+            if (previous != null) {
+                md.update(previous);
+            }
+            previous = md.digest();
+            System.arraycopy(previous, 0, pad, pos, Math.min(16, length - pos));
+        }
+        return pad;
+    }
+
+    /** 停止监听并关闭所有连接 **/
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        executor.shutdownNow();
+    }
+}
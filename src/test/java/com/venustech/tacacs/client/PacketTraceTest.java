@@ -0,0 +1,156 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.ClientSession;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class PacketTraceTest {
+
+    private static final Pattern LINE = Pattern.compile(" (OUT|IN ) (\\w+) session=(\\S+) seq=(\\d+) flags=0x(\\w+) body=(\\d+)( status=(\\d+))?");
+
+    private static Header header(int sessionId, TACACS_PLUS.PACKET.TYPE type) {
+        return new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, type, Packet.toBytes4(sessionId));
+    }
+
+    private static List<Matcher> lines(String dump) {
+        List<Matcher> lines = new ArrayList<>();
+        for (String line : dump.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Matcher m = LINE.matcher(line);
+            assertTrue(line, m.find());
+            lines.add(m);
+        }
+        return lines;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new PacketTrace(5).capacity());
+        assertEquals(8, new PacketTrace(8).capacity());
+        assertEquals(1, new PacketTrace(1).capacity());
+        PacketTrace disabled = new PacketTrace(0);
+        assertFalse(disabled.isEnabled());
+        disabled.record(PacketTrace.OUT, header(1, TACACS_PLUS.PACKET.TYPE.AUTHEN), 10, (byte) 0);
+        assertEquals("", disabled.dump(10, false));
+    }
+
+    @Test
+    public void wrapsAroundKeepingNewestInOrder() {
+        PacketTrace trace = new PacketTrace(4);
+        for (int i = 1; i <= 10; i++) {
+            trace.record(i % 2 == 0 ? PacketTrace.IN : PacketTrace.OUT, header(i, TACACS_PLUS.PACKET.TYPE.AUTHOR), 100 + i, (byte) i);
+        }
+        List<Matcher> lines = lines(trace.dump(100, false));
+        assertEquals(4, lines.size());
+        for (int i = 0; i < 4; i++) {
+            int id = 7 + i;
+            Matcher m = lines.get(i);
+            assertEquals(String.format("%08x", id), m.group(3));
+            assertEquals("AUTHOR", m.group(2));
+            assertEquals(String.valueOf(100 + id), m.group(6));
+            // 只有响应记录状态
+            assertEquals(id % 2 == 0 ? String.valueOf(id) : null, m.group(8));
+        }
+        List<Matcher> newest = lines(trace.dump(2, false));
+        assertEquals(2, newest.size());
+        assertEquals(String.format("%08x", 9), newest.get(0).group(3));
+        assertEquals(String.format("%08x", 10), newest.get(1).group(3));
+    }
+
+    @Test
+    public void redactionKeepsOnlyLowSessionBits() {
+        PacketTrace trace = new PacketTrace(4);
+        trace.record(PacketTrace.OUT, header(0x12345678, TACACS_PLUS.PACKET.TYPE.AUTHEN), 20, (byte) 0);
+        String redacted = trace.dump(10, true);
+        assertTrue(redacted, redacted.contains("session=****5678 "));
+        assertFalse(redacted, redacted.contains("1234"));
+        assertTrue(trace.dump(10, false).contains("session=12345678 "));
+        assertEquals(redacted, trace.toString());
+    }
+
+    @Test(timeout = 30_000)
+    public void traceOfRealExchangeHoldsNoSecrets() throws Exception {
+        String key = "shared-key-4711";
+        String password = "s3cr3t-pass";
+        try (FakeTacacsServer server = new FakeTacacsServer(key)) {
+            TacacsClient client = new TacacsClient(server.getAddress(), key, 2000, true, false, 1);
+            try {
+                client.start();
+                ClientSession session = client.newSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                try {
+                    assertTrue(session.authenticate_PAP("carol", password).isOK());
+                } finally {
+                    session.close();
+                }
+                for (boolean redact : new boolean[]{true, false}) {
+                    String dump = client.getPacketTrace().dump(100, redact);
+                    assertFalse(dump, dump.contains(password));
+                    assertFalse(dump, dump.contains(key));
+                    assertFalse(dump, dump.contains("carol"));
+                    List<Matcher> lines = lines(dump);
+                    assertEquals(2, lines.size());
+                    for (Matcher m : lines) {
+                        assertEquals(redact, m.group(3).startsWith("****"));
+                    }
+                }
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentReadersNeverSeeTornRecords() throws Exception {
+        PacketTrace trace = new PacketTrace(16);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread writer = new Thread(() -> {
+                int i = 0;
+                while (running.get()) {
+                    // 每条记录的sessionID、主体长度和状态互相对应,读到混合的字段说明记录被撕裂
+                    int id = (++i & 0x7F) + 1;
+                    trace.record(PacketTrace.IN, header(id, TACACS_PLUS.PACKET.TYPE.ACCT), id * 3, (byte) id);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        try {
+            int checked = 0;
+            long deadline = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < deadline) {
+                for (Matcher m : lines(trace.dump(16, false))) {
+                    int id = Integer.parseInt(m.group(3), 16);
+                    assertEquals(m.group(0), id * 3, Integer.parseInt(m.group(6)));
+                    assertEquals(m.group(0), id, Integer.parseInt(m.group(8)));
+                    checked++;
+                }
+            }
+            assertTrue(checked > 0);
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.AuthenContinue;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class PendingTableTest {
+
+    static TacacsFuture future(int sessionId) {
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHEN, Packet.toBytes4(sessionId));
+        return new TacacsFuture(new AuthenContinue(header, "", (byte) 0));
+    }
+
+    /** 与PendingTable相同的散列,用于构造落在同一段同一槽的sessionID **/
+    private static int hash(int sessionId) {
+        return sessionId * 0x9E3779B9;
+    }
+
+    /** 在初始容量(16槽)下落在第0段、理想位置为slot的sessionID **/
+    private static List<Integer> idsAt(int slot, int count) {
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 1; ids.size() < count; id++) {
+            int h = hash(id);
+            if (h >>> 28 == 0 && (h & 15) == slot) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void putGetRemove() {
+        PendingTable table = new PendingTable();
+        TacacsFuture first = future(42);
+        assertNull(table.put(42, first));
+        assertSame(first, table.get(42));
+        assertEquals(1, table.size());
+
+        TacacsFuture second = future(42);
+        assertSame(first, table.put(42, second));
+        assertEquals(1, table.size());
+        // 只有当前值才能被删除
+        assertFalse(table.remove(42, first));
+        assertTrue(table.remove(42, second));
+        assertNull(table.get(42));
+        assertEquals(0, table.size());
+        assertFalse(table.remove(42, second));
+    }
+
+    @Test
+    public void putIfAbsentKeepsTheCurrentValue() {
+        PendingTable table = new PendingTable();
+        TacacsFuture first = future(7);
+        TacacsFuture second = future(7);
+        assertNull(table.putIfAbsent(7, first));
+        assertSame(first, table.putIfAbsent(7, second));
+        assertSame(first, table.get(7));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void deleteShiftsCollidingEntriesBack() {
+        PendingTable table = new PendingTable();
+        // a、b、c的理想位置都是3,占据3、4、5;d的理想位置是4,被挤到6
+        List<Integer> home3 = idsAt(3, 3);
+        int d = idsAt(4, 1).get(0);
+        int a = home3.get(0), b = home3.get(1), c = home3.get(2);
+        Map<Integer, TacacsFuture> futures = new HashMap<>();
+        for (int id : new int[]{a, b, c, d}) {
+            futures.put(id, future(id));
+            table.put(id, futures.get(id));
+        }
+        assertTrue(table.remove(a, futures.get(a)));
+        for (int id : new int[]{b, c, d}) {
+            assertSame(futures.get(id), table.get(id));
+        }
+        assertTrue(table.remove(c, futures.get(c)));
+        assertSame(futures.get(b), table.get(b));
+        assertSame(futures.get(d), table.get(d));
+        assertTrue(table.remove(b, futures.get(b)));
+        assertSame(futures.get(d), table.get(d));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void deleteHandlesChainsWrappingAroundTheEnd() {
+        PendingTable table = new PendingTable();
+        // 理想位置为15的三个键占据15、0、1,理想位置为0的键被挤到2
+        List<Integer> home15 = idsAt(15, 3);
+        int zero = idsAt(0, 1).get(0);
+        Map<Integer, TacacsFuture> futures = new HashMap<>();
+        for (int id : new int[]{home15.get(0), home15.get(1), home15.get(2), zero}) {
+            futures.put(id, future(id));
+            table.put(id, futures.get(id));
+        }
+        assertTrue(table.remove(home15.get(0), futures.get(home15.get(0))));
+        assertTrue(table.remove(home15.get(2), futures.get(home15.get(2))));
+        assertSame(futures.get(home15.get(1)), table.get(home15.get(1)));
+        assertSame(futures.get(zero), table.get(zero));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        PendingTable table = new PendingTable();
+        Map<Integer, TacacsFuture> model = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            // 键空间较小,频繁触发冲突、扩容和删除后的前移
+            int id = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                TacacsFuture expected = model.get(id);
+                if (expected != null) {
+                    assertTrue(table.remove(id, expected));
+                    model.remove(id);
+                } else {
+                    assertFalse(table.remove(id, future(id)));
+                }
+            } else {
+                TacacsFuture value = future(id);
+                assertSame(model.put(id, value), table.put(id, value));
+            }
+            if (i % 1000 == 0) {
+                for (int probe = -1000; probe < 1000; probe++) {
+                    assertSame(model.get(probe), table.get(probe));
+                }
+            }
+        }
+        assertEquals(model.size(), table.size());
+        List<TacacsFuture> drained = table.removeAll();
+        assertEquals(new HashSet<>(model.values()), new HashSet<>(drained));
+        assertEquals(0, table.size());
+        assertNull(table.get(model.keySet().iterator().next()));
+    }
+}
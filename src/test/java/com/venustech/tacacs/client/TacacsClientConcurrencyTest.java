@@ -0,0 +1,157 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.ClientSession;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 阻塞API在大量并发会话下的行为.
+ * 项目以Java 8为目标,这里用平台线程池代替虚拟线程,并发模式相同:每个任务创建会话并阻塞等待响应.
+ * 等待响应的线程不应持有任何对象监视器,否则在虚拟线程上会占住载体线程
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsClientConcurrencyTest {
+
+    private static final int SESSIONS = 100_000;
+    private static final int THREADS = 256;
+
+    @Test(timeout = 300_000)
+    public void manyConcurrentBlockingLoginsHoldNoMonitorsWhileWaiting() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 10_000, true, false, 8);
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "login-" + runnable.hashCode());
+                thread.setDaemon(true);
+                return thread;
+            });
+            MonitorSampler sampler = new MonitorSampler();
+            try {
+                client.start();
+                // 先完成单连接协商,之后的会话全部复用连接池
+                TacacsClientTest.authorize(client);
+                sampler.start();
+                AtomicInteger passed = new AtomicInteger();
+                CountDownLatch done = new CountDownLatch(SESSIONS);
+                for (int i = 0; i < SESSIONS; i++) {
+                    final String user = "user" + (i % 1000);
+                    pool.execute(() -> {
+                        try {
+                            ClientSession session = client.newSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                            try {
+                                if (session.authenticate_PAP(user, "secret").isOK()) {
+                                    passed.incrementAndGet();
+                                }
+                            } finally {
+                                session.close();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                assertTrue(done.await(240, TimeUnit.SECONDS));
+                sampler.stop();
+                assertEquals(SESSIONS, passed.get());
+                assertTrue("sampler saw no waiting login threads", sampler.waitingSamples > 0);
+                assertEquals("login threads blocked while holding a monitor: " + sampler.firstViolation, 0, sampler.violations);
+                assertEquals(0, client.getAdmissionControl().getInFlight());
+            } finally {
+                sampler.stop();
+                pool.shutdownNow();
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void concurrentBlockingCallsOnOneSessionAreSerialized() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            server.setDelayMillis(1);
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 10_000, true, false, 1);
+            ExecutorService pool = Executors.newFixedThreadPool(32);
+            try {
+                client.start();
+                ClientSession session = client.newSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                List<Future<AuthorReply>> replies = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    replies.add(pool.submit(() -> session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS,
+                            TACACS_PLUS.AUTHEN.TYPE.ASCII, TACACS_PLUS.AUTHEN.SVC.LOGIN, TacacsClientTest.ARGS)));
+                }
+                // 同一sessionID的请求交错发送时前一个会被后一个取代而失败,加锁后全部成功
+                for (Future<AuthorReply> reply : replies) {
+                    assertTrue(reply.get().isOK());
+                }
+                assertEquals(500, server.getReceived());
+            } finally {
+                pool.shutdownNow();
+                client.shutdown();
+            }
+        }
+    }
+
+    /** 周期性检查处于等待状态的login线程是否持有对象监视器 **/
+    private static final class MonitorSampler implements Runnable {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final Thread thread = new Thread(this, "monitor-sampler");
+        private volatile boolean running = true;
+        volatile int waitingSamples;
+        volatile int violations;
+        volatile String firstViolation;
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                for (ThreadInfo info : threads.dumpAllThreads(true, false)) {
+                    if (!info.getThreadName().startsWith("login-")) {
+                        continue;
+                    }
+                    Thread.State state = info.getThreadState();
+                    if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+                        continue;
+                    }
+                    waitingSamples++;
+                    if (info.getLockedMonitors().length > 0) {
+                        violations++;
+                        if (firstViolation == null) {
+                            firstViolation = info.toString();
+                        }
+                    }
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.venustech.tacacs.client;
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 服务器列表的故障切换和恢复
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsClientFailoverTest {
+
+    @Test
+    public void primaryDownAtStartupIsProbedAndTakesTrafficBack() throws Exception {
+        int primaryPort;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            primaryPort = unused.getLocalPort();
+        }
+        try (FakeTacacsServer secondary = new FakeTacacsServer("secret")) {
+            TacacsServer primary = new TacacsServer("127.0.0.1", primaryPort, "secret");
+            primary.setRetryAfterMillis(100);
+            TacacsClient client = new TacacsClient(Arrays.asList(primary, new TacacsServer("127.0.0.1", secondary.getPort(), "secret")),
+                    2000, true, false, 1);
+            try {
+                client.start();
+                assertEquals(TacacsServer.Health.DOWN, primary.getHealth());
+                TacacsClientTest.authorize(client);
+                assertEquals(1, secondary.getReceived());
+
+                try (FakeTacacsServer restarted = new FakeTacacsServer("secret", primaryPort)) {
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (primary.getHealth() != TacacsServer.Health.UP && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(20);
+                    }
+                    assertEquals(TacacsServer.Health.UP, primary.getHealth());
+                    TacacsClientTest.authorize(client);
+                    assertEquals(1, restarted.getReceived());
+                    assertEquals(1, secondary.getReceived());
+                }
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void degradedPrimaryGetsTrafficBackAfterDecay() throws Exception {
+        try (FakeTacacsServer first = new FakeTacacsServer("secret"); FakeTacacsServer second = new FakeTacacsServer("secret")) {
+            TacacsServer primary = new TacacsServer("127.0.0.1", first.getPort(), "secret");
+            primary.setSlowReplyMillis(100);
+            primary.setLatencyHalfLifeMillis(100);
+            TacacsClient client = new TacacsClient(Arrays.asList(primary, new TacacsServer("127.0.0.1", second.getPort(), "secret")),
+                    2000, true, false, 1);
+            try {
+                client.start();
+                first.setDelayMillis(400);
+                TacacsClientTest.authorize(client);
+                assertEquals(1, first.getReceived());
+                assertEquals(TacacsServer.Health.DEGRADED, primary.getHealth());
+                TacacsClientTest.authorize(client);
+                assertEquals(1, first.getReceived());
+                assertEquals(1, second.getReceived());
+
+                // 400ms经过两个半衰期以上降到100ms以下
+                first.setDelayMillis(0);
+                Thread.sleep(300);
+                TacacsClientTest.authorize(client);
+                assertEquals(2, first.getReceived());
+                assertEquals(TacacsServer.Health.UP, primary.getHealth());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.ClientSession;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.Timer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsClientTest {
+
+    static final Argument[] ARGS = {new Argument("service", "shell", false), new Argument("cmd", "show", false)};
+
+    static void authorize(TacacsClient client) throws Exception {
+        ClientSession session = client.newSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1);
+        try {
+            assertTrue(session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII,
+                    TACACS_PLUS.AUTHEN.SVC.LOGIN, ARGS).isOK());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void sharedTimerOutlivesClients() throws Exception {
+        Timer timer = TacacsClient.newTimer();
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient first = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            TacacsClient second = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            first.setTimer(timer);
+            second.setTimer(timer);
+            assertSame(timer, first.getTimer());
+            first.start();
+            second.start();
+            authorize(first);
+            first.shutdown();
+
+            // 一个客户端关闭后共享的时间轮仍然可用
+            authorize(second);
+            CountDownLatch fired = new CountDownLatch(1);
+            timer.newTimeout(timeout -> fired.countDown(), 10, TimeUnit.MILLISECONDS);
+            assertTrue(fired.await(1, TimeUnit.SECONDS));
+            second.shutdown();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void connectionsUsePooledAllocator() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            try {
+                client.start();
+                authorize(client);
+                TacacsServer tacacsServer = client.getServers().get(0);
+                assertTrue(tacacsServer.handlers.get(0).getChannel().config().getAllocator() instanceof PooledByteBufAllocator);
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void timerCannotBeReplacedOnceInUse() throws Exception {
+        TacacsClient client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        client.getTimer();
+        Timer other = TacacsClient.newTimer();
+        try {
+            client.setTimer(other);
+        } finally {
+            other.stop();
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void dedicatedConnectionIsClosedWithItsSession() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            server.setSingleConnect(false);
+            server.setCloseWhenRefused(false);
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            try {
+                client.start();
+                TacacsServer tacacsServer = client.getServers().get(0);
+                for (int i = 0; i < 5; i++) {
+                    authorize(client);
+                }
+                assertEquals(TacacsServer.SingleConnect.REFUSED, tacacsServer.getSingleConnect());
+                // 服务器不关闭连接,每个会话结束时由客户端关闭它独占的连接,只剩下一个备用连接
+                waitFor(() -> tacacsServer.dedicated.isEmpty() && server.getOpenConnections() == 1);
+                assertEquals(1, tacacsServer.spares.size());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void singleConnectIsNegotiatedAgainAfterServerRestart() throws Exception {
+        FakeTacacsServer refusing = new FakeTacacsServer("secret");
+        int port = refusing.getPort();
+        refusing.setSingleConnect(false);
+        TacacsClient client = new TacacsClient(refusing.getAddress(), "secret", 2000, true, false, 1);
+        client.setReconnectBackoff(10, 50);
+        try {
+            client.start();
+            TacacsServer tacacsServer = client.getServers().get(0);
+            authorize(client);
+            assertEquals(TacacsServer.SingleConnect.REFUSED, tacacsServer.getSingleConnect());
+            refusing.close();
+            waitFor(() -> tacacsServer.getSingleConnect() == TacacsServer.SingleConnect.UNKNOWN);
+
+            try (FakeTacacsServer accepting = new FakeTacacsServer("secret", port)) {
+                waitFor(() -> !tacacsServer.spares.isEmpty());
+                authorize(client);
+                assertEquals(TacacsServer.SingleConnect.SUPPORTED, tacacsServer.getSingleConnect());
+                // 协商之前取走备用连接时发起的补充连接可能还没有完成,等它完成后再计数
+                waitFor(() -> tacacsServer.connecting.get() == 0
+                        && accepting.getConnections() == tacacsServer.handlers.size() + tacacsServer.spares.size());
+                // 之后的会话复用已有连接,不再建立新连接
+                int connections = accepting.getConnections();
+                for (int i = 0; i < 3; i++) {
+                    authorize(client);
+                }
+                assertEquals(connections, accepting.getConnections());
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void startOpensPoolAndWarmsUpBeforeFirstRequest() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            AtomicInteger roundTrips = new AtomicInteger();
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 3) {
+                @Override
+                int warmUp(int iterations) throws Exception {
+                    roundTrips.set(super.warmUp(iterations));
+                    return roundTrips.get();
+                }
+            };
+            try {
+                assertTrue(client.start(5));
+                // 认证和授权各往返5次
+                assertEquals(10, roundTrips.get());
+                // 返回时连接池已经建立,还没有发送任何请求
+                TacacsServer tacacsServer = client.getServers().get(0);
+                assertEquals(3, tacacsServer.handlers.size() + tacacsServer.spares.size());
+                waitFor(() -> server.getConnections() == 3);
+                // 预热只在本地编解码,不向服务器发送报文
+                assertEquals(0, server.getReceived());
+                authorize(client);
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void warmUpFailureDoesNotBreakClient() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 2) {
+                @Override
+                int warmUp(int iterations) {
+                    throw new IllegalStateException("warm-up failure");
+                }
+            };
+            try {
+                assertFalse(client.start(5));
+                TacacsServer tacacsServer = client.getServers().get(0);
+                assertEquals(2, tacacsServer.handlers.size() + tacacsServer.spares.size());
+                authorize(client);
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void sharedEventLoopGroupSurvivesShutdown() throws Exception {
+        EventLoopGroup group = TacacsClient.newEventLoopGroup(1, false);
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient first = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 2);
+            TacacsClient second = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 2);
+            first.setEventLoopGroup(group);
+            second.setEventLoopGroup(group);
+            try {
+                first.start();
+                second.start();
+                authorize(first);
+                authorize(second);
+                TacacsServer firstServer = first.getServers().get(0);
+                List<Channel> firstChannels = new ArrayList<>();
+                for (TacacsMessageHandler handler : firstServer.handlers) {
+                    firstChannels.add(handler.getChannel());
+                }
+                first.shutdown();
+                // 只关闭第一个客户端的连接,共享的IO线程继续为第二个客户端服务
+                assertFalse(group.isShuttingDown());
+                for (Channel channel : firstChannels) {
+                    channel.closeFuture().await(5000);
+                    assertFalse(channel.isOpen());
+                }
+                authorize(second);
+                TacacsClient third = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+                third.setEventLoopGroup(group);
+                try {
+                    third.start();
+                    authorize(third);
+                } finally {
+                    third.shutdown();
+                }
+            } finally {
+                first.shutdown();
+                second.shutdown();
+                group.shutdownGracefully().await(5000);
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void shutdownCancelsConnectsInProgressOnSharedGroup() throws Exception {
+        EventLoopGroup group = TacacsClient.newEventLoopGroup(1, false);
+        // 不接受连接且等待队列已满的端口:新的握手得不到应答,连接一直处于建立中
+        List<Socket> backlog = new ArrayList<>();
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < 16; i++) {
+                Socket socket = new Socket();
+                backlog.add(socket);
+                try {
+                    socket.connect(listener.getLocalSocketAddress(), 200);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+            TacacsClient client = new TacacsClient("127.0.0.1:" + listener.getLocalPort(), "secret", 20_000, true, false, 2);
+            client.setEventLoopGroup(group);
+            TacacsServer tacacsServer = client.getServers().get(0);
+            Thread starter = new Thread(() -> {
+                try {
+                    client.start();
+                } catch (Exception e) {
+                    // shutdown之后start不能建立任何连接
+                }
+            });
+            try {
+                starter.start();
+                waitFor(() -> tacacsServer.pendingConnects.size() == 2);
+                List<ChannelFuture> pending = new ArrayList<>(tacacsServer.pendingConnects);
+                // IO线程已经发起连接,之后连接的future不能再取消
+                waitFor(() -> pending.stream().noneMatch(ChannelFuture::isCancellable));
+                client.shutdown();
+                for (ChannelFuture connect : pending) {
+                    assertTrue(connect.await(5000));
+                    assertFalse(connect.isSuccess());
+                    connect.channel().closeFuture().await(5000);
+                    assertFalse(connect.channel().isOpen());
+                }
+                waitFor(() -> tacacsServer.connecting.get() == 0 && tacacsServer.pendingConnects.isEmpty());
+                // start不再等到超时
+                starter.join(5000);
+                assertFalse(starter.isAlive());
+                assertTrue(tacacsServer.handlers.isEmpty() && tacacsServer.spares.isEmpty());
+                assertFalse(group.isShuttingDown());
+            } finally {
+                client.shutdown();
+                for (Socket socket : backlog) {
+                    socket.close();
+                }
+                group.shutdownGracefully().await(5000);
+            }
+        }
+    }
+
+    @Test
+    public void nativeTransportFallsBackToNio() throws Exception {
+        EventLoopGroup fallback = TacacsClient.newEventLoopGroup(1, true, false);
+        try {
+            assertTrue(fallback instanceof NioEventLoopGroup);
+        } finally {
+            fallback.shutdownGracefully();
+        }
+        // 无论当前平台能否使用epoll,选择原生传输的客户端都能连接,Channel类型与IO线程的传输方式一致
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            client.setNativeTransport(true);
+            client.setIoThreads(1);
+            try {
+                client.start();
+                authorize(client);
+                Channel channel = client.getServers().get(0).handlers.get(0).getChannel();
+                if (channel.eventLoop().parent() instanceof EpollEventLoopGroup) {
+                    assertTrue(channel instanceof EpollSocketChannel);
+                } else {
+                    assertTrue(channel.eventLoop().parent() instanceof NioEventLoopGroup);
+                    assertTrue(channel instanceof NioSocketChannel);
+                }
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met within 5 s");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
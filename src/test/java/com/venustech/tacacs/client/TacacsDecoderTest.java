@@ -0,0 +1,160 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.entity.AcctReply;
+import com.venustech.tacacs.protocol.entity.AuthenReply;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsDecoderTest {
+
+    private static final byte[] KEY = "secret".getBytes(StandardCharsets.UTF_8);
+
+    private static Header header(TACACS_PLUS.PACKET.TYPE type, int sessionId) throws Exception {
+        return new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, type, Packet.toBytes4(sessionId))
+                .next(TACACS_PLUS.PACKET.VERSION.v13_0);
+    }
+
+    private static byte[] authenReply(int sessionId) throws Exception {
+        return new AuthenReply(header(TACACS_PLUS.PACKET.TYPE.AUTHEN, sessionId),
+                TACACS_PLUS.AUTHEN.STATUS.PASS, (byte) 0, "welcome " + sessionId, "").getWriteByte(KEY);
+    }
+
+    private static byte[] authorReply(int sessionId) throws Exception {
+        // 参数足够长,主体超过一个16字节的密码块
+        Argument[] arguments = {new Argument("priv-lvl", "15", false), new Argument("cmd", "show running-config", false)};
+        return new AuthorReply(header(TACACS_PLUS.PACKET.TYPE.AUTHOR, sessionId),
+                TACACS_PLUS.AUTHOR.STATUS.PASS_ADD, "", "", arguments).getWriteByte(KEY);
+    }
+
+    private static byte[] acctReply(int sessionId) throws Exception {
+        return new AcctReply(header(TACACS_PLUS.PACKET.TYPE.ACCT, sessionId),
+                TACACS_PLUS.ACCT.STATUS.SUCCESS, "", "").getWriteByte(KEY);
+    }
+
+    private static EmbeddedChannel channel() {
+        return new EmbeddedChannel(new TacacsDecoder(TacacsInitializer.MAX_FRAME_LENGTH, KEY));
+    }
+
+    private static List<Object> readAll(EmbeddedChannel channel) {
+        List<Object> packets = new ArrayList<>();
+        Object packet;
+        while ((packet = channel.readInbound()) != null) {
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    @Test
+    public void frameSplitIntoSingleBytes() throws Exception {
+        EmbeddedChannel channel = channel();
+        byte[] bytes = authorReply(0x01020304);
+        List<ByteBuf> chunks = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            ByteBuf chunk = Unpooled.wrappedBuffer(bytes, i, 1);
+            chunks.add(chunk);
+            channel.writeInbound(chunk);
+            if (i < bytes.length - 1) {
+                assertNull(channel.readInbound());
+            }
+        }
+        AuthorReply reply = (AuthorReply) channel.readInbound();
+        assertTrue(reply.isOK());
+        assertEquals(0x01020304, reply.header.getSessionIDValue());
+        assertEquals("15", reply.getValue("priv-lvl"));
+        assertEquals("show running-config", reply.getValue("cmd"));
+        assertTrue(!channel.finish());
+        for (ByteBuf chunk : chunks) {
+            assertEquals(0, chunk.refCnt());
+        }
+    }
+
+    @Test
+    public void frameSplitInsideHeaderAndBody() throws Exception {
+        EmbeddedChannel channel = channel();
+        byte[] bytes = authenReply(7);
+        // 第一段在长度字段中间结束,第二段在主体中间结束
+        channel.writeInbound(Unpooled.wrappedBuffer(bytes, 0, 10));
+        channel.writeInbound(Unpooled.wrappedBuffer(bytes, 10, 8));
+        assertNull(channel.readInbound());
+        channel.writeInbound(Unpooled.wrappedBuffer(bytes, 18, bytes.length - 18));
+        AuthenReply reply = (AuthenReply) channel.readInbound();
+        assertTrue(reply.isOK());
+        assertEquals("welcome 7", reply.getServerMsg());
+        assertEquals("welcome 7", reply.server_msg);
+        assertTrue(!channel.finish());
+    }
+
+    @Test
+    public void mergedFramesAreDecodedInOrder() throws Exception {
+        EmbeddedChannel channel = channel();
+        byte[] first = authenReply(1);
+        byte[] second = authorReply(2);
+        byte[] third = acctReply(3);
+        ByteBuf merged = Unpooled.wrappedBuffer(first, second, third);
+        channel.writeInbound(merged);
+        List<Object> packets = readAll(channel);
+        assertEquals(3, packets.size());
+        assertEquals("welcome 1", ((AuthenReply) packets.get(0)).getServerMsg());
+        assertEquals("15", ((AuthorReply) packets.get(1)).getValue("priv-lvl"));
+        assertTrue(((AcctReply) packets.get(2)).isOK());
+        assertEquals(3, ((AcctReply) packets.get(2)).header.getSessionIDValue());
+        assertTrue(!channel.finish());
+        assertEquals(0, merged.refCnt());
+    }
+
+    @Test
+    public void mergedFramesWithTrailingPartialFrame() throws Exception {
+        EmbeddedChannel channel = channel();
+        byte[] first = authorReply(1);
+        byte[] second = authenReply(2);
+        byte[] merged = new byte[first.length + second.length];
+        System.arraycopy(first, 0, merged, 0, first.length);
+        System.arraycopy(second, 0, merged, first.length, second.length);
+        int cut = first.length + 5;
+        channel.writeInbound(Unpooled.wrappedBuffer(merged, 0, cut));
+        List<Object> packets = readAll(channel);
+        assertEquals(1, packets.size());
+        assertEquals(1, ((AuthorReply) packets.get(0)).header.getSessionIDValue());
+        channel.writeInbound(Unpooled.wrappedBuffer(merged, cut, merged.length - cut));
+        packets = readAll(channel);
+        assertEquals(1, packets.size());
+        assertEquals("welcome 2", ((AuthenReply) packets.get(0)).getServerMsg());
+        assertTrue(!channel.finish());
+    }
+
+    @Test
+    public void oversizedFrameIsRejectedBeforeItIsBuffered() throws Exception {
+        EmbeddedChannel channel = channel();
+        ByteBuf header = Unpooled.buffer(Header.LENGTH);
+        header.writeBytes(new byte[]{TACACS_PLUS.PACKET.VERSION.v13_0.code(), TACACS_PLUS.PACKET.TYPE.AUTHEN.code(), 2, 0, 0, 0, 0, 1});
+        header.writeInt(TacacsInitializer.MAX_FRAME_LENGTH);
+        try {
+            channel.writeInbound(header);
+            fail();
+        } catch (TooLongFrameException expected) {
+        }
+        assertEquals(0, header.refCnt());
+        channel.finish();
+    }
+}
@@ -0,0 +1,275 @@
+package com.venustech.tacacs.client;
+
+import com.venustech.tacacs.protocol.ClientSession;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsMessageHandlerTest {
+
+    private TacacsClient client;
+    private TacacsMessageHandler handler;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        handler = new TacacsMessageHandler(client, client.getServers().get(0));
+        channel = new EmbeddedChannel(handler);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finish();
+        client.shutdown();
+    }
+
+    private ClientSession newSession() {
+        return newSession(handler);
+    }
+
+    private static ClientSession newSession(TacacsMessageHandler handler) {
+        return new ClientSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1, handler, true, false);
+    }
+
+    private CompletableFuture<AuthorReply> authorizeAsync(ClientSession session) {
+        return session.authorizeAsync("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII,
+                TACACS_PLUS.AUTHEN.SVC.LOGIN, TacacsClientTest.ARGS).toCompletableFuture();
+    }
+
+    private static void assertFailedWith(Class<? extends Throwable> type, TacacsFuture future) throws Exception {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+
+    @Test
+    public void replayCollidingWithPendingRequestFailsOnlyTheReplay() throws Exception {
+        CompletableFuture<AuthorReply> local = authorizeAsync(newSession());
+        channel.runPendingTasks();
+        Packet sent = (Packet) channel.readOutbound();
+        assertNotNull(sent);
+        int sessionId = sent.header.getSessionIDValue();
+
+        TacacsFuture replayed = PendingTableTest.future(sessionId);
+        handler.replay(replayed);
+        assertFailedWith(TacacsConnectionException.class, replayed);
+        assertFalse(local.isDone());
+        assertEquals(1, handler.pendingCount());
+        channel.runPendingTasks();
+        assertEquals(null, channel.readOutbound());
+    }
+
+    @Test
+    public void replayCollidingWithLiveSessionFailsOnlyTheReplay() throws Exception {
+        ClientSession session = newSession();
+        int sessionId = handler.allocateSessionId(session);
+
+        TacacsFuture replayed = PendingTableTest.future(sessionId);
+        handler.replay(replayed);
+        assertFailedWith(TacacsConnectionException.class, replayed);
+        assertEquals(0, handler.pendingCount());
+        channel.runPendingTasks();
+        assertEquals(null, channel.readOutbound());
+    }
+
+    @Test
+    public void replayWithoutCollisionIsWritten() throws Exception {
+        TacacsFuture replayed = PendingTableTest.future(0x12345678);
+        handler.replay(replayed);
+        assertFalse(replayed.isDone());
+        assertEquals(1, handler.pendingCount());
+        channel.runPendingTasks();
+        Packet sent = (Packet) channel.readOutbound();
+        assertEquals(0x12345678, sent.header.getSessionIDValue());
+    }
+
+    @Test
+    public void newRequestOnSameSessionSupersedesThePreviousOne() throws Exception {
+        ClientSession session = newSession();
+        CompletableFuture<AuthorReply> first = authorizeAsync(session);
+        CompletableFuture<AuthorReply> second = authorizeAsync(session);
+        assertTrue(first.isCompletedExceptionally());
+        assertFalse(second.isDone());
+        assertEquals(1, handler.pendingCount());
+    }
+
+    /** 不由连接分配sessionID的会话,由测试调用allocateSessionId **/
+    private static ClientSession detachedSession() {
+        return new ClientSession(TACACS_PLUS.AUTHEN.SVC.LOGIN, "tty0", "10.0.0.1", (byte) 1, null, true, false);
+    }
+
+    @Test
+    public void sessionIdsAreUniqueOnConnection() {
+        List<ClientSession> sessions = new ArrayList<>();
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 20_000; i++) {
+            ClientSession session = detachedSession();
+            sessions.add(session);
+            int id = handler.allocateSessionId(session);
+            assertTrue(id != 0);
+            assertTrue("duplicate session id " + id, ids.add(id));
+        }
+        assertEquals(sessions.size(), handler.liveSessionCount());
+    }
+
+    @Test
+    public void releasedSessionIdCanBeUsedAgain() throws Exception {
+        ClientSession session = detachedSession();
+        int sessionId = handler.allocateSessionId(session);
+        TacacsFuture blocked = PendingTableTest.future(sessionId);
+        handler.replay(blocked);
+        assertFailedWith(TacacsConnectionException.class, blocked);
+
+        handler.releaseSessionId(session, sessionId);
+        assertEquals(0, handler.liveSessionCount());
+        // 释放之后这个sessionID不再被占用
+        TacacsFuture reused = PendingTableTest.future(sessionId);
+        handler.replay(reused);
+        assertFalse(reused.isDone());
+        assertEquals(1, handler.pendingCount());
+    }
+
+    @Test
+    public void releaseByAnotherSessionIsIgnored() {
+        ClientSession owner = detachedSession();
+        int sessionId = handler.allocateSessionId(owner);
+        handler.releaseSessionId(detachedSession(), sessionId);
+        assertEquals(1, handler.liveSessionCount());
+        handler.releaseSessionId(owner, sessionId);
+        assertEquals(0, handler.liveSessionCount());
+    }
+
+    /** 统计经过的write和flush次数 **/
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            writes.incrementAndGet();
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            ctx.flush();
+        }
+    }
+
+    @Test
+    public void writesInOneTickShareOneFlush() {
+        FlushCounter counter = new FlushCounter();
+        TacacsMessageHandler coalescing = new TacacsMessageHandler(client, client.getServers().get(0));
+        EmbeddedChannel embedded = new EmbeddedChannel(counter, coalescing);
+        try {
+            for (int i = 0; i < 5; i++) {
+                authorizeAsync(newSession(coalescing));
+            }
+            assertEquals(5, counter.writes.get());
+            // flush在EventLoop的下一个任务中执行
+            assertEquals(0, counter.flushes.get());
+            embedded.runPendingTasks();
+            assertEquals(1, counter.flushes.get());
+            int written = 0;
+            while (embedded.readOutbound() != null) {
+                written++;
+            }
+            assertEquals(5, written);
+
+            // flush之后的写入重新安排一次flush
+            authorizeAsync(newSession(coalescing));
+            embedded.runPendingTasks();
+            assertEquals(2, counter.flushes.get());
+            assertNotNull(embedded.readOutbound());
+        } finally {
+            embedded.finish();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void writesFromOutsideTheEventLoopAreFlushed() throws Exception {
+        LocalEventLoopGroup group = new LocalEventLoopGroup(1);
+        try {
+            LocalAddress address = new LocalAddress("tacacs-flush-test");
+            BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+            Channel server = new ServerBootstrap().group(group).channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            received.add(msg);
+                            ReferenceCountUtil.release(msg);
+                        }
+                    }).bind(address).sync().channel();
+            FlushCounter counter = new FlushCounter();
+            TacacsMessageHandler local = new TacacsMessageHandler(client, client.getServers().get(0));
+            Channel channel = new Bootstrap().group(group).channel(LocalChannel.class)
+                    .handler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch) {
+                            ch.pipeline().addLast(counter, local);
+                        }
+                    }).connect(address).sync().channel();
+            try {
+                assertFalse(channel.eventLoop().inEventLoop());
+                for (int i = 0; i < 5; i++) {
+                    authorizeAsync(newSession(local));
+                }
+                // 没有后续写入也必须发出,不能停留在出站缓冲区
+                for (int i = 0; i < 5; i++) {
+                    assertNotNull(received.poll(5, TimeUnit.SECONDS));
+                }
+                assertEquals(5, counter.writes.get());
+                assertTrue("flushes: " + counter.flushes.get(), counter.flushes.get() >= 1 && counter.flushes.get() <= 5);
+            } finally {
+                channel.close().sync();
+                server.close().sync();
+            }
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).sync();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.venustech.tacacs.client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class TacacsServerTest {
+
+    @Test
+    public void slowRepliesDegradeAndFastRepliesRecover() {
+        TacacsServer server = new TacacsServer("127.0.0.1", 49, "key");
+        server.setSlowReplyMillis(100);
+        server.recordLatency(500);
+        assertEquals(TacacsServer.Health.DEGRADED, server.getHealth());
+        for (int i = 0; i < 20; i++) {
+            server.recordLatency(1);
+        }
+        assertEquals(TacacsServer.Health.UP, server.getHealth());
+    }
+
+    @Test
+    public void idleDegradedServerDecaysBackToUp() throws Exception {
+        TacacsServer server = new TacacsServer("127.0.0.1", 49, "key");
+        server.setSlowReplyMillis(100);
+        server.setLatencyHalfLifeMillis(10);
+        server.recordLatency(400);
+        assertEquals(TacacsServer.Health.DEGRADED, server.getHealth());
+        // 400 -> 200 -> 100,两个半衰期之前仍然是DEGRADED
+        server.decayLatency(System.currentTimeMillis());
+        assertEquals(TacacsServer.Health.DEGRADED, server.getHealth());
+        Thread.sleep(30);
+        server.decayLatency(System.currentTimeMillis());
+        assertEquals(TacacsServer.Health.UP, server.getHealth());
+        assertTrue(server.getLatencyMillis() <= 100);
+        // 衰减后的第一个慢响应立即再次标记为DEGRADED
+        server.recordLatency(2000);
+        assertEquals(TacacsServer.Health.DEGRADED, server.getHealth());
+    }
+
+    @Test
+    public void downServerIsSkippedUntilRetryAfter() throws Exception {
+        TacacsServer server = new TacacsServer("127.0.0.1", 49, "key");
+        server.setRetryAfterMillis(50);
+        server.recordConnectFailure(new IOException("refused"));
+        assertEquals(TacacsServer.Health.DOWN, server.getHealth());
+        assertFalse(server.isAvailable(System.currentTimeMillis()));
+        assertTrue(server.isAvailable(System.currentTimeMillis() + 50));
+        // 时延样本不会让DOWN的服务器恢复,只有连接成功才会
+        server.recordLatency(1);
+        assertEquals(TacacsServer.Health.DOWN, server.getHealth());
+        server.recordConnectSuccess();
+        assertEquals(TacacsServer.Health.UP, server.getHealth());
+    }
+
+    /** 待响应请求数和发送余量固定的连接 **/
+    private static TacacsMessageHandler stub(TacacsClient client, TacacsServer server, int pending, boolean capacity) {
+        return new TacacsMessageHandler(client, server) {
+            @Override
+            public int pendingCount() {
+                return pending;
+            }
+
+            @Override
+            boolean hasCapacity() {
+                return capacity;
+            }
+        };
+    }
+
+    @Test
+    public void leastPendingConnectionIsChosen() throws Exception {
+        TacacsClient client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        try {
+            TacacsServer server = client.getServers().get(0);
+            assertNull(server.leastPendingHandler());
+            TacacsMessageHandler three = stub(client, server, 3, true);
+            TacacsMessageHandler one = stub(client, server, 1, true);
+            TacacsMessageHandler alsoOne = stub(client, server, 1, true);
+            server.handlers.add(three);
+            server.handlers.add(one);
+            server.handlers.add(alsoOne);
+            // 待响应数相同时选择靠前的连接
+            assertSame(one, server.leastPendingHandler());
+            TacacsMessageHandler idle = stub(client, server, 0, true);
+            server.handlers.add(idle);
+            assertSame(idle, server.leastPendingHandler());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void connectionsWithoutCapacityAreSkipped() throws Exception {
+        TacacsClient client = new TacacsClient(FakeTacacsServer.unusedAddress(), "secret");
+        try {
+            TacacsServer server = client.getServers().get(0);
+            TacacsMessageHandler full = stub(client, server, 0, false);
+            TacacsMessageHandler busy = stub(client, server, 50, true);
+            server.handlers.add(full);
+            server.handlers.add(busy);
+            // 有余量的连接即使待响应请求更多也优先
+            assertSame(busy, server.leastPendingHandler());
+
+            // 所有连接都没有余量时仍然返回待响应最少的连接,请求在AdmissionControl中排队
+            server.handlers.remove(busy);
+            TacacsMessageHandler fuller = stub(client, server, 7, false);
+            server.handlers.add(0, fuller);
+            assertSame(full, server.leastPendingHandler());
+        } finally {
+            client.shutdown();
+        }
+    }
+}
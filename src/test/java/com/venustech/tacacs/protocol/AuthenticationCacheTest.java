@@ -0,0 +1,106 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.client.FakeTacacsServer;
+import com.venustech.tacacs.client.TacacsClient;
+import com.venustech.tacacs.protocol.entity.AuthenReply;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AuthenticationCacheTest {
+
+    private static final TACACS_PLUS.AUTHEN.SVC LOGIN = TACACS_PLUS.AUTHEN.SVC.LOGIN;
+
+    private static AuthenReply reply(TACACS_PLUS.AUTHEN.STATUS status) throws Exception {
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_1, TACACS_PLUS.PACKET.TYPE.AUTHEN, Packet.toBytes4(1))
+                .next(TACACS_PLUS.PACKET.VERSION.v13_1);
+        return new AuthenReply(header, status, (byte) 0, "", "");
+    }
+
+    private static AuthenticationCache cache() {
+        return new AuthenticationCache(10, 60_000, user -> user.startsWith("svc-"), 1);
+    }
+
+    @Test
+    public void hitRequiresSameRequestFieldsAndPassword() throws Exception {
+        AuthenticationCache cache = cache();
+        AuthenticationCache.Key key = AuthenticationCache.key("svc-backup", (byte) 1, LOGIN, "tty0", "10.0.0.1");
+        AuthenReply pass = reply(TACACS_PLUS.AUTHEN.STATUS.PASS);
+        cache.put(key, "secret", pass);
+        assertSame(pass, cache.lookup(AuthenticationCache.key("svc-backup", (byte) 1, LOGIN, "tty0", "10.0.0.1"), "secret"));
+        assertNull(cache.lookup(key, "wrong"));
+        // 低权限级别的PASS不能用于高权限级别的登录
+        assertNull(cache.lookup(AuthenticationCache.key("svc-backup", (byte) 15, LOGIN, "tty0", "10.0.0.1"), "secret"));
+        assertNull(cache.lookup(AuthenticationCache.key("svc-backup", (byte) 1, TACACS_PLUS.AUTHEN.SVC.ENABLE, "tty0", "10.0.0.1"), "secret"));
+        assertNull(cache.lookup(AuthenticationCache.key("svc-backup", (byte) 1, LOGIN, "tty1", "10.0.0.1"), "secret"));
+        assertNull(cache.lookup(AuthenticationCache.key("svc-backup", (byte) 1, LOGIN, "tty0", "10.0.0.2"), "secret"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(5, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidateRemovesEveryEntryOfUser() throws Exception {
+        AuthenticationCache cache = cache();
+        AuthenReply pass = reply(TACACS_PLUS.AUTHEN.STATUS.PASS);
+        cache.put(AuthenticationCache.key("svc-a", (byte) 1, LOGIN, "tty0", "10.0.0.1"), "secret", pass);
+        cache.put(AuthenticationCache.key("svc-a", (byte) 15, LOGIN, "tty1", "10.0.0.2"), "secret", pass);
+        cache.put(AuthenticationCache.key("svc-b", (byte) 1, LOGIN, "tty0", "10.0.0.1"), "secret", pass);
+        cache.invalidate("svc-a");
+        assertEquals(1, cache.size());
+        assertSame(pass, cache.lookup(AuthenticationCache.key("svc-b", (byte) 1, LOGIN, "tty0", "10.0.0.1"), "secret"));
+    }
+
+    @Test
+    public void failRemovesEveryEntryOfUser() throws Exception {
+        AuthenticationCache cache = cache();
+        AuthenReply pass = reply(TACACS_PLUS.AUTHEN.STATUS.PASS);
+        cache.put(AuthenticationCache.key("svc-a", (byte) 1, LOGIN, "tty0", "10.0.0.1"), "secret", pass);
+        cache.put(AuthenticationCache.key("svc-a", (byte) 1, LOGIN, "tty1", "10.0.0.1"), "secret", pass);
+        // 服务器在另一个端口上拒绝了该用户,密码可能已经修改
+        cache.put(AuthenticationCache.key("svc-a", (byte) 1, LOGIN, "tty2", "10.0.0.1"), "secret", reply(TACACS_PLUS.AUTHEN.STATUS.FAIL));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredEntryIsRemoved() throws Exception {
+        AuthenticationCache cache = new AuthenticationCache(10, 1, user -> true, 1);
+        AuthenticationCache.Key key = AuthenticationCache.key("svc-a", (byte) 1, LOGIN, "tty0", "10.0.0.1");
+        cache.put(key, "secret", reply(TACACS_PLUS.AUTHEN.STATUS.PASS));
+        Thread.sleep(5);
+        assertNull(cache.lookup(key, "secret"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void higherPrivilegeLoginIsAuthenticatedByServer() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            client.setAuthenticationCache(cache());
+            try {
+                client.start();
+                for (byte privLvl : new byte[]{1, 1, 15, 15}) {
+                    ClientSession session = client.newSession(LOGIN, "tty0", "10.0.0.1", privLvl);
+                    try {
+                        assertTrue(session.authenticate_PAP("svc-backup", "secret").isOK());
+                    } finally {
+                        session.close();
+                    }
+                }
+                assertEquals(2, server.getReceived());
+                assertEquals(2, client.getAuthenticationCache().getHitCount());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+}
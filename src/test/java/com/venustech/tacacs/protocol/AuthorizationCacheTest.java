@@ -0,0 +1,221 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.client.FakeTacacsServer;
+import com.venustech.tacacs.client.TacacsClient;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AuthorizationCacheTest {
+
+    private static final TACACS_PLUS.AUTHEN.SVC LOGIN = TACACS_PLUS.AUTHEN.SVC.LOGIN;
+    private static final Argument[] ARGS = {new Argument("service", "shell", false), new Argument("cmd", "show", false)};
+
+    static AuthorReply reply(TACACS_PLUS.AUTHOR.STATUS status) throws Exception {
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, Packet.toBytes4(1))
+                .next(TACACS_PLUS.PACKET.VERSION.v13_0);
+        return new AuthorReply(header, status, "", "", new Argument[]{new Argument("priv-lvl", "15", false)});
+    }
+
+    private static AuthorizationCache.Key key(String user, String port, String remAddr, byte privLvl, Argument... args) {
+        return AuthorizationCache.key(user, port, remAddr, TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, privLvl, args);
+    }
+
+    @Test
+    public void keyIncludesAuthenticationMethodAndType() {
+        AuthorizationCache.Key key = key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS);
+        assertNotEquals(key, AuthorizationCache.key("bob", "tty0", "10.0.0.1", TACACS_PLUS.AUTHEN.METH.LOCAL,
+                TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, (byte) 1, ARGS));
+        assertNotEquals(key, AuthorizationCache.key("bob", "tty0", "10.0.0.1", TACACS_PLUS.AUTHEN.METH.TACACSPLUS,
+                TACACS_PLUS.AUTHEN.TYPE.PAP, LOGIN, (byte) 1, ARGS));
+    }
+
+    @Test
+    public void otherAuthenticationMethodIsAuthorizedByServer() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            client.setAuthorizationCache(new AuthorizationCache(10, 60_000, 60_000, 0));
+            try {
+                client.start();
+                TACACS_PLUS.AUTHEN.METH[] methods = {TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.METH.LOCAL,
+                        TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.METH.LOCAL};
+                for (TACACS_PLUS.AUTHEN.METH method : methods) {
+                    ClientSession session = client.newSession(LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                    try {
+                        assertTrue(session.authorize("bob", method, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS).isOK());
+                    } finally {
+                        session.close();
+                    }
+                }
+                // 认证方式不同的请求不使用彼此的结果
+                assertEquals(2, server.getReceived());
+                assertEquals(2, client.getAuthorizationCache().getHitCount());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void keyIncludesPortAndRemoteAddress() {
+        AuthorizationCache.Key key = key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS);
+        assertEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS));
+        assertNotEquals(key, key("bob", "tty1", "10.0.0.1", (byte) 1, ARGS));
+        assertNotEquals(key, key("bob", "tty0", "10.0.0.2", (byte) 1, ARGS));
+        assertNotEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 15, ARGS));
+        assertNotEquals(key, key("alice", "tty0", "10.0.0.1", (byte) 1, ARGS));
+        assertEquals(key("bob", null, null, (byte) 1), key("bob", "", "", (byte) 1));
+    }
+
+    @Test
+    public void sessionOnAnotherPortIsAuthorizedByServer() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 1);
+            client.setAuthorizationCache(new AuthorizationCache(10, 60_000, 60_000, 0));
+            try {
+                client.start();
+                for (String port : new String[]{"tty0", "tty0", "tty1", "tty1"}) {
+                    ClientSession session = client.newSession(LOGIN, port, "10.0.0.1", (byte) 1);
+                    try {
+                        assertTrue(session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS).isOK());
+                    } finally {
+                        session.close();
+                    }
+                }
+                assertEquals(2, server.getReceived());
+                assertEquals(2, client.getAuthorizationCache().getHitCount());
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void valuesAreNotTrimmed() {
+        AuthorizationCache.Key key = key("bob", "tty0", "10.0.0.1", (byte) 1, new Argument("cmd", "show", false));
+        assertNotEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 1, new Argument("cmd", "show ", false)));
+        assertNotEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 1, new Argument("cmd", " show", false)));
+        assertNotEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 1, new Argument("cmd", "show", true)));
+        // 属性名不区分大小写
+        assertEquals(key, key("bob", "tty0", "10.0.0.1", (byte) 1, new Argument("CMD", "show", false)));
+    }
+
+    @Test
+    public void passAndFailAreCachedButErrorIsNot() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(10, 60_000, 60_000, 0);
+        AuthorizationCache.Key pass = key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS);
+        AuthorizationCache.Key fail = key("eve", "tty0", "10.0.0.1", (byte) 1, ARGS);
+        AuthorReply passReply = reply(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD);
+        AuthorReply failReply = reply(TACACS_PLUS.AUTHOR.STATUS.FAIL);
+        cache.put(pass, passReply);
+        cache.put(fail, failReply);
+        assertSame(passReply, cache.lookup(pass, null));
+        assertSame(failReply, cache.lookup(fail, null));
+        cache.put(pass, reply(TACACS_PLUS.AUTHOR.STATUS.ERROR));
+        assertNull(cache.lookup(pass, null));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidateRemovesEveryEntryOfUser() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(10, 60_000, 60_000, 0);
+        AuthorReply reply = reply(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD);
+        cache.put(key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS), reply);
+        cache.put(key("bob", "tty1", "10.0.0.2", (byte) 15, ARGS), reply);
+        cache.put(key("alice", "tty0", "10.0.0.1", (byte) 1, ARGS), reply);
+        cache.invalidate("bob");
+        assertEquals(1, cache.size());
+        assertSame(reply, cache.lookup(key("alice", "tty0", "10.0.0.1", (byte) 1, ARGS), null));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(2, 60_000, 60_000, 0);
+        AuthorReply reply = reply(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD);
+        AuthorizationCache.Key first = key("a", "tty0", "", (byte) 1);
+        AuthorizationCache.Key second = key("b", "tty0", "", (byte) 1);
+        cache.put(first, reply);
+        cache.put(second, reply);
+        cache.lookup(first, null);
+        cache.put(key("c", "tty0", "", (byte) 1), reply);
+        assertSame(reply, cache.lookup(first, null));
+        assertNull(cache.lookup(second, null));
+    }
+
+    @Test
+    public void staleEntryIsReturnedAndRevalidatedOnce() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(10, 1, 1, 60_000);
+        AuthorizationCache.Key key = key("bob", "tty0", "10.0.0.1", (byte) 1, ARGS);
+        AuthorReply old = reply(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD);
+        cache.put(key, old);
+        Thread.sleep(5);
+        AtomicInteger revalidations = new AtomicInteger();
+        CompletableFuture<AuthorReply> pending = new CompletableFuture<>();
+        assertSame(old, cache.lookup(key, () -> {
+            revalidations.incrementAndGet();
+            return pending;
+        }));
+        assertSame(old, cache.lookup(key, () -> {
+            revalidations.incrementAndGet();
+            return pending;
+        }));
+        assertEquals(1, revalidations.get());
+        assertEquals(2, cache.getStaleHitCount());
+        AuthorReply fresh = reply(TACACS_PLUS.AUTHOR.STATUS.FAIL);
+        pending.complete(fresh);
+        // 新结果替换旧结果,有效期1毫秒,过期后仍在staleMillis之内
+        Thread.sleep(5);
+        CompletableFuture<AuthorReply> again = new CompletableFuture<>();
+        assertSame(fresh, cache.lookup(key, () -> again));
+    }
+
+    @Test(timeout = 30_000)
+    public void revalidationDoesNotShareDedicatedConnection() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            server.setSingleConnect(false);
+            server.setCloseWhenRefused(false);
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 2000, true, false, 2);
+            client.setAuthorizationCache(new AuthorizationCache(10, 1, 1, 60_000));
+            try {
+                client.start();
+                ClientSession first = client.newSession(LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                assertTrue(first.authorize("alice", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS).isOK());
+                first.close();
+
+                ClientSession session = client.newSession(LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                try {
+                    assertTrue(session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS).isOK());
+                    Thread.sleep(5);
+                    server.setDelayMillis(200);
+                    // 服务器拒绝单连接,本会话的连接是独占的,后台重新授权使用另一个连接
+                    while (server.getReceived() < 3) {
+                        assertTrue(session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS).isOK());
+                        assertEquals(1, session.tacacs.liveSessionCount());
+                        Thread.sleep(50);
+                    }
+                } finally {
+                    session.close();
+                }
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+}
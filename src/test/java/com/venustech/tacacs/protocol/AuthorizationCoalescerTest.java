@@ -0,0 +1,217 @@
+package com.venustech.tacacs.protocol;
+
+import com.venustech.tacacs.client.FakeTacacsServer;
+import com.venustech.tacacs.client.TacacsClient;
+import com.venustech.tacacs.protocol.entity.AuthenReply;
+import com.venustech.tacacs.protocol.entity.AuthorReply;
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AuthorizationCoalescerTest {
+
+    private static final TACACS_PLUS.AUTHEN.SVC LOGIN = TACACS_PLUS.AUTHEN.SVC.LOGIN;
+    private static final Argument[] ARGS = {new Argument("service", "shell", false), new Argument("cmd", "show", false)};
+
+    private static AuthorizationCoalescer.Key key(String user, String port) {
+        return AuthorizationCoalescer.key(user, port, "10.0.0.1", TACACS_PLUS.AUTHEN.METH.TACACSPLUS,
+                TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, (byte) 1, ARGS);
+    }
+
+    @Test
+    public void identicalRequestsShareOneFlight() throws Exception {
+        AuthorizationCoalescer coalescer = new AuthorizationCoalescer();
+        AtomicInteger sends = new AtomicInteger();
+        CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+        CompletableFuture<AuthorReply> first = coalescer.execute(key("bob", "tty0"), () -> {
+            sends.incrementAndGet();
+            return flight;
+        });
+        CompletableFuture<AuthorReply> second = coalescer.execute(key("bob", "tty0"), () -> {
+            sends.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(1, sends.get());
+        assertEquals(1, coalescer.getInFlight());
+        // 一个调用方取消不影响其他调用方
+        second.cancel(false);
+        AuthorReply reply = AuthorizationCacheTest.reply(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD);
+        flight.complete(reply);
+        assertSame(reply, first.get());
+        assertEquals(0, coalescer.getInFlight());
+        assertEquals(1, coalescer.getSentCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+
+        // 响应到达之后的请求重新发送
+        coalescer.execute(key("bob", "tty0"), () -> {
+            sends.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(2, sends.get());
+    }
+
+    @Test
+    public void differentRequestsAreNotCoalesced() {
+        AuthorizationCoalescer coalescer = new AuthorizationCoalescer();
+        AtomicInteger sends = new AtomicInteger();
+        for (String port : new String[]{"tty0", "tty1"}) {
+            for (String user : new String[]{"bob", "alice"}) {
+                coalescer.execute(key(user, port), () -> {
+                    sends.incrementAndGet();
+                    return new CompletableFuture<>();
+                });
+            }
+        }
+        assertEquals(4, sends.get());
+        assertEquals(4, coalescer.getInFlight());
+    }
+
+    @Test
+    public void failureReachesEveryWaiter() throws Exception {
+        AuthorizationCoalescer coalescer = new AuthorizationCoalescer();
+        CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+        CompletableFuture<AuthorReply> first = coalescer.execute(key("bob", "tty0"), () -> flight);
+        CompletableFuture<AuthorReply> second = coalescer.execute(key("bob", "tty0"), CompletableFuture::new);
+        flight.completeExceptionally(new IOException("lost"));
+        for (CompletableFuture<AuthorReply> waiter : new CompletableFuture[]{first, second}) {
+            try {
+                waiter.get();
+                fail();
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(0, coalescer.getInFlight());
+    }
+
+    @Test(timeout = 60_000)
+    public void coalescedAndPlainCallsOnOneSessionAreSerialized() throws Exception {
+        try (FakeTacacsServer server = new FakeTacacsServer("secret")) {
+            server.setDelayMillis(5);
+            TacacsClient client = new TacacsClient(server.getAddress(), "secret", 5000, true, false, 1);
+            client.setAuthorizationCoalescing(true);
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            try {
+                client.start();
+                ClientSession session = client.newSession(LOGIN, "tty0", "10.0.0.1", (byte) 1);
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        CountDownLatch start = new CountDownLatch(1);
+                        // 合并的授权请求和不合并的认证请求使用同一个sessionID,交错发送时先发出的请求会被后发出的取代
+                        Future<AuthorReply> coalesced = pool.submit(() -> {
+                            start.await();
+                            return session.authorize("bob", TACACS_PLUS.AUTHEN.METH.TACACSPLUS, TACACS_PLUS.AUTHEN.TYPE.ASCII, LOGIN, ARGS);
+                        });
+                        Future<AuthenReply> plain = pool.submit(() -> {
+                            start.await();
+                            return session.authenticate_PAP("bob", "secret");
+                        });
+                        start.countDown();
+                        assertTrue(coalesced.get().isOK());
+                        assertTrue(plain.get().isOK());
+                    }
+                } finally {
+                    session.close();
+                }
+                assertEquals(100, server.getReceived());
+            } finally {
+                pool.shutdownNow();
+                client.shutdown();
+            }
+        }
+    }
+
+    /** 按报文格式构造收到的响应,字段在第一次读取时才解码 **/
+    private static AuthorReply received(String serverMsg, String... arguments) throws Exception {
+        byte[] msg = serverMsg.getBytes(StandardCharsets.UTF_8);
+        int length = 6 + arguments.length + msg.length;
+        for (String argument : arguments) {
+            length += argument.length();
+        }
+        byte[] body = new byte[length];
+        body[0] = TACACS_PLUS.AUTHOR.STATUS.PASS_ADD.code();
+        body[1] = (byte) arguments.length;
+        body[3] = (byte) msg.length;
+        int offset = 6;
+        for (String argument : arguments) {
+            body[offset++] = (byte) argument.length();
+        }
+        System.arraycopy(msg, 0, body, offset, msg.length);
+        offset += msg.length;
+        for (String argument : arguments) {
+            byte[] bytes = argument.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, body, offset, bytes.length);
+            offset += bytes.length;
+        }
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, Packet.toBytes4(1))
+                .next(TACACS_PLUS.PACKET.VERSION.v13_0);
+        return new AuthorReply(header, body);
+    }
+
+    @Test(timeout = 30_000)
+    public void sharedReplyIsDecodedBeforeItIsPublished() throws Exception {
+        AuthorizationCoalescer coalescer = new AuthorizationCoalescer();
+        CompletableFuture<AuthorReply> flight = new CompletableFuture<>();
+        List<CompletableFuture<AuthorReply>> callers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            callers.add(coalescer.execute(key("bob", "tty0"), () -> flight));
+        }
+        AuthorReply reply = received("welcome", "priv-lvl=15", "acl=7", "timeout*30");
+        flight.complete(reply);
+        // 完成之前已经解码,之后读取的线程不再写入延迟解码的字段
+        Field arguments = AuthorReply.class.getDeclaredField("arguments");
+        arguments.setAccessible(true);
+        assertNotNull(arguments.get(reply));
+
+        ExecutorService executor = Executors.newFixedThreadPool(callers.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Argument[]>> reads = new ArrayList<>();
+            for (CompletableFuture<AuthorReply> caller : callers) {
+                reads.add(executor.submit(() -> {
+                    start.await();
+                    AuthorReply shared = caller.get();
+                    assertEquals("15", shared.getValue("priv-lvl"));
+                    assertEquals("30", shared.getValue("timeout"));
+                    assertEquals("welcome", shared.getServerMsg());
+                    return shared.getArguments();
+                }));
+            }
+            start.countDown();
+            Argument[] first = reads.get(0).get();
+            assertEquals(3, first.length);
+            assertEquals("acl", first[1].attribute);
+            assertTrue(first[2].isOptional());
+            for (Future<Argument[]> read : reads) {
+                assertSame(first, read.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.venustech.tacacs.protocol;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class SessionIdAllocatorTest {
+
+    @Test
+    public void sessionIdsStayRandomAcrossPoolRefills() {
+        // 每个缓冲区只够256个sessionID,取出的字节被清零,重新填充之后仍然是随机值
+        int count = 20_000;
+        Set<Integer> ids = new HashSet<>();
+        int zeros = 0;
+        for (int i = 0; i < count; i++) {
+            int id = SessionIdAllocator.nextSessionId();
+            ids.add(id);
+            if (id == 0) {
+                zeros++;
+            }
+        }
+        assertTrue("zero ids: " + zeros, zeros <= 1);
+        // 32位随机数中20000个的期望重复数远小于1
+        assertTrue("distinct ids: " + ids.size(), ids.size() >= count - 5);
+    }
+
+    @Test
+    public void bytesSpanningSeveralRefillsAreRandom() {
+        byte[] bytes = new byte[5000];
+        SessionIdAllocator.nextBytes(bytes, 0, bytes.length);
+        // 每一段都不能是清零后的缓冲区
+        for (int start = 0; start < bytes.length; start += 500) {
+            int nonZero = 0;
+            for (int i = start; i < start + 500; i++) {
+                if (bytes[i] != 0) {
+                    nonZero++;
+                }
+            }
+            assertTrue("non-zero bytes at " + start + ": " + nonZero, nonZero > 400);
+        }
+    }
+
+    @Test
+    public void unalignedRequestsKeepSessionIdsRandom() {
+        // CHAP挑战码等请求之后缓冲区位置不再按4字节对齐
+        byte[] odd = new byte[3];
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            SessionIdAllocator.nextBytes(odd, 0, odd.length);
+            ids.add(SessionIdAllocator.nextSessionId());
+        }
+        assertTrue("distinct ids: " + ids.size(), ids.size() >= 1995);
+    }
+}
@@ -0,0 +1,164 @@
+package com.venustech.tacacs.protocol.entity;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AuthorReplyTest {
+
+    /** 按报文格式构造收到的响应主体:状态、参数个数、消息长度、数据长度、各参数长度、消息、数据、参数 **/
+    static byte[] body(TACACS_PLUS.AUTHOR.STATUS status, String serverMsg, String data, String... arguments) {
+        byte[] msg = serverMsg.getBytes(StandardCharsets.UTF_8);
+        byte[] dat = data.getBytes(StandardCharsets.UTF_8);
+        byte[][] args = new byte[arguments.length][];
+        int length = 6 + arguments.length + msg.length + dat.length;
+        for (int i = 0; i < arguments.length; i++) {
+            args[i] = arguments[i].getBytes(StandardCharsets.UTF_8);
+            length += args[i].length;
+        }
+        byte[] body = new byte[length];
+        body[0] = status.code();
+        body[1] = (byte) arguments.length;
+        body[2] = (byte) (msg.length >>> 8);
+        body[3] = (byte) msg.length;
+        body[4] = (byte) (dat.length >>> 8);
+        body[5] = (byte) dat.length;
+        int offset = 6;
+        for (byte[] arg : args) {
+            body[offset++] = (byte) arg.length;
+        }
+        System.arraycopy(msg, 0, body, offset, msg.length);
+        offset += msg.length;
+        System.arraycopy(dat, 0, body, offset, dat.length);
+        offset += dat.length;
+        for (byte[] arg : args) {
+            System.arraycopy(arg, 0, body, offset, arg.length);
+            offset += arg.length;
+        }
+        return body;
+    }
+
+    static AuthorReply reply(String serverMsg, String data, String... arguments) throws IOException {
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, Packet.toBytes4(1))
+                .next(TACACS_PLUS.PACKET.VERSION.v13_0);
+        return new AuthorReply(header, body(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD, serverMsg, data, arguments));
+    }
+
+    @Test
+    public void firstOfDuplicateAttributesWins() throws Exception {
+        AuthorReply reply = reply("", "", "priv-lvl=15", "acl=1", "priv-lvl=1", "acl*2");
+        assertEquals("15", reply.getValue("priv-lvl"));
+        assertEquals("1", reply.getValue("acl"));
+        // 参数列表保留全部重复的参数
+        Argument[] arguments = reply.getArguments();
+        assertEquals(4, arguments.length);
+        assertEquals("1", arguments[2].value);
+        assertEquals("2", arguments[3].value);
+    }
+
+    @Test
+    public void optionalSeparator() throws Exception {
+        AuthorReply reply = reply("", "", "timeout*30", "cmd=a*b", "idle*x=y");
+        assertEquals("30", reply.getValue("timeout"));
+        // 在第一个'='或'*'处分开
+        assertEquals("a*b", reply.getValue("cmd"));
+        assertEquals("x=y", reply.getValue("idle"));
+        Argument[] arguments = reply.getArguments();
+        assertTrue(arguments[0].isOptional());
+        assertFalse(arguments[1].isOptional());
+        assertTrue(arguments[2].isOptional());
+        assertEquals("idle", arguments[2].attribute);
+    }
+
+    @Test
+    public void argumentWithoutSeparator() throws Exception {
+        AuthorReply reply = reply("", "", "noseparator", "empty=", "x=1");
+        assertNull(reply.getValue("noseparator"));
+        assertEquals("", reply.getValue("empty"));
+        assertEquals("1", reply.getValue("x"));
+        assertNull(reply.getValue("missing"));
+        Argument argument = reply.getArguments()[0];
+        assertEquals("noseparator", argument.attribute);
+        assertNull(argument.value);
+        assertFalse(argument.isOptional());
+    }
+
+    @Test
+    public void serverMsgAndDataFollowTheArgumentLengths() throws Exception {
+        AuthorReply reply = reply("welcome", "audit", "priv-lvl=15", "acl=7");
+        assertEquals("welcome", reply.getServerMsg());
+        // 公开字段与读取方法一致
+        assertEquals("welcome", reply.server_msg);
+        assertEquals("audit", reply.getData());
+        assertEquals("15", reply.getValue("priv-lvl"));
+        assertEquals("7", reply.getValue("acl"));
+
+        AuthorReply noArguments = reply("欢迎", "");
+        assertEquals("欢迎", noArguments.getServerMsg());
+        assertEquals("欢迎", noArguments.server_msg);
+        assertNull(noArguments.getData());
+        assertEquals(0, noArguments.getArguments().length);
+    }
+
+    @Test
+    public void lookupAgreesWithParsedArguments() throws Exception {
+        String[] raw = new String[40];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = "attr" + (i % 25) + (i % 3 == 0 ? "*" : "=") + i;
+        }
+        AuthorReply reply = reply("", "", raw);
+        for (int i = 0; i < 25; i++) {
+            assertEquals(String.valueOf(i), reply.getValue("attr" + i));
+        }
+        Argument[] arguments = reply.getArguments();
+        for (int i = 0; i < raw.length; i++) {
+            Argument expected = new Argument(raw[i]);
+            assertEquals(expected.attribute, arguments[i].attribute);
+            assertEquals(expected.value, arguments[i].value);
+            assertEquals(expected.isOptional(), arguments[i].isOptional());
+        }
+    }
+
+    @Test
+    public void nonAsciiAttribute() throws Exception {
+        AuthorReply reply = reply("", "", "命令=显示", "cmd=show");
+        assertEquals("显示", reply.getValue("命令"));
+        assertEquals("show", reply.getValue("cmd"));
+    }
+
+    @Test
+    public void outgoingReplyLooksUpItsArguments() {
+        AuthorReply reply = new AuthorReply(null, TACACS_PLUS.AUTHOR.STATUS.PASS_ADD, "ok", null,
+                new Argument[]{new Argument("priv-lvl", "15", false)});
+        assertEquals("15", reply.getValue("priv-lvl"));
+        assertEquals("ok", reply.getServerMsg());
+    }
+
+    @Test
+    public void lengthMismatchIsRejected() throws Exception {
+        byte[] body = body(TACACS_PLUS.AUTHOR.STATUS.PASS_ADD, "msg", "", "a=1");
+        Header header = new Header((byte) 0, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, Packet.toBytes4(1));
+        try {
+            new AuthorReply(header, Arrays.copyOf(body, body.length - 1));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Corrupt"));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.venustech.tacacs.protocol.entity;
+
+import com.venustech.tacacs.protocol.entity.base.Argument;
+import com.venustech.tacacs.protocol.entity.base.Header;
+import com.venustech.tacacs.protocol.entity.base.Packet;
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class AuthorTemplateTest {
+
+    private static final byte[] KEY = "secret".getBytes(StandardCharsets.UTF_8);
+
+    private static Header header(int sessionId, byte flags) {
+        return new Header(flags, TACACS_PLUS.PACKET.VERSION.v13_0, TACACS_PLUS.PACKET.TYPE.AUTHOR, Packet.toBytes4(sessionId));
+    }
+
+    /** 同一组字段分别用参数列表和模板编码,整个报文(报头和加密后的主体)必须逐字节相同 **/
+    private static void assertSameBytes(String user, String port, String remAddr, Argument... arguments) throws Exception {
+        AuthorTemplate template = new AuthorTemplate(TACACS_PLUS.AUTHEN.METH.TACACSPLUS, (byte) 15, TACACS_PLUS.AUTHEN.TYPE.ASCII,
+                TACACS_PLUS.AUTHEN.SVC.LOGIN, user, port, remAddr, arguments);
+        for (int sessionId : new int[]{1, 0x7ABCDEF0}) {
+            for (byte flags : new byte[]{0, TACACS_PLUS.PACKET.FLAG.SINGLE_CONNECT.code(), TACACS_PLUS.PACKET.FLAG.UNENCRYPTED.code()}) {
+                byte[] expected = new AuthorRequest(header(sessionId, flags), TACACS_PLUS.AUTHEN.METH.TACACSPLUS, (byte) 15,
+                        TACACS_PLUS.AUTHEN.TYPE.ASCII, TACACS_PLUS.AUTHEN.SVC.LOGIN, user, port, remAddr, arguments).getWriteByte(KEY);
+                byte[] actual = new AuthorRequest(header(sessionId, flags), template).getWriteByte(KEY);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void templateEncodesLikeArguments() throws Exception {
+        assertSameBytes("bob", "tty0", "10.0.0.1",
+                new Argument("service", "shell", false), new Argument("cmd", "show", false), new Argument("cmd-arg", "running-config", true));
+    }
+
+    @Test
+    public void emptyFieldsAndNoArguments() throws Exception {
+        assertSameBytes("bob", null, null);
+        assertSameBytes("", "", "");
+    }
+
+    @Test
+    public void multiByteCharacters() throws Exception {
+        assertSameBytes("用户", "tty0", "10.0.0.1", new Argument("cmd", "显示配置", false));
+    }
+
+    @Test
+    public void oversizedFieldsAreTruncatedTheSameWay() throws Exception {
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        String longValue = new String(chars);
+        Argument[] many = new Argument[300];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = new Argument("a" + i, "v", false);
+        }
+        assertSameBytes(longValue, longValue, "10.0.0.1", new Argument("cmd", longValue, false));
+        assertSameBytes("bob", "tty0", "10.0.0.1", many);
+    }
+
+    @Test
+    public void templateIsNotAffectedByLaterChangesToTheArray() throws Exception {
+        Argument[] arguments = {new Argument("service", "shell", false)};
+        AuthorTemplate template = new AuthorTemplate(TACACS_PLUS.AUTHEN.METH.TACACSPLUS, (byte) 15, TACACS_PLUS.AUTHEN.TYPE.ASCII,
+                TACACS_PLUS.AUTHEN.SVC.LOGIN, "bob", "tty0", "10.0.0.1", arguments);
+        byte[] before = new AuthorRequest(header(1, (byte) 0), template).getWriteByte(KEY);
+        arguments[0] = new Argument("service", "ppp", false);
+        assertArrayEquals(before, new AuthorRequest(header(1, (byte) 0), template).getWriteByte(KEY));
+    }
+}
@@ -0,0 +1,85 @@
+package com.venustech.tacacs.protocol.entity.base;
+
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较ObfuscationEngine和原来每次调用都获取MessageDigest、逐字节异或的实现.
+ * 运行方式:
+ * mvn -B -Pjmh clean test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) com.venustech.tacacs.protocol.entity.base.ObfuscationBenchmark
+ * @author zhangxin
+ * 2018/8/29
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObfuscationBenchmark {
+
+    private static final byte[] SESSION_ID = {0x12, 0x34, 0x56, 0x78};
+    private static final byte[] KEY = "tacacs-shared-secret".getBytes(StandardCharsets.UTF_8);
+    private static final byte VERSION = TACACS_PLUS.PACKET.VERSION.v13_0.code();
+
+    /** 典型的认证报文主体约40字节,带多个参数的授权报文约200字节 **/
+    @Param({"40", "200", "1024"})
+    public int length;
+
+    private ByteBuf buf;
+
+    @Setup
+    public void setup() {
+        buf = Unpooled.directBuffer(length);
+        buf.writeZero(length);
+    }
+
+    @Benchmark
+    public ByteBuf engine() {
+        ObfuscationEngine.get().toggle(buf, 0, length, SESSION_ID, KEY, VERSION, (byte) 1);
+        return buf;
+    }
+
+    @Benchmark
+    public ByteBuf messageDigestPerCall() throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] digest = null;
+        for (int pos = 0; pos < length; pos += digest.length) {
+            md.update(SESSION_ID);
+            md.update(KEY);
+            md.update(VERSION);
+            md.update((byte) 1);
+            if (digest != null) { md.update(digest); }
+            digest = md.digest();
+            int n = Math.min(digest.length, length - pos);
+            for (int i = 0; i < n; i++) {
+                buf.setByte(pos + i, buf.getByte(pos + i) ^ digest[i]);
+            }
+        }
+        return buf;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ObfuscationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
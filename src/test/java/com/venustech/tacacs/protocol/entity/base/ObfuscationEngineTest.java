@@ -0,0 +1,103 @@
+package com.venustech.tacacs.protocol.entity.base;
+
+import com.venustech.tacacs.protocol.enums.TACACS_PLUS;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author zhangxin
+ * 2018/8/29
+ */
+public class ObfuscationEngineTest {
+
+    private static final byte[] SESSION_ID = {0x12, 0x34, 0x56, 0x78};
+    private static final byte[] KEY = "secret".getBytes(StandardCharsets.UTF_8);
+    private static final byte VERSION = TACACS_PLUS.PACKET.VERSION.v13_0.code();
+
+    /** RFC 8907中伪随机密码块的直接实现,每个块重新调用MessageDigest **/
+    static byte[] reference(byte[] body, byte[] sessionID, byte[] key, byte version, byte seqNum) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] toggled = body.clone();
+        byte[] digest = null;
+        for (int pos = 0; pos < toggled.length; pos += 16) {
+            md.update(sessionID);
+            md.update(key);
+            md.update(version);
+            md.update(seqNum);
+            if (digest != null) {
+                md.update(digest);
+            }
+            digest = md.digest();
+            for (int i = 0; i < 16 && pos + i < toggled.length; i++) {
+                toggled[pos + i] ^= digest[i];
+            }
+        }
+        return toggled;
+    }
+
+    @Test
+    public void matchesReferenceAndRoundTrips() throws Exception {
+        Random random = new Random(1);
+        for (int length = 0; length <= 100; length++) {
+            byte[] body = new byte[length];
+            random.nextBytes(body);
+            byte seqNum = (byte) (length + 1);
+            ByteBuf buf = Unpooled.wrappedBuffer(body.clone());
+            ObfuscationEngine.get().toggle(buf, 0, length, SESSION_ID, KEY, VERSION, seqNum);
+            assertArrayEquals("length " + length, reference(body, SESSION_ID, KEY, VERSION, seqNum), buf.array());
+            ObfuscationEngine.get().toggle(buf, 0, length, SESSION_ID, KEY, VERSION, seqNum);
+            assertArrayEquals("length " + length, body, buf.array());
+        }
+    }
+
+    @Test
+    public void togglesOnlyTheGivenRangeOfDirectBuffer() throws Exception {
+        byte[] body = new byte[37];
+        new Random(2).nextBytes(body);
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(64);
+        try {
+            buf.writeBytes(new byte[]{1, 2, 3});
+            buf.writeBytes(body);
+            buf.writeBytes(new byte[]{4, 5});
+            ObfuscationEngine.get().toggle(buf, 3, body.length, SESSION_ID, KEY, VERSION, (byte) 2);
+            byte[] toggled = new byte[body.length];
+            buf.getBytes(3, toggled);
+            assertArrayEquals(reference(body, SESSION_ID, KEY, VERSION, (byte) 2), toggled);
+            assertEquals(3, buf.getByte(2));
+            assertEquals(4, buf.getByte(3 + body.length));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void longKeyGrowsPrefix() throws Exception {
+        byte[] key = new byte[200];
+        new Random(3).nextBytes(key);
+        byte[] body = new byte[50];
+        ByteBuf buf = Unpooled.wrappedBuffer(body.clone());
+        ObfuscationEngine.get().toggle(buf, 0, body.length, SESSION_ID, key, VERSION, (byte) 1);
+        assertArrayEquals(reference(body, SESSION_ID, key, VERSION, (byte) 1), buf.array());
+        // 之后使用短密钥的调用不受残留前缀影响
+        buf = Unpooled.wrappedBuffer(body.clone());
+        ObfuscationEngine.get().toggle(buf, 0, body.length, SESSION_ID, KEY, VERSION, (byte) 1);
+        assertArrayEquals(reference(body, SESSION_ID, KEY, VERSION, (byte) 1), buf.array());
+    }
+
+    @Test
+    public void unencryptedFlagLeavesBodyUnchanged() throws Exception {
+        Header header = new Header(TACACS_PLUS.PACKET.FLAG.UNENCRYPTED.code(), TACACS_PLUS.PACKET.VERSION.v13_0,
+                TACACS_PLUS.PACKET.TYPE.AUTHEN, SESSION_ID);
+        byte[] body = "plain".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(body, header.toggleCipher(body, KEY));
+    }
+}